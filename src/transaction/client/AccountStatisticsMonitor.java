@@ -0,0 +1,34 @@
+package transaction.client;
+
+import transaction.comm.AccountStatistics;
+
+
+/**
+ * This class periodically queries a running transaction server for its conflict analytics and prints
+ * the accounts involved in the most conflicts and the accounts written the most, to decide which
+ * accounts to split or how to partition.
+ *
+ * @author wolfdieterotte
+ */
+public class AccountStatisticsMonitor {
+
+    /**
+     * @param args host, port, optionally the number of accounts to show (default 10)
+     *             and the interval in seconds between queries (default 0, query once)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        TransactionServerProxy server = new TransactionServerProxy(args[0], Integer.parseInt(args[1]));
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int interval = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        do {
+            AccountStatistics statistics = server.getAccountStatistics(k);
+            if (statistics == null) {
+                return;
+            }
+            System.out.println(statistics + "\n");
+
+            Thread.sleep(interval * 1000L);
+        } while (interval > 0);
+    }
+}
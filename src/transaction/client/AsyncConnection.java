@@ -0,0 +1,212 @@
+package transaction.client;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import transaction.comm.BinaryProtocol;
+import transaction.comm.UnixDomainSocket;
+
+
+/**
+ * This class represents one non-blocking connection to the transaction server, talking the binary protocol,
+ * see BinaryProtocol. Requests may be sent from any thread, without waiting for the replies of the ones
+ * before: the server answers the requests of a connection in order, so replies are matched to the futures
+ * of their requests first in, first out. All I/O is done by the event loop the connection belongs to.
+ *
+ * @author wolfdieterotte
+ */
+class AsyncConnection {
+
+    // a reply frame
+    static class Reply {
+        final int type;
+        final int value;
+
+        Reply(int type, int value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final AsyncTransactionServerProxy.EventLoop eventLoop;
+    private SelectionKey key = null;
+    private boolean connected;
+
+    // request frames not written yet, in write mode, and reply bytes read but not processed yet
+    private ByteBuffer out = ByteBuffer.allocate(BinaryProtocol.REQUEST_SIZE * 16);
+    private final ByteBuffer in = ByteBuffer.allocate(BinaryProtocol.REPLY_SIZE * 64);
+
+    // futures of the requests sent and not answered yet, in the order they were sent
+    private final ArrayDeque<CompletableFuture<Reply>> pendingReplies = new ArrayDeque<>();
+
+    private volatile boolean broken = false;
+
+
+    /**
+     * Constructor, starts connecting, the event loop finishes it
+     *
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     * @param eventLoop the event loop doing this connection's I/O
+     */
+    AsyncConnection(String host, int port, AsyncTransactionServerProxy.EventLoop eventLoop) throws IOException {
+        this.eventLoop = eventLoop;
+
+        if (UnixDomainSocket.isUnix(host)) {
+            channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.configureBlocking(false);
+            connected = channel.connect(UnixDomainSocket.address(host));
+        } else {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            connected = channel.connect(new InetSocketAddress(host, port));
+        }
+
+        // announce the binary protocol, sent ahead of the first request
+        out.put((byte) BinaryProtocol.MAGIC);
+        eventLoop.register(this);
+    }
+
+
+    /**
+     * Sends a request
+     *
+     * @param type the message type
+     * @param first first argument, e.g. the account number
+     * @param second second argument, e.g. the balance to write
+     * @param answered whether the server answers this request
+     * @return the future of the reply, null if the request is not answered
+     */
+    CompletableFuture<Reply> request(int type, int first, int second, boolean answered) {
+        CompletableFuture<Reply> reply = answered ? new CompletableFuture<>() : null;
+
+        synchronized (this) {
+            if (broken) {
+                if (reply != null) {
+                    reply.completeExceptionally(new ClosedChannelException());
+                }
+                return reply;
+            }
+
+            if (out.remaining() < BinaryProtocol.REQUEST_SIZE) {
+                ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                out = larger.put(out);
+            }
+            out.put((byte) type).putInt(first).putInt(second);
+
+            if (reply != null) {
+                pendingReplies.add(reply);
+            }
+        }
+
+        eventLoop.flush(this);
+        return reply;
+    }
+
+
+    /**
+     * @return a flag indicating whether the connection failed or was closed
+     */
+    boolean isBroken() {
+        return broken;
+    }
+
+
+    /**
+     * Registers the channel with the event loop's selector, called by the event loop
+     */
+    void register(Selector selector) throws IOException {
+        key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        write();
+    }
+
+
+    /**
+     * Finishes connecting, called by the event loop
+     */
+    void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            connected = true;
+            write();
+        }
+    }
+
+
+    /**
+     * Writes as many pending request frames as the channel takes, called by the event loop
+     */
+    synchronized void write() throws IOException {
+        if (!connected || key == null || broken) {
+            return;
+        }
+
+        out.flip();
+        channel.write(out);
+        out.compact();
+
+        // keep being told when there is room to write the rest
+        key.interestOps(out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+
+    /**
+     * Reads replies and completes their futures, called by the event loop
+     */
+    void read() throws IOException {
+        if (channel.read(in) < 0) {
+            throw new EOFException("Server closed the connection");
+        }
+
+        in.flip();
+        while (in.remaining() >= BinaryProtocol.REPLY_SIZE) {
+            Reply reply = new Reply(in.get(), in.getInt());
+
+            CompletableFuture<Reply> pendingReply;
+            synchronized (this) {
+                pendingReply = pendingReplies.poll();
+            }
+
+            // the continuations run right here, on the event loop
+            if (pendingReply != null) {
+                pendingReply.complete(reply);
+            }
+        }
+        in.compact();
+    }
+
+
+    /**
+     * Gives up on the connection, failing all requests waiting for replies
+     *
+     * @param cause why the connection failed, null if it is closed on purpose
+     */
+    void fail(IOException cause) {
+        ArrayDeque<CompletableFuture<Reply>> failedReplies;
+        synchronized (this) {
+            broken = true;
+            failedReplies = new ArrayDeque<>(pendingReplies);
+            pendingReplies.clear();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+
+        for (CompletableFuture<Reply> failedReply : failedReplies) {
+            failedReply.completeExceptionally(cause != null ? cause : new ClosedChannelException());
+        }
+    }
+}
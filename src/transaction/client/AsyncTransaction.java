@@ -0,0 +1,88 @@
+package transaction.client;
+
+import java.util.concurrent.CompletableFuture;
+import transaction.comm.MessageTypes;
+
+
+/**
+ * This class represents a transaction opened through an AsyncTransactionServerProxy. Operations do not block,
+ * they return futures completed with the server's answer, or exceptionally if the connection fails.
+ * Operations may be issued without waiting for the ones before, they are run by the server in the order issued.
+ *
+ * @author wolfdieterotte
+ */
+public class AsyncTransaction implements MessageTypes {
+
+    private final AsyncTransactionServerProxy proxy;
+    private final AsyncConnection connection;
+    private final int transactionID;
+
+
+    AsyncTransaction(AsyncTransactionServerProxy proxy, AsyncConnection connection, int transactionID) {
+        this.proxy = proxy;
+        this.connection = connection;
+        this.transactionID = transactionID;
+    }
+
+
+    public int getTransactionID() {
+        return transactionID;
+    }
+
+
+    /**
+     * Reading a value from an account
+     *
+     * @param accountNumber
+     * @return the future of the balance of the account
+     */
+    public CompletableFuture<Integer> read(int accountNumber) {
+        return connection.request(READ_REQUEST, accountNumber, 0, true).thenApply(reply -> reply.value);
+    }
+
+
+    /**
+     * Writing value to account
+     *
+     * @param accountNumber
+     * @param amount
+     * @return the future of the prior account balance
+     */
+    public CompletableFuture<Integer> write(int accountNumber, int amount) {
+        return connection.request(WRITE_REQUEST, accountNumber, amount, true).thenApply(reply -> reply.value);
+    }
+
+
+    /**
+     * Depositing an amount into an account without reading its balance
+     *
+     * @param accountNumber
+     * @param amount the amount to add, negative for a withdrawal
+     * @return the future completed once the deposit is done
+     */
+    public CompletableFuture<Void> deposit(int accountNumber, int amount) {
+        return connection.request(DEPOSIT_REQUEST, accountNumber, amount, true).thenApply(reply -> null);
+    }
+
+
+    /**
+     * Requests this transaction to be closed
+     *
+     * @return the future of the status, i.e. either TRANSACTION_COMMITTED or TRANSACTION_ABORTED
+     */
+    public CompletableFuture<Integer> closeTransaction() {
+        return connection.request(CLOSE_TRANSACTION, 0, 0, true).thenApply(reply -> {
+            proxy.release(connection);
+            return reply.type;
+        });
+    }
+
+
+    /**
+     * Aborts this transaction, the server does not answer
+     */
+    public void abortTransaction() {
+        connection.request(ABORT_TRANSACTION, 0, 0, false);
+        proxy.release(connection);
+    }
+}
@@ -0,0 +1,235 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.MessageTypes;
+
+
+/**
+ * This class represents the asynchronous counterpart of TransactionServerProxy: transactions are opened,
+ * read, written and closed without blocking, every operation returning a CompletableFuture, so a single
+ * client process can drive any number of concurrent transactions on a few threads and compose their operations.
+ * Underneath, non-blocking connections talking the binary protocol are served by a small pool of event loops.
+ * The server runs one transaction per connection at a time, so connections are pooled: a transaction takes
+ * an idle connection or opens a new one, and hands it back when it is closed or aborted.
+ * Continuations run on the event loops, they must not block.
+ *
+ * @author wolfdieterotte
+ */
+public class AsyncTransactionServerProxy implements MessageTypes {
+
+    private final String host;
+    private final int port;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger(0);
+
+    // the branch of the server transactions go to, 0 for the default branch
+    private volatile int branch = 0;
+
+    // connections not used by a transaction right now
+    private final ConcurrentLinkedQueue<AsyncConnection> idleConnections = new ConcurrentLinkedQueue<>();
+
+
+    /**
+     * Constructor, starts the event loops
+     *
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     * @param numberEventLoops number of threads doing the network I/O
+     */
+    public AsyncTransactionServerProxy(String host, int port, int numberEventLoops) throws IOException {
+        this.host = host;
+        this.port = port;
+
+        eventLoops = new EventLoop[Math.max(numberEventLoops, 1)];
+        for (int loopIndex = 0; loopIndex < eventLoops.length; loopIndex++) {
+            eventLoops[loopIndex] = new EventLoop(loopIndex);
+            eventLoops[loopIndex].start();
+        }
+    }
+
+
+    /**
+     * Directs the transactions opened from now on to a branch of the server
+     *
+     * @param branch the branch's position in the server's BRANCHES, 0 for the default branch
+     */
+    public void setBranch(int branch) {
+        this.branch = branch;
+    }
+
+
+    /**
+     * Opens a transaction. If the server rejects it because it runs too many transactions,
+     * opening is retried as told, without blocking
+     *
+     * @return the future of the transaction
+     */
+    public CompletableFuture<AsyncTransaction> openTransaction() {
+        AsyncConnection connection = idleConnections.poll();
+
+        // connections the server hung up on while idle are dropped
+        while (connection != null && connection.isBroken()) {
+            connection = idleConnections.poll();
+        }
+
+        if (connection == null) {
+            try {
+                EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+                connection = new AsyncConnection(host, port, eventLoop);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        return open(connection);
+    }
+
+
+    /**
+     * Stops the event loops and closes all connections, transactions still running are abandoned on the server
+     */
+    public void close() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutDown();
+        }
+    }
+
+
+    /**
+     * Helper sending OPEN_TRANSACTION, retrying after the time the server tells when rejected
+     */
+    private CompletableFuture<AsyncTransaction> open(AsyncConnection connection) {
+        return connection.request(OPEN_TRANSACTION, branch, 0, true).thenCompose(reply -> {
+            if (reply.type != TRANSACTION_REJECTED) {
+                return CompletableFuture.completedFuture(new AsyncTransaction(this, connection, reply.value));
+            }
+
+            // back off a little longer than the hint, so rejected clients do not come back all at once
+            long retryAfterMilliseconds = reply.value + (long) (Math.random() * reply.value);
+            return CompletableFuture.runAsync(() -> {}, CompletableFuture.delayedExecutor(retryAfterMilliseconds, TimeUnit.MILLISECONDS))
+                    .thenCompose(retry -> open(connection));
+        });
+    }
+
+
+    /**
+     * Takes back the connection of a finished transaction
+     *
+     * @param connection the connection, dropped if it failed
+     */
+    void release(AsyncConnection connection) {
+        if (!connection.isBroken()) {
+            idleConnections.add(connection);
+        }
+    }
+
+
+    /**
+     * Thread doing the I/O of its share of the connections
+     */
+    static class EventLoop extends Thread {
+
+        private final Selector selector;
+
+        // connections to register with the selector, and connections having request frames to write
+        private final ConcurrentLinkedQueue<AsyncConnection> registrations = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<AsyncConnection> flushes = new ConcurrentLinkedQueue<>();
+
+        private volatile boolean keepgoing = true;
+
+
+        EventLoop(int loopIndex) throws IOException {
+            super("AsyncTransactionEventLoop-" + loopIndex);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+
+        void register(AsyncConnection connection) {
+            registrations.add(connection);
+            selector.wakeup();
+        }
+
+
+        void flush(AsyncConnection connection) {
+            flushes.add(connection);
+
+            // the loop itself gets to the flushes before selecting again
+            if (Thread.currentThread() != this) {
+                selector.wakeup();
+            }
+        }
+
+
+        void shutDown() {
+            keepgoing = false;
+            selector.wakeup();
+        }
+
+
+        @Override
+        public void run() {
+            while (keepgoing) {
+                AsyncConnection connection;
+
+                while ((connection = registrations.poll()) != null) {
+                    try {
+                        connection.register(selector);
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                while ((connection = flushes.poll()) != null) {
+                    try {
+                        connection.write();
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("[AsyncTransactionServerProxy.EventLoop.run] Select failed: " + e.getMessage());
+                    break;
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    connection = (AsyncConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isConnectable()) {
+                            connection.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.read();
+                        }
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+
+            // done, hang up on the server
+            for (SelectionKey key : selector.keys()) {
+                ((AsyncConnection) key.attachment()).fail(null);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
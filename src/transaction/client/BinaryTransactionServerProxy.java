@@ -0,0 +1,244 @@
+package transaction.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import transaction.comm.BinaryProtocol;
+import transaction.comm.UnixDomainSocket;
+
+
+/**
+ * This class represents the proxy for a transaction server, talking the binary protocol instead of
+ * sending Message objects, see BinaryProtocol. The connection is opened with the first transaction and
+ * kept open, so one proxy runs any number of transactions one after the other, until disconnect() is called.
+ * Two-phase commit is not part of the binary protocol, administrative requests go over object streams as usual.
+ *
+ * @author wolfdieterotte
+ */
+public class BinaryTransactionServerProxy extends TransactionServerProxy {
+
+    private Socket serverConnection = null;
+    private DataOutputStream writeFrame = null;
+    private DataInputStream readFrame = null;
+
+    private int transactionID = 0;
+
+
+    /**
+     * Constructor
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     */
+    public BinaryTransactionServerProxy(String host, int port) {
+        super(host, port);
+    }
+
+
+    /**
+     * Opens a transaction, connecting to the server first if not connected yet
+     *
+     * @return the transaction ID
+     */
+    @Override
+    public int openTransaction() {
+
+        try {
+            if (serverConnection == null) {
+                serverConnection = UnixDomainSocket.connect(host, port);
+                serverConnection.setTcpNoDelay(true);
+
+                writeFrame = new DataOutputStream(new BufferedOutputStream(serverConnection.getOutputStream(), BinaryProtocol.REQUEST_SIZE * 8));
+                readFrame = new DataInputStream(new BufferedInputStream(serverConnection.getInputStream(), BinaryProtocol.REPLY_SIZE * 8));
+                writeFrame.writeByte(BinaryProtocol.MAGIC);
+            }
+
+            // the server may reject us when it runs too many transactions, then we retry as told
+            while (request(OPEN_TRANSACTION, branch, 0) == TRANSACTION_REJECTED) {
+                int retryAfterMilliseconds = readFrame.readInt();
+                Thread.sleep(retryAfterMilliseconds + (long) (Math.random() * retryAfterMilliseconds));
+            }
+            transactionID = readFrame.readInt();
+
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error in openTransaction: " + e.getMessage());
+            disconnect();
+        }
+
+        return transactionID;
+    }
+
+
+    /**
+     * Requests this transaction to be closed, the connection stays open for the next one
+     *
+     * @return the status, i.e. either TRANSACTION_COMMITTED or TRANSACTION_ABORTED
+     */
+    @Override
+    public int closeTransaction() {
+        int returnStatus = TRANSACTION_ABORTED;
+
+        try {
+            returnStatus = request(CLOSE_TRANSACTION, 0, 0);
+            readFrame.readInt();
+
+        } catch (IOException e) {
+            System.err.println("Error in closeTransaction: " + e.getMessage());
+            disconnect();
+        }
+
+        return returnStatus;
+    }
+
+
+    /**
+     * Two-phase commit is not part of the binary protocol
+     *
+     * @return TRANSACTION_ABORTED
+     */
+    @Override
+    public int prepareTransaction() {
+        System.err.println("Error in prepareTransaction: not supported by the binary protocol");
+        abortTransaction();
+
+        return TRANSACTION_ABORTED;
+    }
+
+
+    /**
+     * Aborts this transaction, the connection stays open for the next one
+     */
+    @Override
+    public void abortTransaction() {
+
+        try {
+            writeFrame.writeByte(ABORT_TRANSACTION);
+            writeFrame.writeInt(0);
+            writeFrame.writeInt(0);
+            writeFrame.flush();
+
+        } catch (IOException e) {
+            System.err.println("Error in abortTransaction: " + e.getMessage());
+            disconnect();
+        }
+    }
+
+
+    /**
+     * Reading a value from an account
+     *
+     * @param accountNumber
+     * @return the balance of the account
+     */
+    @Override
+    public int read(int accountNumber) {
+        int balance = 0;
+
+        try {
+            request(READ_REQUEST, accountNumber, 0);
+            balance = readFrame.readInt();
+
+        } catch (IOException e) {
+            System.err.println("Error in read: " + e.getMessage());
+        }
+
+        return balance;
+    }
+
+
+    /**
+     * Writing value to account
+     *
+     * @param accountNumber
+     * @param amount
+     * @return the prior account balance
+     */
+    @Override
+    public int write(int accountNumber, int amount) {
+        int priorBalance = 0;
+
+        try {
+            request(WRITE_REQUEST, accountNumber, amount);
+            priorBalance = readFrame.readInt();
+
+        } catch (IOException e) {
+            System.err.println("Error in write: " + e.getMessage());
+        }
+
+        return priorBalance;
+    }
+
+
+    /**
+     * Depositing an amount into an account without reading its balance
+     *
+     * @param accountNumber
+     * @param amount the amount to add, negative for a withdrawal
+     */
+    @Override
+    public void deposit(int accountNumber, int amount) {
+
+        try {
+            request(DEPOSIT_REQUEST, accountNumber, amount);
+            readFrame.readInt();
+
+        } catch (IOException e) {
+            System.err.println("Error in deposit: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Shuts the server down over this proxy's connection, which is closed afterwards
+     */
+    public void shutDownServer() {
+
+        try {
+            if (serverConnection != null) {
+                writeFrame.writeByte(SHUTDOWN);
+                writeFrame.writeInt(0);
+                writeFrame.writeInt(0);
+                writeFrame.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Error in shutDownServer: " + e.getMessage());
+        } finally {
+            disconnect();
+        }
+    }
+
+
+    /**
+     * Hangs up, a transaction still open is abandoned on the server
+     */
+    public void disconnect() {
+        try {
+            if (serverConnection != null) {
+                serverConnection.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+        serverConnection = null;
+    }
+
+
+    /**
+     * Helper sending a request frame and reading the type of the reply, the caller reads the reply's value
+     *
+     * @param type the message type
+     * @param first first argument, e.g. the account number
+     * @param second second argument, e.g. the balance to write
+     * @return the type of the reply
+     */
+    private int request(int type, int first, int second) throws IOException {
+        writeFrame.writeByte(type);
+        writeFrame.writeInt(first);
+        writeFrame.writeInt(second);
+        writeFrame.flush();
+
+        return readFrame.readByte();
+    }
+}
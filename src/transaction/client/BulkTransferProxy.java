@@ -0,0 +1,169 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.comm.UnixDomainSocket;
+
+
+/**
+ * This class represents a stream of independent transfers submitted to the transaction server in bulk,
+ * see BULK_SUBMIT. Transfers are collected into chunks, and each full chunk is sent in one message on a
+ * connection kept open, the server running the transfers as transactions of their own, retrying them if they abort.
+ * Only one chunk is held and in flight at a time, so batches of any size are streamed in bounded memory.
+ * Transfers are independent: they may commit in any order, and one given up on does not affect the others.
+ *
+ * @author wolfdieterotte
+ */
+public class BulkTransferProxy implements MessageTypes {
+
+    private final String host;
+    private final int port;
+
+    private Socket serverConnection = null;
+    private ObjectOutputStream writeToNet = null;
+    private ObjectInputStream readFromNet = null;
+
+    // the chunk being filled, as {account from, account to, amount, ...}
+    private final int[] chunk;
+    private int chunkLength = 0;
+
+    // outcomes so far, and who is told about transfers the server gave up on, if anybody
+    private long committed = 0;
+    private long failed = 0;
+    private Consumer<int[]> failedTransfers = null;
+
+
+    /**
+     * Constructor
+     *
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     * @param chunkSize number of transfers sent in one message
+     */
+    public BulkTransferProxy(String host, int port, int chunkSize) {
+        this.host = host;
+        this.port = port;
+        chunk = new int[3 * Math.max(chunkSize, 1)];
+    }
+
+
+    /**
+     * Sets who is told about transfers the server gave up on
+     *
+     * @param failedTransfers receives {account from, account to, amount} of every transfer given up on
+     */
+    public void setFailedTransfers(Consumer<int[]> failedTransfers) {
+        this.failedTransfers = failedTransfers;
+    }
+
+
+    /**
+     * Submits a transfer, sending the chunk if it is full
+     *
+     * @param accountFrom account withdrawn from
+     * @param accountTo account deposited into
+     * @param amount amount transferred
+     */
+    public void transfer(int accountFrom, int accountTo, int amount) {
+        chunk[chunkLength++] = accountFrom;
+        chunk[chunkLength++] = accountTo;
+        chunk[chunkLength++] = amount;
+
+        if (chunkLength == chunk.length) {
+            flush();
+        }
+    }
+
+
+    /**
+     * Sends the transfers submitted so far and waits for their outcomes
+     */
+    public void flush() {
+        if (chunkLength == 0) {
+            return;
+        }
+
+        try {
+            if (serverConnection == null) {
+                serverConnection = UnixDomainSocket.connect(host, port);
+                serverConnection.setTcpNoDelay(true);
+                writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
+                readFromNet = new ObjectInputStream(serverConnection.getInputStream());
+            }
+
+            // the stream forgets the chunk written, otherwise the chunk array would be sent as a reference to the first one
+            writeToNet.writeObject(new Message(BULK_SUBMIT, chunkLength == chunk.length ? chunk : Arrays.copyOf(chunk, chunkLength)));
+            writeToNet.reset();
+            byte[] outcomes = (byte[]) ((Message) readFromNet.readObject()).getContent();
+
+            for (int transferIndex = 0; transferIndex < outcomes.length; transferIndex++) {
+                if (outcomes[transferIndex] == TRANSACTION_COMMITTED) {
+                    committed++;
+                } else {
+                    failed++;
+                    if (failedTransfers != null) {
+                        failedTransfers.accept(Arrays.copyOfRange(chunk, 3 * transferIndex, 3 * transferIndex + 3));
+                    }
+                }
+            }
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("[BulkTransferProxy.flush] Error submitting " + chunkLength / 3 + " transfers: " + e.getMessage());
+            failed += chunkLength / 3;
+
+            // the connection is of no use anymore, the next chunk opens a new one
+            if (serverConnection != null) {
+                try {
+                    serverConnection.close();
+                } catch (IOException ex) {
+                    // nothing left to do
+                }
+                serverConnection = null;
+            }
+        }
+
+        chunkLength = 0;
+    }
+
+
+    /**
+     * Sends the remaining transfers and ends the stream
+     */
+    public void close() {
+        flush();
+
+        if (serverConnection == null) {
+            return;
+        }
+
+        try {
+            writeToNet.writeObject(new Message(BULK_SUBMIT, new int[0]));
+            serverConnection.close();
+        } catch (IOException e) {
+            System.err.println("[BulkTransferProxy.close] Error closing connection: " + e.getMessage());
+        }
+        serverConnection = null;
+    }
+
+
+    /**
+     * @return the number of transfers committed so far
+     */
+    public long getCommitted() {
+        return committed;
+    }
+
+
+    /**
+     * @return the number of transfers the server gave up on, or that could not be submitted, so far
+     */
+    public long getFailed() {
+        return failed;
+    }
+}
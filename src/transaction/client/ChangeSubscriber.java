@@ -0,0 +1,141 @@
+package transaction.client;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import transaction.comm.CommittedWriteSet;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.comm.UnixDomainSocket;
+
+
+/**
+ * This class receives the stream of committed write sets from a transaction server, i.e. the
+ * new balances of the accounts written by each committed transaction, in commit order.
+ * If the connection is lost, e.g. because this subscriber fell too far behind, it reconnects
+ * and resumes after the last transaction number received.
+ *
+ * @author wolfdieterotte
+ */
+public class ChangeSubscriber implements MessageTypes {
+
+    String host = null;
+    int port;
+
+    private Socket serverConnection = null;
+    private ObjectInputStream readFromNet = null;
+
+    // last transaction number received, null before anything was received
+    private Integer lastTransactionNumber;
+
+
+    /**
+     * Constructor
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     * @param resumeAfter the last transaction number seen in an earlier subscription, null to start with a snapshot
+     */
+    public ChangeSubscriber(String host, int port, Integer resumeAfter) {
+        this.host = host;
+        this.port = port;
+        this.lastTransactionNumber = resumeAfter;
+    }
+
+
+    /**
+     * Receives the next batch of committed write sets, blocking until there is one.
+     * A snapshot of all accounts is delivered the same way, as one write set.
+     *
+     * @return the write sets, in commit order
+     * @throws IOException if the server cannot be reached or refuses the subscription
+     */
+    public CommittedWriteSet[] nextBatch() throws IOException {
+        Message message;
+
+        while (true) {
+            try {
+                if (serverConnection == null) {
+                    subscribe();
+                }
+
+                message = (Message) readFromNet.readObject();
+                break;
+
+            } catch (IOException | ClassNotFoundException e) {
+                // dropped by the server, resume where we left off
+                System.err.println("[ChangeSubscriber.nextBatch] Connection lost after transaction #" + lastTransactionNumber + ", resubscribing");
+                close();
+            }
+        }
+
+        // a server not publishing its commits refuses the subscription, resubscribing would not help
+        if (message.getType() == REPLICATION_REFUSED) {
+            close();
+            throw new IOException("Subscription refused: " + message.getContent());
+        }
+
+        CommittedWriteSet[] batch;
+        if (message.getType() == REPLICATION_SNAPSHOT) {
+            batch = new CommittedWriteSet[] { (CommittedWriteSet) message.getContent() };
+        } else {
+            batch = (CommittedWriteSet[]) message.getContent();
+        }
+
+        lastTransactionNumber = batch[batch.length - 1].getTransactionNumber();
+        return batch;
+    }
+
+
+    /**
+     * @return the last transaction number received, to resume a later subscription from
+     */
+    public Integer getLastTransactionNumber() {
+        return lastTransactionNumber;
+    }
+
+
+    /**
+     * Ends the subscription
+     */
+    public void close() {
+        try {
+            if (serverConnection != null) {
+                serverConnection.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+        serverConnection = null;
+    }
+
+
+    /**
+     * Helper opening the connection and sending SUBSCRIBE
+     */
+    private void subscribe() throws IOException {
+        serverConnection = UnixDomainSocket.connect(host, port);
+
+        ObjectOutputStream writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
+        writeToNet.writeObject(new Message(SUBSCRIBE, lastTransactionNumber));
+        readFromNet = new ObjectInputStream(serverConnection.getInputStream());
+    }
+
+
+    /**
+     * Prints the change stream of a server, one line per account written
+     *
+     * @param args host, port and optionally the transaction number to resume after
+     */
+    public static void main(String[] args) throws IOException {
+        ChangeSubscriber subscriber = new ChangeSubscriber(args[0], Integer.parseInt(args[1]), args.length > 2 ? Integer.valueOf(args[2]) : null);
+
+        while (true) {
+            for (CommittedWriteSet writeSet : subscriber.nextBatch()) {
+                for (int accountIndex = 0; accountIndex < writeSet.getAccounts().length; accountIndex++) {
+                    System.out.println(writeSet.getTransactionNumber() + " " + writeSet.getAccounts()[accountIndex] + " " + writeSet.getBalances()[accountIndex]);
+                }
+            }
+        }
+    }
+}
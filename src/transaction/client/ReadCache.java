@@ -0,0 +1,109 @@
+package transaction.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * This class represents a client-side cache of committed account balances, each along with its version,
+ * shared by all transactions of a client process. A read served from the cache costs no round trip,
+ * the server validates it at commit time like any other read: the account must still be at the version cached.
+ * Entries are filled by reads from the server and evicted as the server tells when a transaction opens or closes:
+ * the server piggybacks the accounts written by the transactions committed since the last transaction number
+ * the cache has seen, or tells to clear the cache if it does not remember that far back.
+ * Only supported with central validation on the server, the server does not hand out versions otherwise.
+ *
+ * @author wolfdieterotte
+ */
+public class ReadCache {
+
+    // account number -> {balance, version}
+    private final ConcurrentHashMap<Integer, int[]> entries = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    // the last transaction number the server's invalidations cover, and the number of times the cache was cleared
+    private final AtomicInteger seenUpTo = new AtomicInteger(0);
+    private final LongAdder clears = new LongAdder();
+
+
+    /**
+     * @param accountNumber
+     * @return {balance, version} if cached, null otherwise
+     */
+    int[] get(int accountNumber) {
+        int[] entry = entries.get(accountNumber);
+
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+
+    /**
+     * @param accountNumber
+     * @return a flag indicating whether the account is cached, without counting as a hit or miss
+     */
+    boolean contains(int accountNumber) {
+        return entries.containsKey(accountNumber);
+    }
+
+
+    /**
+     * Caches a balance read from the server, unless a newer one is cached already
+     *
+     * @param accountNumber
+     * @param balance the committed balance
+     * @param version its version, negative if it must not be cached
+     */
+    void put(int accountNumber, int balance, int version) {
+        if (version < 0) {
+            return;
+        }
+
+        entries.merge(accountNumber, new int[] { balance, version }, (cached, read) -> cached[1] >= read[1] ? cached : read);
+    }
+
+
+    /**
+     * @return the last transaction number the invalidations received cover, to be sent when opening a transaction
+     */
+    int getSeenUpTo() {
+        return seenUpTo.get();
+    }
+
+
+    /**
+     * Applies invalidations received from the server
+     *
+     * @param invalidations the last transaction number covered, followed by the accounts to evict, -1 for all of them
+     * @param offset the index of the transaction number in the array
+     */
+    void invalidate(int[] invalidations, int offset) {
+        int upTo = invalidations[offset];
+
+        if (invalidations.length > offset + 1 && invalidations[offset + 1] < 0) {
+            // the server does not remember what was written since, or was restarted
+            entries.clear();
+            clears.increment();
+            seenUpTo.set(upTo);
+            return;
+        }
+
+        for (int index = offset + 1; index < invalidations.length; index++) {
+            entries.remove(invalidations[index]);
+        }
+        seenUpTo.accumulateAndGet(upTo, Math::max);
+    }
+
+
+    @Override
+    public String toString() {
+        return "Read cache: " + hits.sum() + " hits, " + misses.sum() + " misses, " + entries.size() + " accounts cached, cleared " + clears.sum() + " times";
+    }
+}
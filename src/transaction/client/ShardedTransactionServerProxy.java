@@ -0,0 +1,368 @@
+package transaction.client;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import transaction.comm.AccountAggregate;
+
+
+/**
+ * This class represents the proxy for an account space sharded across several transaction servers.
+ * It routes every operation to the server holding the account, opening a transaction on that server
+ * the first time it is touched, and acts as the coordinator when the transaction is closed:
+ * a transaction touching one shard is simply closed there, a transaction spanning several shards
+ * is committed using two-phase commit, each shard running its own OCC validation in the first phase.
+ * From the client's perspective, an object of this class IS the transaction, like with TransactionServerProxy.
+ *
+ * @author wolfdieterotte
+ */
+public class ShardedTransactionServerProxy extends TransactionServerProxy {
+
+    // global transaction IDs handed out by the coordinator
+    private static final AtomicInteger transactionIdCounter = new AtomicInteger(0);
+
+    private final String[] shardHosts;
+    private final int[] shardPorts;
+    private final int shardSize;
+
+    // the transactions opened on the shards touched so far, by shard index in ascending order
+    private final TreeMap<Integer, TransactionServerProxy> participants = new TreeMap<>();
+    private int transactionID = 0;
+
+    // set when a shard's transaction could not be opened, the operations on that shard are not carried out
+    // and the transaction is aborted when closed
+    private boolean failed = false;
+
+
+    /**
+     * Constructor
+     * @param shards comma separated <host>:<port> of all shards, in the order of their account ranges
+     * @param numberAccounts total number of accounts across all shards
+     */
+    ShardedTransactionServerProxy(String shards, int numberAccounts) {
+        super(null, 0);
+
+        String[] shardAddresses = shards.split(",");
+        shardHosts = new String[shardAddresses.length];
+        shardPorts = new int[shardAddresses.length];
+
+        for (int shardIndex = 0; shardIndex < shardAddresses.length; shardIndex++) {
+            String[] address = shardAddresses[shardIndex].trim().split(":");
+            shardHosts[shardIndex] = address[0];
+            shardPorts[shardIndex] = Integer.parseInt(address[1]);
+        }
+
+        shardSize = (numberAccounts + shardAddresses.length - 1) / shardAddresses.length;
+    }
+
+
+    /**
+     * Opens a transaction, the transactions on the shards are opened lazily
+     *
+     * @return the coordinator's transaction ID
+     */
+    @Override
+    public int openTransaction() {
+        failed = false;
+        transactionID = transactionIdCounter.incrementAndGet();
+        return transactionID;
+    }
+
+
+    /**
+     * Closes the transaction, committing it atomically across all shards touched
+     *
+     * @return the status, i.e. either TRANSACTION_COMMITTED or TRANSACTION_ABORTED, or TRANSACTION_IN_DOUBT
+     *         if a shard could not be told to commit after all shards voted to
+     */
+    @Override
+    public int closeTransaction() {
+
+        // a shard could not be reached, the transaction is incomplete
+        if (failed) {
+            for (TransactionServerProxy participant : participants.values()) {
+                participant.abortTransaction();
+            }
+            return TRANSACTION_ABORTED;
+        }
+
+        // nothing touched, nothing to commit
+        if (participants.isEmpty()) {
+            return TRANSACTION_COMMITTED;
+        }
+
+        // one shard only, no coordination needed
+        if (participants.size() == 1) {
+            return participants.firstEntry().getValue().closeTransaction();
+        }
+
+        // phase one: collect the votes, stop at the first shard that fails validation
+        int vote = TRANSACTION_PREPARED;
+        for (Map.Entry<Integer, TransactionServerProxy> participant : participants.entrySet()) {
+            vote = participant.getValue().prepareTransaction();
+
+            if (vote != TRANSACTION_PREPARED) {
+                // that shard has dropped its transaction already, abort all the others
+                for (TransactionServerProxy other : participants.values()) {
+                    if (other != participant.getValue()) {
+                        other.abortTransaction();
+                    }
+                }
+                return TRANSACTION_ABORTED;
+            }
+        }
+
+        // phase two: everybody voted yes, the transaction is committed, each shard being retried until it confirms
+        int returnStatus = TRANSACTION_COMMITTED;
+        for (Map.Entry<Integer, TransactionServerProxy> participant : participants.entrySet()) {
+            if (participant.getValue().commitTransaction() != TRANSACTION_COMMITTED) {
+                System.err.println("[ShardedTransactionServerProxy.closeTransaction] Shard " + participant.getKey() + " did not confirm committing transaction #" + transactionID);
+                returnStatus = TRANSACTION_IN_DOUBT;
+            }
+        }
+
+        return returnStatus;
+    }
+
+
+    @Override
+    public int read(int accountNumber) {
+        TransactionServerProxy participant = getParticipant(accountNumber);
+        return participant == null ? 0 : participant.read(accountNumber);
+    }
+
+
+    @Override
+    public int write(int accountNumber, int amount) {
+        TransactionServerProxy participant = getParticipant(accountNumber);
+        return participant == null ? 0 : participant.write(accountNumber, amount);
+    }
+
+
+    /**
+     * Reads a number of accounts, one round trip per shard involved
+     *
+     * @param accountNumbers
+     * @return the balances, index by index
+     */
+    @Override
+    public int[] readMany(int[] accountNumbers) {
+        int[] balances = new int[accountNumbers.length];
+
+        for (Map.Entry<Integer, int[]> shard : groupByShard(accountNumbers).entrySet()) {
+            int[] indices = shard.getValue();
+            TransactionServerProxy participant = getParticipant(accountNumbers[indices[0]]);
+            int[] shardBalances = participant == null ? new int[indices.length] : participant.readMany(select(accountNumbers, indices));
+
+            for (int index = 0; index < indices.length; index++) {
+                balances[indices[index]] = shardBalances[index];
+            }
+        }
+
+        return balances;
+    }
+
+
+    /**
+     * Writes a number of accounts, one round trip per shard involved
+     *
+     * @param accountNumbers
+     * @param amounts the balances to write, index by index
+     * @return the prior balances, index by index
+     */
+    @Override
+    public int[] writeMany(int[] accountNumbers, int[] amounts) {
+        int[] priorBalances = new int[accountNumbers.length];
+
+        for (Map.Entry<Integer, int[]> shard : groupByShard(accountNumbers).entrySet()) {
+            int[] indices = shard.getValue();
+            TransactionServerProxy participant = getParticipant(accountNumbers[indices[0]]);
+            int[] shardPriorBalances = participant == null ? new int[indices.length] : participant.writeMany(select(accountNumbers, indices), select(amounts, indices));
+
+            for (int index = 0; index < indices.length; index++) {
+                priorBalances[indices[index]] = shardPriorBalances[index];
+            }
+        }
+
+        return priorBalances;
+    }
+
+
+    @Override
+    public void deposit(int accountNumber, int amount) {
+        TransactionServerProxy participant = getParticipant(accountNumber);
+        if (participant != null) {
+            participant.deposit(accountNumber, amount);
+        }
+    }
+
+
+    @Override
+    public boolean splitAccount(int accountNumber, int numberSubAccounts) {
+        return new TransactionServerProxy(shardHosts[shardOf(accountNumber)], shardPorts[shardOf(accountNumber)]).splitAccount(accountNumber, numberSubAccounts);
+    }
+
+
+    @Override
+    public boolean mergeAccount(int accountNumber) {
+        return new TransactionServerProxy(shardHosts[shardOf(accountNumber)], shardPorts[shardOf(accountNumber)]).mergeAccount(accountNumber);
+    }
+
+
+    /**
+     * Creates the account on the first shard with a free account number left in its range
+     */
+    @Override
+    public int createAccount(int balance) {
+        for (int shardIndex = 0; shardIndex < shardHosts.length; shardIndex++) {
+            int created = new TransactionServerProxy(shardHosts[shardIndex], shardPorts[shardIndex]).createAccount(balance);
+            if (created >= 0) {
+                return created;
+            }
+        }
+        return -1;
+    }
+
+
+    @Override
+    public int createAccount(int accountNumber, int balance) {
+        if (accountNumber < 0) {
+            return createAccount(balance);
+        }
+        if (shardOf(accountNumber) >= shardHosts.length) {
+            return -1;
+        }
+        return new TransactionServerProxy(shardHosts[shardOf(accountNumber)], shardPorts[shardOf(accountNumber)]).createAccount(accountNumber, balance);
+    }
+
+
+    @Override
+    public boolean closeAccount(int accountNumber) {
+        if (shardOf(accountNumber) >= shardHosts.length) {
+            return false;
+        }
+        return new TransactionServerProxy(shardHosts[shardOf(accountNumber)], shardPorts[shardOf(accountNumber)]).closeAccount(accountNumber);
+    }
+
+
+    /**
+     * Updates the accounts of every shard, each shard on its own, so updating all accounts in one transaction
+     * is atomic per shard only
+     */
+    @Override
+    public int[] bulkUpdate(int function, int argument, int chunkSize) {
+        int[] updated = new int[2];
+
+        for (int shardIndex = 0; shardIndex < shardHosts.length; shardIndex++) {
+            int[] shardUpdated = new TransactionServerProxy(shardHosts[shardIndex], shardPorts[shardIndex]).bulkUpdate(function, argument, chunkSize);
+            if (shardUpdated == null) {
+                return null;
+            }
+            updated[0] += shardUpdated[0];
+            updated[1] += shardUpdated[1];
+        }
+
+        return updated;
+    }
+
+
+    /**
+     * Aggregates the range on every shard holding part of it. Shards are read at different points in time,
+     * so an aggregate spanning shards is not consistent
+     */
+    @Override
+    public AccountAggregate aggregate(int from, int to) {
+        AccountAggregate aggregate = new AccountAggregate(from, to, 0, 0, 0, 0, true);
+
+        for (int shardIndex = 0; shardIndex < shardHosts.length; shardIndex++) {
+            AccountAggregate shardAggregate = new TransactionServerProxy(shardHosts[shardIndex], shardPorts[shardIndex]).aggregate(from, to);
+            if (shardAggregate == null) {
+                return null;
+            }
+            aggregate = aggregate.combine(shardAggregate);
+        }
+
+        return aggregate;
+    }
+
+
+    @Override
+    public AccountAggregate branchTotal() {
+        AccountAggregate aggregate = null;
+
+        for (int shardIndex = 0; shardIndex < shardHosts.length; shardIndex++) {
+            AccountAggregate shardAggregate = new TransactionServerProxy(shardHosts[shardIndex], shardPorts[shardIndex]).branchTotal();
+            if (shardAggregate == null) {
+                return null;
+            }
+            aggregate = aggregate == null ? shardAggregate : aggregate.combine(shardAggregate);
+        }
+
+        return aggregate;
+    }
+
+
+    /**
+     * Helper grouping accounts by the shard holding them
+     *
+     * @param accountNumbers
+     * @return shard index -> indices into accountNumbers, in order
+     */
+    private TreeMap<Integer, int[]> groupByShard(int[] accountNumbers) {
+        TreeMap<Integer, int[]> shards = new TreeMap<>();
+
+        for (int index = 0; index < accountNumbers.length; index++) {
+            int[] indices = shards.get(shardOf(accountNumbers[index]));
+            indices = indices == null ? new int[1] : Arrays.copyOf(indices, indices.length + 1);
+            indices[indices.length - 1] = index;
+            shards.put(shardOf(accountNumbers[index]), indices);
+        }
+
+        return shards;
+    }
+
+
+    /**
+     * Helper picking elements of an array
+     */
+    private static int[] select(int[] values, int[] indices) {
+        int[] selected = new int[indices.length];
+
+        for (int index = 0; index < indices.length; index++) {
+            selected[index] = values[indices[index]];
+        }
+
+        return selected;
+    }
+
+
+    /**
+     * Helper routing an account to the transaction on its shard, opening it if needed
+     *
+     * @param accountNumber
+     * @return the proxy of the transaction on the shard holding the account, null if it could not be opened,
+     *         which dooms the transaction to abort
+     */
+    private TransactionServerProxy getParticipant(int accountNumber) {
+        int shardIndex = shardOf(accountNumber);
+        TransactionServerProxy participant = participants.get(shardIndex);
+
+        if (participant == null && !failed) {
+            participant = new TransactionServerProxy(shardHosts[shardIndex], shardPorts[shardIndex]);
+            if (participant.openTransaction() < 0) {
+                System.err.println("[ShardedTransactionServerProxy.getParticipant] Could not open transaction #" + transactionID + " on shard " + shardIndex);
+                failed = true;
+                return null;
+            }
+            participants.put(shardIndex, participant);
+        }
+
+        return failed ? null : participant;
+    }
+
+
+    private int shardOf(int accountNumber) {
+        return accountNumber / shardSize;
+    }
+}
@@ -0,0 +1,485 @@
+package transaction.client;
+
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import transaction.server.TransactionServer;
+import transaction.server.transaction.TransactionManager;
+import utils.PropertyHandler;
+
+
+/**
+ * Class [SoakBenchmark] Drives a server running in this JVM at a fixed rate of transfers for a long time, watching
+ * for what only shows after hours: structures growing without bound, latency creeping up, throughput falling off.
+ * Clients open transfers between random accounts on a fixed schedule, latencies count from the time a transfer
+ * was due, so a server falling behind shows as growing latency and backlog rather than as a slower schedule.
+ *
+ * Every sample interval the heap is measured after a forced full collection, along with the number of threads,
+ * the sizes of the collections kept by the transaction managers, see TransactionManager.getCollectionSizes(),
+ * throughput and latency percentiles of the interval. The first fifth of the run counts as warm-up, for the rest
+ * each metric is judged by comparing its first third with its last third and by Kendall's rank correlation with time:
+ * a metric rising consistently and by more than a tenth is flagged as growing, throughput falling consistently
+ * by more than a twentieth as decaying. The samples and the verdicts are written to a JSON report, and the exit status
+ * is 0 if nothing was flagged, 1 otherwise, e.g. for four hours at 500 transfers per second on 8 connections:
+ *
+ *     java -cp build transaction.client.SoakBenchmark config/TransactionServer.properties 240 500 8 binary soak-report.json
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class SoakBenchmark
+{
+    // share of the samples taken while the server warms up, not judged
+    private static final double WARM_UP_FRACTION = 0.2;
+
+    // fewest samples after the warm-up a trend is judged on
+    private static final int MIN_SAMPLES = 6;
+
+    // relative change from the first to the last third of the samples that is tolerated
+    private static final double GROWTH_TOLERANCE = 0.1;
+    private static final double DECAY_TOLERANCE = 0.05;
+
+    // Kendall's tau beyond which a series counts as rising or falling consistently
+    private static final double MONOTONIC_TAU = 0.5;
+
+    private static int numberAccounts;
+
+    // the schedule: transfers handed out to the clients, and those the clients got around to starting
+    private static final AtomicLong tickets = new AtomicLong();
+    private static final LongAdder started = new LongAdder();
+
+    private static final LongAdder committed = new LongAdder();
+    private static final LongAdder aborted = new LongAdder();
+    private static final LatencyHistogram latencies = new LatencyHistogram();
+
+
+    /**
+     * @param args server properties file, minutes to run (default 60), transfers per second (default 500),
+     *             number of client connections (default 8), protocol binary or object (default binary)
+     *             and report file (default soak-report.json)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        String serverPropertiesFile = args.length > 0 ? args[0] : "config/TransactionServer.properties";
+        double minutes = args.length > 1 ? Double.parseDouble(args[1]) : 60;
+        int rate = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int clients = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        boolean binary = args.length > 4 ? !args[4].equals("object") : true;
+        String reportFile = args.length > 5 ? args[5] : "soak-report.json";
+
+        // the server's configuration, not printing per transaction, which would dwarf everything else over hours
+        Properties serverProperties = new PropertyHandler(serverPropertiesFile);
+        serverProperties.setProperty("TRANSACTION_VIEW", "false");
+        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS").trim());
+        String host = serverProperties.getProperty("HOST").trim();
+        int port = Integer.parseInt(serverProperties.getProperty("PORT").trim());
+
+        Path soakPropertiesFile = Files.createTempFile("SoakBenchmark", ".properties");
+        try (OutputStream out = new FileOutputStream(soakPropertiesFile.toFile()))
+        {
+            serverProperties.store(out, "SoakBenchmark");
+        }
+
+        Thread server = new Thread(new TransactionServer(soakPropertiesFile.toString()), "TransactionServer");
+        server.start();
+        Files.delete(soakPropertiesFile);
+
+        // some 360 samples an hour, at least a dozen per run, the last one well before the clients wind down
+        long durationNanos = (long) (minutes * 60e9);
+        long sampleNanos = Math.max(Math.min(10_000_000_000L, durationNanos / 13), 1_000_000_000L);
+        long periodNanos = 1_000_000_000L / rate;
+
+        System.out.println("[SoakBenchmark.main] Running " + minutes + " minutes at " + rate + " transfers/s on " + clients + " "
+                + (binary ? "binary" : "object stream") + " connections, sampling every " + sampleNanos / 1_000_000_000L + " s");
+
+        long start = System.nanoTime();
+        long end = start + durationNanos;
+        ArrayList<Thread> clientThreads = new ArrayList<>();
+        for (int client = 0; client < clients; client++)
+        {
+            Thread clientThread = new Thread(() -> runTransfers(binary, host, port, start, end, periodNanos), "SoakClient");
+            clientThread.setDaemon(true);
+            clientThread.start();
+            clientThreads.add(clientThread);
+        }
+
+        ArrayList<LinkedHashMap<String, Double>> samples = new ArrayList<>();
+        long lastSample = start;
+        long lastCommitted = 0;
+        long lastAborted = 0;
+        for (long due = start + sampleNanos; due + sampleNanos / 2 <= end; due += sampleNanos)
+        {
+            pauseUntil(due);
+            long now = System.nanoTime();
+            long committedNow = committed.sum();
+            long abortedNow = aborted.sum();
+
+            samples.add(sample(now - start, now - lastSample, committedNow - lastCommitted, abortedNow - lastAborted,
+                    Math.max((now - start) / periodNanos - started.sum(), 0), rate));
+            lastSample = now;
+            lastCommitted = committedNow;
+            lastAborted = abortedNow;
+        }
+
+        for (Thread clientThread : clientThreads)
+        {
+            clientThread.join();
+        }
+        TransactionServer.shutDown();
+        server.join();
+
+        // judge the trends past the warm-up
+        LinkedHashMap<String, String[]> trends = new LinkedHashMap<>();
+        ArrayList<String> flagged = new ArrayList<>();
+        int warmUp = (int) (samples.size() * WARM_UP_FRACTION);
+        if (samples.size() - warmUp >= MIN_SAMPLES)
+        {
+            for (String metric : samples.get(0).keySet())
+            {
+                String verdict = judge(metric, samples.subList(warmUp, samples.size()), rate, trends);
+                if (verdict != null && !verdict.equals("stable"))
+                {
+                    flagged.add(metric + " " + verdict);
+                }
+            }
+        }
+        else
+        {
+            System.out.println("[SoakBenchmark.main] Only " + (samples.size() - warmUp) + " samples past the warm-up, at least " + MIN_SAMPLES + " are needed to judge trends");
+        }
+
+        writeReport(reportFile, minutes, rate, clients, binary, sampleNanos, samples, trends, flagged);
+
+        System.out.println("[SoakBenchmark.main] " + (committed.sum() + aborted.sum()) + " transfers (" + committed.sum() + " committed) in "
+                + samples.size() + " samples, report written to " + reportFile);
+        System.out.println("[SoakBenchmark.main] " + (flagged.isEmpty() ? "Nothing grew or decayed" : "Flagged: " + String.join(", ", flagged)));
+
+        System.exit(flagged.isEmpty() ? 0 : 1);
+    }
+
+
+    /**
+     * Helper running transfers on one connection as the schedule hands them out, until the end of the run
+     *
+     * @param binary whether to talk the binary protocol on one connection, rather than serialized messages
+     *               on a connection per transaction
+     * @param host IP address of the server, or unix:<path> of its Unix domain socket
+     * @param port port number of the server
+     * @param start start of the schedule, as of System.nanoTime()
+     * @param end end of the schedule
+     * @param periodNanos time between two transfers of the schedule
+     */
+    private static void runTransfers(boolean binary, String host, int port, long start, long end, long periodNanos)
+    {
+        TransactionServerProxy transaction = binary ? new BinaryTransactionServerProxy(host, port) : new TransactionServerProxy(host, port);
+
+        while (true)
+        {
+            long due = start + tickets.getAndIncrement() * periodNanos;
+            if (due >= end)
+            {
+                break;
+            }
+            pauseUntil(due);
+            started.increment();
+
+            int accountFrom = ThreadLocalRandom.current().nextInt(numberAccounts);
+            int accountTo = (accountFrom + 1 + ThreadLocalRandom.current().nextInt(Math.max(numberAccounts - 1, 1))) % numberAccounts;
+
+            transaction.openTransaction();
+            transaction.write(accountFrom, transaction.read(accountFrom) - 1);
+            transaction.write(accountTo, transaction.read(accountTo) + 1);
+
+            if (transaction.closeTransaction() == TransactionServerProxy.TRANSACTION_COMMITTED)
+            {
+                committed.increment();
+            }
+            else
+            {
+                aborted.increment();
+            }
+            latencies.add((System.nanoTime() - due) / 1000);
+        }
+
+        if (binary)
+        {
+            ((BinaryTransactionServerProxy) transaction).disconnect();
+        }
+    }
+
+
+    /**
+     * Helper taking a sample and printing its gist
+     *
+     * @param elapsedNanos time since the start
+     * @param intervalNanos time since the last sample
+     * @param intervalCommitted transfers committed since the last sample
+     * @param intervalAborted transfers aborted since the last sample
+     * @param backlog transfers due, but not started yet
+     * @param rate transfers per second scheduled
+     * @return the sample, metric by metric
+     */
+    private static LinkedHashMap<String, Double> sample(long elapsedNanos, long intervalNanos, long intervalCommitted, long intervalAborted, long backlog, int rate)
+    {
+        LatencyHistogram interval = latencies.takeInterval();
+        LinkedHashMap<String, Double> sample = new LinkedHashMap<>();
+
+        sample.put("elapsedSeconds", elapsedNanos / 1e9);
+        sample.put("throughput", (intervalCommitted + intervalAborted) / (intervalNanos / 1e9));
+        sample.put("abortRate", intervalCommitted + intervalAborted == 0 ? 0.0 : (double) intervalAborted / (intervalCommitted + intervalAborted));
+        sample.put("backlog", (double) backlog);
+        sample.put("latencyP50Ms", interval.percentile(0.5) / 1000.0);
+        sample.put("latencyP99Ms", interval.percentile(0.99) / 1000.0);
+        sample.put("latencyMaxMs", interval.getMax() / 1000.0);
+
+        // what is left after a full collection is what the server holds on to
+        System.gc();
+        sample.put("heapAfterGcBytes", (double) ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+        sample.put("threads", (double) ManagementFactory.getThreadMXBean().getThreadCount());
+
+        TransactionManager branch;
+        for (int branchID = 0; (branch = TransactionServer.getBranch(branchID)) != null; branchID++)
+        {
+            String prefix = TransactionServer.getBranch(1) != null ? branch.getBranchName() + "." : "";
+            for (Map.Entry<String, Long> size : branch.getCollectionSizes().entrySet())
+            {
+                sample.put(prefix + size.getKey(), (double) size.getValue());
+            }
+        }
+
+        System.out.println(String.format(Locale.ROOT, "[SoakBenchmark.sample] %.0f s: %.0f transfers/s of %d, %.1f%% aborted, backlog %d, p99 %.2f ms, heap %.1f MB, %d threads",
+                sample.get("elapsedSeconds"), sample.get("throughput"), rate, sample.get("abortRate") * 100, backlog,
+                sample.get("latencyP99Ms"), sample.get("heapAfterGcBytes") / (1 << 20), sample.get("threads").intValue()));
+        return sample;
+    }
+
+
+    /**
+     * Helper judging the trend of a metric, throughput is expected not to fall, latencies, backlog, heap, threads
+     * and collection sizes not to rise, the others are not judged
+     *
+     * @param metric the metric
+     * @param samples the samples past the warm-up
+     * @param rate transfers per second scheduled
+     * @param trends the trends judged so far, to add this one to: first and last third's mean, slope per hour, Kendall's tau and verdict
+     * @return stable, growing or decaying, null if not judged
+     */
+    private static String judge(String metric, List<LinkedHashMap<String, Double>> samples, int rate, LinkedHashMap<String, String[]> trends)
+    {
+        boolean decay = metric.equals("throughput");
+
+        // changes below these are noise, whatever their share: a megabyte of heap, a millisecond, a second's worth of backlog, a couple of entries
+        double floor;
+        if (metric.equals("heapAfterGcBytes"))
+        {
+            floor = 1 << 20;
+        }
+        else if (metric.startsWith("latencyP"))
+        {
+            floor = 1;
+        }
+        else if (metric.equals("backlog"))
+        {
+            floor = rate;
+        }
+        else if (decay)
+        {
+            floor = 0;
+        }
+        else if (metric.equals("elapsedSeconds") || metric.equals("abortRate") || metric.equals("latencyMaxMs"))
+        {
+            return null;
+        }
+        else
+        {
+            floor = 2;
+        }
+
+        int n = samples.size();
+        double[] times = new double[n];
+        double[] values = new double[n];
+        for (int index = 0; index < n; index++)
+        {
+            times[index] = samples.get(index).get("elapsedSeconds");
+            values[index] = samples.get(index).get(metric);
+        }
+
+        int third = n / 3;
+        double first = mean(values, 0, third);
+        double last = mean(values, n - third, n);
+        double tau = kendallTau(values);
+        double change = last - first;
+
+        String verdict = "stable";
+        if (!decay && change > floor && change > Math.abs(first) * GROWTH_TOLERANCE && tau > MONOTONIC_TAU)
+        {
+            verdict = "growing";
+        }
+        else if (decay && -change > first * DECAY_TOLERANCE && tau < -MONOTONIC_TAU)
+        {
+            verdict = "decaying";
+        }
+
+        trends.put(metric, new String[] { number(first), number(last), number(slope(times, values) * 3600), number(tau), verdict });
+        return verdict;
+    }
+
+
+    private static double mean(double[] values, int from, int to)
+    {
+        double sum = 0;
+        for (int index = from; index < to; index++)
+        {
+            sum += values[index];
+        }
+        return sum / Math.max(to - from, 1);
+    }
+
+
+    /**
+     * @return the least squares slope of the values over the times, per second
+     */
+    private static double slope(double[] times, double[] values)
+    {
+        double meanTime = mean(times, 0, times.length);
+        double meanValue = mean(values, 0, values.length);
+        double covariance = 0;
+        double variance = 0;
+
+        for (int index = 0; index < times.length; index++)
+        {
+            covariance += (times[index] - meanTime) * (values[index] - meanValue);
+            variance += (times[index] - meanTime) * (times[index] - meanTime);
+        }
+        return variance == 0 ? 0 : covariance / variance;
+    }
+
+
+    /**
+     * @return Kendall's rank correlation of the values with their order, 1 if each value exceeds all before it,
+     *         -1 if each falls below all before it, about 0 without a trend
+     */
+    private static double kendallTau(double[] values)
+    {
+        long concordant = 0;
+        long discordant = 0;
+
+        for (int earlier = 0; earlier < values.length; earlier++)
+        {
+            for (int later = earlier + 1; later < values.length; later++)
+            {
+                if (values[later] > values[earlier])
+                {
+                    concordant++;
+                }
+                else if (values[later] < values[earlier])
+                {
+                    discordant++;
+                }
+            }
+        }
+
+        long pairs = (long) values.length * (values.length - 1) / 2;
+        return pairs == 0 ? 0 : (double) (concordant - discordant) / pairs;
+    }
+
+
+    /**
+     * Helper writing the report: the run's configuration, all samples, the trends judged and what was flagged
+     */
+    private static void writeReport(String reportFile, double minutes, int rate, int clients, boolean binary, long sampleNanos,
+            ArrayList<LinkedHashMap<String, Double>> samples, LinkedHashMap<String, String[]> trends, ArrayList<String> flagged) throws IOException
+    {
+        StringBuilder report = new StringBuilder();
+
+        report.append("{\n  \"configuration\": {")
+                .append("\"minutes\": ").append(number(minutes))
+                .append(", \"transfersPerSecond\": ").append(rate)
+                .append(", \"clients\": ").append(clients)
+                .append(", \"protocol\": \"").append(binary ? "binary" : "object").append('"')
+                .append(", \"sampleSeconds\": ").append(sampleNanos / 1_000_000_000L)
+                .append(", \"warmUpSamples\": ").append((int) (samples.size() * WARM_UP_FRACTION))
+                .append("},\n  \"samples\": [");
+
+        for (int index = 0; index < samples.size(); index++)
+        {
+            report.append(index == 0 ? "\n    {" : ",\n    {");
+            String separator = "";
+            for (Map.Entry<String, Double> metric : samples.get(index).entrySet())
+            {
+                report.append(separator).append(quote(metric.getKey())).append(": ").append(number(metric.getValue()));
+                separator = ", ";
+            }
+            report.append('}');
+        }
+
+        report.append("\n  ],\n  \"trends\": {");
+        String separator = "\n    ";
+        for (Map.Entry<String, String[]> trend : trends.entrySet())
+        {
+            String[] figures = trend.getValue();
+            report.append(separator).append(quote(trend.getKey()))
+                    .append(": {\"first\": ").append(figures[0])
+                    .append(", \"last\": ").append(figures[1])
+                    .append(", \"slopePerHour\": ").append(figures[2])
+                    .append(", \"kendallTau\": ").append(figures[3])
+                    .append(", \"verdict\": \"").append(figures[4]).append("\"}");
+            separator = ",\n    ";
+        }
+
+        report.append("\n  },\n  \"flagged\": [");
+        separator = "";
+        for (String flag : flagged)
+        {
+            report.append(separator).append(quote(flag));
+            separator = ", ";
+        }
+        report.append("],\n  \"passed\": ").append(flagged.isEmpty()).append("\n}\n");
+
+        try (Writer out = new FileWriter(reportFile))
+        {
+            out.write(report.toString());
+        }
+    }
+
+
+    private static String number(double value)
+    {
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : String.format(Locale.ROOT, "%.4f", value);
+    }
+
+
+    private static String quote(String text)
+    {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+
+    /**
+     * Helper waiting until a point in time
+     *
+     * @param nanos the point in time, as of System.nanoTime()
+     */
+    private static void pauseUntil(long nanos)
+    {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package transaction.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import transaction.comm.MessageTypes;
+import transaction.comm.TransactionTrace;
+import transaction.comm.UnixDomainSocket;
+import utils.PropertyHandler;
+
+
+/**
+ * Class [TraceReplay] Feeds a workload trace recorded by a server with TRACE_FILE set back to a server, so server
+ * versions and configurations can be compared on the same traffic, e.g.
+ *
+ *     java -cp build transaction.client.TraceReplay trace.bin config/TransactionClient.properties config/TransactionServer.properties
+ *
+ * Transactions are started in the order they were opened and run on REPLAY_CONNECTIONS threads, each with a proxy
+ * of its own, over the binary protocol if BINARY_PROTOCOL is set. REPLAY_SPEED 1 starts them at their original pace,
+ * with their original pauses between operations, 2 twice as fast and so on, and 0 as fast as the server takes them.
+ * A transaction the threads are too busy to start in time starts late, which is reported.
+ *
+ * Reads are replayed as they were. A write puts the recorded delta on the balance the replayed transaction saw
+ * of the account before, so transfers move the same amounts as in the trace, and the balance recorded if it saw none.
+ * Transactions aborted by their client or abandoned in the trace are aborted after their last operation,
+ * all others are closed and may commit or abort depending on what else runs. Reported are throughput, aborts and
+ * the latency of transactions from opening to their end, next to the figures of the trace.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TraceReplay implements MessageTypes
+{
+    // transactions read ahead, to start them in the order they were opened, the trace holding them in the order they ended
+    private static final int REORDER_WINDOW = 4096;
+
+    private final String host;
+    private final int port;
+    private final double speed;
+
+    // the threads replaying transactions, and permits for as many transactions as there are threads
+    private final ExecutorService replayers;
+    private final Semaphore replayerPermits;
+
+    // a proxy per thread, all of them to disconnect in the end
+    private final ThreadLocal<TransactionServerProxy> proxies;
+    private final ConcurrentLinkedQueue<TransactionServerProxy> allProxies = new ConcurrentLinkedQueue<>();
+
+    // outcomes of the replay
+    private final LongAdder committed = new LongAdder();
+    private final LongAdder aborted = new LongAdder();
+    private final LongAdder abortedAsTraced = new LongAdder();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LatencyHistogram tracedLatencies = new LatencyHistogram();
+
+    // transactions started more than a millisecond after they were due, and the longest delay in microseconds
+    private final LongAdder late = new LongAdder();
+    private final AtomicLong maxDelay = new AtomicLong();
+
+
+    /**
+     * Constructor
+     *
+     * @param host IP address of the server, or unix:<path> of its Unix domain socket
+     * @param port port number of the server
+     * @param binaryProtocol whether to talk the binary protocol, rather than serialized messages
+     * @param speed pace relative to the trace, 0 for as fast as possible
+     * @param connections number of transactions replayed concurrently, each on its own proxy
+     */
+    public TraceReplay(String host, int port, boolean binaryProtocol, double speed, int connections)
+    {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+
+        replayers = Executors.newFixedThreadPool(connections, runnable -> {
+            Thread thread = new Thread(runnable, "TraceReplay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        replayerPermits = new Semaphore(connections);
+
+        proxies = ThreadLocal.withInitial(() -> {
+            TransactionServerProxy proxy = binaryProtocol ? new BinaryTransactionServerProxy(host, port) : new TransactionServerProxy(host, port);
+            allProxies.add(proxy);
+            return proxy;
+        });
+    }
+
+
+    /**
+     * @param args trace file, client properties file (default config/TransactionClient.properties)
+     *             and server properties file for the server's address (default config/TransactionServer.properties)
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: java transaction.client.TraceReplay <trace file> [<client properties>] [<server properties>]");
+            System.exit(1);
+        }
+        Properties clientProperties = new PropertyHandler(args.length > 1 ? args[1] : "config/TransactionClient.properties");
+        Properties serverProperties = new PropertyHandler(args.length > 2 ? args[2] : "config/TransactionServer.properties");
+
+        TraceReplay replay = new TraceReplay(serverProperties.getProperty("HOST").trim(),
+                Integer.parseInt(serverProperties.getProperty("PORT").trim()),
+                Boolean.parseBoolean(clientProperties.getProperty("BINARY_PROTOCOL", "false").trim()),
+                Double.parseDouble(clientProperties.getProperty("REPLAY_SPEED", "1").trim()),
+                Integer.parseInt(clientProperties.getProperty("REPLAY_CONNECTIONS", "256").trim()));
+
+        replay.replay(args[0]);
+        System.exit(0);
+    }
+
+
+    /**
+     * Replays a trace, returning once all its transactions ended, and prints the report
+     *
+     * @param traceFile the trace
+     */
+    public void replay(String traceFile) throws IOException, InterruptedException
+    {
+        PriorityQueue<TransactionTrace> window = new PriorityQueue<>(REORDER_WINDOW, Comparator.comparingLong(TransactionTrace::getOpened));
+
+        // figures of the trace, to compare the replay with
+        long traced = 0;
+        long tracedCommitted = 0;
+        long tracedAborted = 0;
+        long firstOpened = -1;
+        long lastOpened = 0;
+
+        System.out.println("[TraceReplay.replay] Replaying " + traceFile + " to " + host + (UnixDomainSocket.isUnix(host) ? "" : ":" + port)
+                + (speed > 0 ? " at " + speed + " times the original pace" : " as fast as possible"));
+
+        long start = System.nanoTime();
+        long lastReport = start;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 1 << 16)))
+        {
+            TransactionTrace.readHeader(in);
+
+            boolean more = true;
+            while (more || !window.isEmpty())
+            {
+                while (more && window.size() < REORDER_WINDOW)
+                {
+                    TransactionTrace read = TransactionTrace.read(in);
+                    if (read == null)
+                    {
+                        more = false;
+                    }
+                    else
+                    {
+                        window.add(read);
+                    }
+                }
+                if (window.isEmpty())
+                {
+                    break;
+                }
+
+                TransactionTrace trace = window.poll();
+                if (firstOpened < 0)
+                {
+                    firstOpened = trace.getOpened();
+                }
+                lastOpened = Math.max(lastOpened, trace.getOpened());
+                tracedLatencies.add(trace.getDuration());
+                traced++;
+                if (trace.getOutcome() == TransactionTrace.COMMITTED)
+                {
+                    tracedCommitted++;
+                }
+                else if (trace.getOutcome() == TransactionTrace.ABORTED)
+                {
+                    tracedAborted++;
+                }
+
+                // wait for the transaction to be due, and for a thread to run it
+                long due = speed > 0 ? start + (long) ((trace.getOpened() - firstOpened) * 1000 / speed) : System.nanoTime();
+                pauseUntil(due);
+                replayerPermits.acquire();
+
+                long delay = (System.nanoTime() - due) / 1000;
+                if (speed > 0 && delay > 1000)
+                {
+                    late.increment();
+                    maxDelay.accumulateAndGet(delay, Math::max);
+                }
+
+                replayers.execute(() -> {
+                    try
+                    {
+                        replay(trace);
+                    }
+                    finally
+                    {
+                        replayerPermits.release();
+                    }
+                });
+
+                if (System.nanoTime() - lastReport > TimeUnit.SECONDS.toNanos(5))
+                {
+                    lastReport = System.nanoTime();
+                    System.out.println("[TraceReplay.replay] " + traced + " transactions started, " + (committed.sum() + aborted.sum() + abortedAsTraced.sum()) + " ended");
+                }
+            }
+        }
+
+        replayers.shutdown();
+        replayers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (TransactionServerProxy proxy : allProxies)
+        {
+            if (proxy instanceof BinaryTransactionServerProxy)
+            {
+                ((BinaryTransactionServerProxy) proxy).disconnect();
+            }
+        }
+
+        // the trace's pace is the span of openings, the replay's the time until the last transaction ended
+        double tracedSeconds = Math.max(lastOpened - Math.max(firstOpened, 0), 1) / 1e6;
+        long closed = committed.sum() + aborted.sum();
+
+        System.out.println("[TraceReplay.replay] Replayed " + traced + " transactions in " + String.format("%.1f s, %,.0f transactions/s", seconds, traced / seconds)
+                + String.format(" (trace: %.1f s, %,.0f transactions/s)", tracedSeconds, traced / tracedSeconds));
+        System.out.println("[TraceReplay.replay] Committed " + committed.sum() + ", aborted " + aborted.sum()
+                + String.format(" (%.2f%%", closed == 0 ? 0.0 : aborted.sum() * 100.0 / closed)
+                + String.format(", trace: %.2f%%)", tracedCommitted + tracedAborted == 0 ? 0.0 : tracedAborted * 100.0 / (tracedCommitted + tracedAborted))
+                + (abortedAsTraced.sum() > 0 ? ", " + abortedAsTraced.sum() + " aborted by the client or abandoned as in the trace" : ""));
+        System.out.println("[TraceReplay.replay] Latency " + latencies);
+        System.out.println("[TraceReplay.replay] Latency in the trace " + tracedLatencies);
+        if (late.sum() > 0)
+        {
+            System.out.println("[TraceReplay.replay] " + late.sum() + " transactions started late, by up to " + String.format("%.1f ms", maxDelay.get() / 1000.0)
+                    + ", more REPLAY_CONNECTIONS may be needed");
+        }
+    }
+
+
+    /**
+     * Helper replaying one transaction on the calling thread's proxy
+     *
+     * @param trace the transaction
+     */
+    private void replay(TransactionTrace trace)
+    {
+        TransactionServerProxy proxy = proxies.get();
+        proxy.setBranch(trace.getBranch());
+
+        // balances this transaction saw, read or written
+        HashMap<Integer, Integer> seen = new HashMap<>();
+
+        long opened = System.nanoTime();
+        proxy.openTransaction();
+
+        for (int index = 0; index < trace.getNumberOperations(); index++)
+        {
+            if (speed > 0)
+            {
+                pauseUntil(opened + (long) (trace.getArrival(index) * 1000L / speed));
+            }
+
+            int accountNumber = trace.getAccountNumber(index);
+            switch (trace.getType(index))
+            {
+                case READ_REQUEST:
+                    seen.put(accountNumber, proxy.read(accountNumber));
+                    break;
+
+                case WRITE_REQUEST:
+                    Integer before = seen.get(accountNumber);
+                    int balance = before != null ? before + trace.getDelta(index) : trace.getValue(index);
+                    proxy.write(accountNumber, balance);
+                    seen.put(accountNumber, balance);
+                    break;
+
+                case DEPOSIT_REQUEST:
+                    int amount = trace.getValue(index);
+                    proxy.deposit(accountNumber, amount);
+                    seen.computeIfPresent(accountNumber, (account, seenBalance) -> seenBalance + amount);
+                    break;
+
+                default:
+                    System.err.println("[TraceReplay.replay] Skipping operation of unknown type " + trace.getType(index));
+            }
+        }
+
+        if (speed > 0)
+        {
+            pauseUntil(opened + (long) (trace.getDuration() * 1000L / speed));
+        }
+
+        if (trace.getOutcome() == TransactionTrace.ABORTED_BY_CLIENT || trace.getOutcome() == TransactionTrace.ABANDONED)
+        {
+            proxy.abortTransaction();
+            abortedAsTraced.increment();
+        }
+        else if (proxy.closeTransaction() == TRANSACTION_COMMITTED)
+        {
+            committed.increment();
+        }
+        else
+        {
+            aborted.increment();
+        }
+
+        latencies.add((System.nanoTime() - opened) / 1000);
+    }
+
+
+    /**
+     * Helper waiting until a point in time
+     *
+     * @param nanos the point in time, as of System.nanoTime()
+     */
+    private static void pauseUntil(long nanos)
+    {
+        long wait;
+        while ((wait = nanos - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
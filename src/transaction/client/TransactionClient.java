@@ -1,17 +1,21 @@
 package transaction.client;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import transaction.comm.Message;
+import transaction.comm.UnixDomainSocket;
 import static transaction.comm.MessageTypes.SHUTDOWN;
 import static transaction.comm.MessageTypes.TRANSACTION_ABORTED;
 import static transaction.comm.MessageTypes.TRANSACTION_COMMITTED;
+import static transaction.comm.MessageTypes.TRANSACTION_IN_DOUBT;
 import utils.PropertyHandler;
 import static utils.TerminalColors.ABORT_COLOR;
 import static utils.TerminalColors.COMMIT_COLOR;
@@ -33,9 +37,27 @@ public class TransactionClient extends Thread {
     public static String host;
     public static int port;
 
+    // comma separated <host>:<port> of all shards, empty if not sharded
+    public static String shards = "";
+
     public ArrayList<Thread> threads = new ArrayList<>();
     public static boolean restartTransactions = true;
 
+    // talk the binary protocol, one connection carrying a transaction and all its restarts
+    public static boolean binaryProtocol = false;
+
+    // run all transactions concurrently on this many event loops instead of a thread each, 0 for a thread each
+    public static int asyncEventLoops = 0;
+
+    // client-side read cache shared by all transactions, null if reads always go to the server
+    public static ReadCache readCache = null;
+
+    // submit all transfers in bulk, in chunks of this many transfers, 0 for a transaction each
+    public static int bulkChunkSize = 0;
+
+    // the branch of the server all transactions run on, 0 for the default branch
+    public static int branch = 0;
+
     /**
      * Default Constructor
      *
@@ -51,6 +73,7 @@ public class TransactionClient extends Thread {
             serverProperties = new PropertyHandler(serverPropertiesFile);
             host = serverProperties.getProperty("HOST");
             port = Integer.parseInt(serverProperties.getProperty("PORT"));
+            shards = serverProperties.getProperty("SHARDS", "").trim();
             
             numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS"));
             initialBalance = Integer.parseInt(serverProperties.getProperty("INITIAL_BALANCE"));
@@ -59,6 +82,13 @@ public class TransactionClient extends Thread {
             numberTransactions  = Integer.parseInt(clientProperties.getProperty("NUMBER_TRANSACTIONS"));
             restartTransactions = Boolean.valueOf(clientProperties.getProperty("RESTART_TRANSACTIONS"));
             sleepMilliseconds   = Integer.parseInt(clientProperties.getProperty("SLEEP_MILLISECONDS"));
+            binaryProtocol      = Boolean.parseBoolean(clientProperties.getProperty("BINARY_PROTOCOL", "false").trim());
+            asyncEventLoops     = Integer.parseInt(clientProperties.getProperty("ASYNC_EVENT_LOOPS", "0").trim());
+            bulkChunkSize       = Integer.parseInt(clientProperties.getProperty("BULK_CHUNK_SIZE", "0").trim());
+            branch              = Integer.parseInt(clientProperties.getProperty("BRANCH", "0").trim());
+            if (Boolean.parseBoolean(clientProperties.getProperty("READ_CACHE", "false").trim())) {
+                readCache = new ReadCache();
+            }
         } catch (IOException | NumberFormatException ex) {
             // whatever
             System.err.println("Error loading properties: " + ex.getMessage());
@@ -83,34 +113,138 @@ public class TransactionClient extends Thread {
         Socket serverConnection;
         ObjectOutputStream writeToNet;
 
-        // create all the threads that execute transactions
-        for (transactionCounter = 0; transactionCounter < numberTransactions; transactionCounter++) {
-            currentThread = new TransactionThread();
-            threads.add(currentThread);
-            currentThread.start();
+        if (bulkChunkSize > 0 && shards.isEmpty()) {
+            runBulk();
+        } else if (asyncEventLoops > 0 && shards.isEmpty()) {
+            runAsync();
+        } else {
+            // create all the threads that execute transactions
+            for (transactionCounter = 0; transactionCounter < numberTransactions; transactionCounter++) {
+                currentThread = new TransactionThread();
+                threads.add(currentThread);
+                currentThread.start();
+            }
+
+            // joining all threads, don't want to finish prematurely
+            Iterator<Thread> threadIterator = threads.iterator();
+            while (threadIterator.hasNext()) {
+                try {
+                    threadIterator.next().join();
+                } catch (InterruptedException ex) {
+                    Logger.getLogger(TransactionClient.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
         }
 
-        // joining all threads, don't want to finish prematurely
-        Iterator<Thread> threadIterator = threads.iterator();
-        while (threadIterator.hasNext()) {
+        System.out.println("============================================================= WE ARE DONE, SHUTTING DOWN =============================================================");
+        if (readCache != null) {
+            System.out.println(readCache);
+        }
+
+        // the branch total, read while nothing commits anymore it is the same as the one the server prints
+        TransactionServerProxy branchServer = shards.isEmpty() ? new TransactionServerProxy(host, port) : new ShardedTransactionServerProxy(shards, numberAccounts);
+        branchServer.setBranch(shards.isEmpty() && bulkChunkSize == 0 ? branch : 0);
+        System.out.println("Branch total: " + branchServer.branchTotal());
+
+        // here we have finished all transactions, let's shutdown server, or all shards
+        String[] serverAddresses = shards.isEmpty() ? new String[] { host + ":" + port } : shards.split(",");
+        for (String serverAddress : serverAddresses) {
             try {
-                threadIterator.next().join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(TransactionClient.class.getName()).log(Level.SEVERE, null, ex);
+                // the host may be unix:<path> itself, the port follows the last colon
+                int portIndex = serverAddress.trim().lastIndexOf(':');
+                serverConnection = UnixDomainSocket.connect(serverAddress.trim().substring(0, portIndex), Integer.parseInt(serverAddress.trim().substring(portIndex + 1)));
+                writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
+                writeToNet.writeObject(new Message(SHUTDOWN, null));
+                // wait for the server's stream header before hanging up, over a Unix domain socket writing it
+                // to a connection closed already fails, and the server would never get to read the message
+                new ObjectInputStream(serverConnection.getInputStream());
+                serverConnection.close();
+            } catch (IOException ex) {
+                System.err.println("[TransactionServerProxy.openTransaction] Error occurred");
             }
         }
+    }
 
-        System.out.println("============================================================= WE ARE DONE, SHUTTING DOWN =============================================================");
+    /**
+     * Submits all transfers in bulk, the server running and restarting them
+     */
+    private void runBulk() {
+        BulkTransferProxy bulk = new BulkTransferProxy(host, port, bulkChunkSize);
+        bulk.setFailedTransfers(transfer -> System.out.println("\tTransfer $" + transfer[2] + ": " + transfer[0] + "->" + transfer[1] + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR));
+
+        for (int transactionCounter = 0; transactionCounter < numberTransactions; transactionCounter++) {
+            int accountFrom = (int) Math.floor(Math.random() * numberAccounts);
+            int accountTo = (int) Math.floor(Math.random() * numberAccounts);
+            int amount = (int) Math.ceil(Math.random() * initialBalance);
+
+            bulk.transfer(accountFrom, accountTo, amount);
+        }
+        bulk.close();
+
+        System.out.println("Bulk submission of " + numberTransactions + " transfers, " + bulk.getCommitted() + " " + COMMIT_COLOR + "COMMITTED" + RESET_COLOR + ", " + bulk.getFailed() + " given up on");
+    }
 
-        // here we have finished all transactions, let's shutdown server
+    /**
+     * Runs all transactions at once through the asynchronous proxy, without a thread per transaction
+     */
+    private void runAsync() {
+        AsyncTransactionServerProxy proxy;
         try {
-            serverConnection = new Socket(host, port);
-            writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
-            writeToNet.writeObject(new Message(SHUTDOWN, null));
-            serverConnection.close();
+            proxy = new AsyncTransactionServerProxy(host, port, asyncEventLoops);
+            proxy.setBranch(branch);
         } catch (IOException ex) {
-            System.err.println("[TransactionServerProxy.openTransaction] Error occurred");
+            System.err.println("Error starting event loops: " + ex.getMessage());
+            return;
+        }
+
+        CompletableFuture<?>[] transfers = new CompletableFuture<?>[numberTransactions];
+        for (int transactionCounter = 0; transactionCounter < numberTransactions; transactionCounter++) {
+            int accountFrom = (int) Math.floor(Math.random() * numberAccounts);
+            int accountTo = (int) Math.floor(Math.random() * numberAccounts);
+            int amount = (int) Math.ceil(Math.random() * initialBalance);
+
+            transfers[transactionCounter] = runAsyncTransfer(proxy, accountFrom, accountTo, amount, 0);
         }
+
+        try {
+            CompletableFuture.allOf(transfers).join();
+        } catch (RuntimeException ex) {
+            System.err.println("Error in asynchronous transaction: " + ex.getMessage());
+        }
+        proxy.close();
+    }
+
+    /**
+     * Helper running one transfer asynchronously, restarting it if it aborted
+     *
+     * @return the future of the final status
+     */
+    private CompletableFuture<Integer> runAsyncTransfer(AsyncTransactionServerProxy proxy, int accountFrom, int accountTo, int amount, int priorTransactionID) {
+        return proxy.openTransaction().thenCompose(transaction -> {
+            int transactionID = transaction.getTransactionID();
+
+            // check if we are here the first time or in a restart
+            if (priorTransactionID == 0) {
+                System.out.println("Transaction #" + transactionID + " started, transfer $" + amount + ": " + accountFrom + "->" + accountTo);
+            } else {
+                System.out.println("\t\tPrior transaction #" + priorTransactionID + " " + RESTARTED_COLOR + "RESTARTED" + RESET_COLOR + " as transaction #" + transactionID + ", transfer $" + amount + ": " + accountFrom + "->" + accountTo);
+            }
+
+            return transaction.read(accountFrom)
+                    .thenCompose(balance -> transaction.write(accountFrom, balance - amount))
+                    .thenCompose(priorBalance -> transaction.read(accountTo))
+                    .thenCompose(balance -> transaction.write(accountTo, balance + amount))
+                    .thenCompose(priorBalance -> transaction.closeTransaction())
+                    .thenCompose(returnStatus -> {
+                        if (returnStatus == TRANSACTION_COMMITTED) {
+                            System.out.println("Transaction #" + transactionID + " " + COMMIT_COLOR + "COMMITTED" + RESET_COLOR);
+                            return CompletableFuture.completedFuture(returnStatus);
+                        }
+
+                        System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR);
+                        return restartTransactions ? runAsyncTransfer(proxy, accountFrom, accountTo, amount, transactionID) : CompletableFuture.completedFuture(returnStatus);
+                    });
+        });
     }
 
     /**
@@ -143,10 +277,17 @@ public class TransactionClient extends Thread {
             accountTo = (int) Math.floor(Math.random() * numberAccounts);
             amount = (int) Math.ceil(Math.random() * initialBalance);
             
+            // over the binary protocol one connection is kept for all restarts
+            BinaryTransactionServerProxy binaryConnection = binaryProtocol && shards.isEmpty() ? new BinaryTransactionServerProxy(host, port) : null;
+
             // running in a loop, in case the same transaction needs to be restarted
             do {
-                // open transaction
-                TransactionServerProxy transaction = new TransactionServerProxy(host, port);
+                // open transaction, a sharded account space only has the default branch
+                TransactionServerProxy transaction = binaryConnection != null ? binaryConnection
+                        : shards.isEmpty() ? new TransactionServerProxy(host, port, readCache) : new ShardedTransactionServerProxy(shards, numberAccounts);
+                if (shards.isEmpty()) {
+                    transaction.setBranch(branch);
+                }
                 transactionID = transaction.openTransaction();
 
                 // check if we are here the first time or in a restart
@@ -174,11 +315,19 @@ public class TransactionClient extends Thread {
                         System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "ABORTED" + RESET_COLOR);
                         priorTransactionID = transactionID;
                         break;
+                    case TRANSACTION_IN_DOUBT:
+                        // committed on some shards, restarting would apply the transfer twice there
+                        System.out.println("\tTransaction #" + transactionID + " " + ABORT_COLOR + "IN DOUBT" + RESET_COLOR + ", not committed on all shards");
+                        break;
                     default:
                     // cannot occur
                 }
 
-            } while ((returnStatus != TRANSACTION_COMMITTED) && restartTransactions); // get back and restart transaction, if failed
+            } while ((returnStatus != TRANSACTION_COMMITTED) && (returnStatus != TRANSACTION_IN_DOUBT) && restartTransactions); // get back and restart transaction, if failed
+
+            if (binaryConnection != null) {
+                binaryConnection.disconnect();
+            }
         }
     }
 
@@ -4,8 +4,15 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import transaction.comm.AccountAggregate;
+import transaction.comm.AccountStatistics;
 import transaction.comm.Message;
 import transaction.comm.MessageTypes;
+import transaction.comm.UnixDomainSocket;
 
 
 /**
@@ -25,10 +32,25 @@ public class TransactionServerProxy implements MessageTypes{
     private ObjectInputStream readFromNet = null;
     private Integer transactionID = 0;
 
+    // number of times the decision to commit a prepared transaction is sent before the server is given up on
+    private static final int COMMIT_ATTEMPTS = 5;
+
+    // the branch of the server transactions and administrative requests go to, 0 for the default branch
+    int branch = 0;
+
+    // client-side read cache, null if reads always go to the server
+    private ReadCache readCache = null;
+
+    // with a read cache: this transaction's view of the accounts it read or wrote, the accounts deposited into,
+    // which are read from the server, and the reads served from the cache, as pairs of account number and version
+    private final HashMap<Integer, Integer> localBalances = new HashMap<>();
+    private final HashSet<Integer> depositedAccounts = new HashSet<>();
+    private final ArrayList<Integer> cachedReads = new ArrayList<>();
+
     
     /**
      * Constructor
-     * @param host IP address of the transaction server
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
      * @param port port number of the transaction server
      */
     TransactionServerProxy(String host, int port) {
@@ -36,33 +58,81 @@ public class TransactionServerProxy implements MessageTypes{
         this.port = port;
     }
 
+
+    /**
+     * Constructor for a proxy serving reads from a client-side read cache where possible
+     * @param host IP address of the transaction server, or unix:<path> of its Unix domain socket
+     * @param port port number of the transaction server
+     * @param readCache the read cache, shared by the client's transactions
+     */
+    TransactionServerProxy(String host, int port, ReadCache readCache) {
+        this(host, port);
+        this.readCache = readCache;
+    }
+
     
+    /**
+     * Directs the transactions and administrative requests of this proxy to a branch of the server
+     * 
+     * @param branch the branch's position in the server's BRANCHES, 0 for the default branch
+     */
+    public void setBranch(int branch) {
+        this.branch = branch;
+    }
+
+
     /**
      * Opens a transaction
      * 
-     * @return the transaction ID 
+     * @return the transaction ID, -1 if the server could not be reached
      */
     public int openTransaction() {
+        localBalances.clear();
+        depositedAccounts.clear();
+        cachedReads.clear();
 
         try {
-            // open up connection to server
-            // ...
-            serverConnection = new Socket(host, port);
-
-            writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
-            readFromNet = new ObjectInputStream(serverConnection.getInputStream());
-            
-            // send OPEN_TRANSACTION message & receive transactionID
-            // leave connection open!
-            // ...
-            Message openTransactionMessage = new Message(OPEN_TRANSACTION);
-            writeToNet.writeObject(openTransactionMessage);
+            // the server may reject us when it runs too many transactions, then we retry as told
+            while (true) {
+                // open up connection to server
+                // ...
+                serverConnection = UnixDomainSocket.connect(host, port);
 
-            Message responseMessage = (Message) readFromNet.readObject();
-            transactionID = (Integer) responseMessage.getContent();
+                // an object stream writes a message in several small pieces, which must not wait for the server's delayed acknowledgement
+                serverConnection.setTcpNoDelay(true);
+                writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
+                readFromNet = new ObjectInputStream(serverConnection.getInputStream());
 
-        } catch (IOException | ClassNotFoundException e) {
+                // send OPEN_TRANSACTION message & receive transactionID
+                // leave connection open!
+                // ...
+                // with a read cache, along with the last transaction number whose writes the cache has been told about,
+                // receiving the accounts written since
+                Message openTransactionMessage = readCache == null ? new Message(OPEN_TRANSACTION) : new Message(OPEN_TRANSACTION, readCache.getSeenUpTo());
+                openTransactionMessage.setBranch(branch);
+                writeToNet.writeObject(openTransactionMessage);
+
+                Message responseMessage = (Message) readFromNet.readObject();
+                if (responseMessage.getType() != TRANSACTION_REJECTED) {
+                    if (responseMessage.getContent() instanceof int[]) {
+                        int[] reply = (int[]) responseMessage.getContent();
+                        transactionID = reply[0];
+                        readCache.invalidate(reply, 1);
+                    } else {
+                        transactionID = (Integer) responseMessage.getContent();
+                    }
+                    break;
+                }
+
+                // back off a little longer than the hint, so rejected clients do not come back all at once
+                closeConnection();
+                int retryAfterMilliseconds = (Integer) responseMessage.getContent();
+                Thread.sleep(retryAfterMilliseconds + (long) (Math.random() * retryAfterMilliseconds));
+            }
+
+        } catch (IOException | ClassNotFoundException | InterruptedException e) {
             System.err.println("Error in openTransaction: " + e.getMessage());
+            transactionID = -1;
         }
 
         return transactionID;
@@ -81,14 +151,20 @@ public class TransactionServerProxy implements MessageTypes{
         // shut down connection
         // ...
         try {
-            // Send CLOSE_TRANSACTION message to the server
-            Message closeTransactionMessage = new Message(CLOSE_TRANSACTION, transactionID);
+            // Send CLOSE_TRANSACTION message to the server, along with the reads served from the cache to be validated
+            Message closeTransactionMessage = new Message(CLOSE_TRANSACTION, readCache == null ? transactionID 
+                    : cachedReads.stream().mapToInt(Integer::intValue).toArray());
             writeToNet.writeObject(closeTransactionMessage);
 
             // Receive the transaction's final status from the server
             Message responseMessage = (Message) readFromNet.readObject();
             returnStatus = responseMessage.getType();
 
+            // evict what was written since the transaction opened, including by itself, or found out of date
+            if (readCache != null && responseMessage.getContent() instanceof int[]) {
+                readCache.invalidate((int[]) responseMessage.getContent(), 0);
+            }
+
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error in closeTransaction: " + e.getMessage());
         } 
@@ -108,6 +184,101 @@ public class TransactionServerProxy implements MessageTypes{
         return returnStatus;
     }
 
+
+    /**
+     * First phase of a two-phase commit, run by a coordinator: asks the server to validate this transaction
+     * and to hold it prepared until the decision. The connection is shut down if the transaction aborted.
+     * 
+     * @return the status, i.e. either TRANSACTION_PREPARED or TRANSACTION_ABORTED
+     */
+    public int prepareTransaction() {
+        int returnStatus = TRANSACTION_ABORTED;
+
+        try {
+            writeToNet.writeObject(new Message(PREPARE_TRANSACTION, transactionID));
+            returnStatus = ((Message) readFromNet.readObject()).getType();
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in prepareTransaction: " + e.getMessage());
+        }
+
+        if (returnStatus != TRANSACTION_PREPARED) {
+            closeConnection();
+        }
+
+        return returnStatus;
+    }
+
+
+    /**
+     * Second phase of a two-phase commit: commits this prepared transaction and shuts down the connection.
+     * If the connection is lost before the server answers, the transaction is committed over a new one,
+     * naming it by its ID, as the server holds it prepared until told what to do
+     * 
+     * @return the status, TRANSACTION_COMMITTED unless the server did not hold this transaction prepared
+     *         or could not be reached
+     */
+    public int commitTransaction() {
+        int returnStatus = TRANSACTION_ABORTED;
+
+        for (int attempt = 1; attempt <= COMMIT_ATTEMPTS; attempt++) {
+            try {
+                if (attempt > 1) {
+                    Thread.sleep(attempt * 100L);
+                    serverConnection = UnixDomainSocket.connect(host, port);
+                    serverConnection.setTcpNoDelay(true);
+                    writeToNet = new ObjectOutputStream(serverConnection.getOutputStream());
+                    readFromNet = new ObjectInputStream(serverConnection.getInputStream());
+                }
+
+                Message commitTransactionMessage = new Message(COMMIT_TRANSACTION, transactionID);
+                commitTransactionMessage.setBranch(branch);
+                writeToNet.writeObject(commitTransactionMessage);
+                returnStatus = ((Message) readFromNet.readObject()).getType();
+                break;
+
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Error in commitTransaction, attempt " + attempt + " of " + COMMIT_ATTEMPTS + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                closeConnection();
+            }
+        }
+
+        return returnStatus;
+    }
+
+
+    /**
+     * Aborts this transaction, whether prepared or not, and shuts down the connection
+     */
+    public void abortTransaction() {
+
+        try {
+            writeToNet.writeObject(new Message(ABORT_TRANSACTION, transactionID));
+        } catch (IOException e) {
+            System.err.println("Error in abortTransaction: " + e.getMessage());
+        } finally {
+            closeConnection();
+        }
+    }
+
+
+    /**
+     * Helper shutting down the connection to the server
+     */
+    private void closeConnection() {
+        try {
+            if (serverConnection != null) {
+                serverConnection.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing connection: " + e.getMessage());
+        }
+    }
+
    
     /**
      * Reading a value from an account
@@ -118,6 +289,10 @@ public class TransactionServerProxy implements MessageTypes{
     public int read(int accountNumber) {
         int balance = 0;
 
+        if (readCache != null) {
+            return readThroughCache(accountNumber);
+        }
+
         // write READ_REQUEST and receive balance
         // ...
         try {
@@ -136,6 +311,94 @@ public class TransactionServerProxy implements MessageTypes{
         return balance;
     }
 
+
+    /**
+     * Helper reading a value from an account through the read cache
+     *
+     * @param accountNumber
+     * @return the balance of the account
+     */
+    private int readThroughCache(int accountNumber) {
+        Integer localBalance = localBalances.get(accountNumber);
+        if (localBalance != null) {
+            return localBalance;
+        }
+
+        // served from the cache, the server validates the version at commit time
+        int[] cached = depositedAccounts.contains(accountNumber) ? null : readCache.get(accountNumber);
+        if (cached != null) {
+            cachedReads.add(accountNumber);
+            cachedReads.add(cached[1]);
+            localBalances.put(accountNumber, cached[0]);
+            return cached[0];
+        }
+
+        int balance = 0;
+        try {
+            writeToNet.writeObject(new Message(VERSIONED_READ_REQUEST, accountNumber));
+            int[] versionedBalance = (int[]) ((Message) readFromNet.readObject()).getContent();
+            balance = versionedBalance[0];
+
+            readCache.put(accountNumber, balance, versionedBalance[1]);
+            if (!depositedAccounts.contains(accountNumber)) {
+                localBalances.put(accountNumber, balance);
+            }
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in read: " + e.getMessage());
+        }
+
+        return balance;
+    }
+
+
+
+    /**
+     * Reading a number of accounts in one round trip
+     *
+     * @param accountNumbers
+     * @return the balances, index by index
+     */
+    public int[] readMany(int[] accountNumbers) {
+        int[] balances = new int[accountNumbers.length];
+
+        // with a read cache, only what is neither known to this transaction nor cached goes to the server
+        int[] remoteAccountNumbers = accountNumbers;
+        if (readCache != null) {
+            remoteAccountNumbers = Arrays.stream(accountNumbers).filter(accountNumber -> !localBalances.containsKey(accountNumber) 
+                    && (depositedAccounts.contains(accountNumber) || !readCache.contains(accountNumber))).distinct().toArray();
+        }
+
+        HashMap<Integer, Integer> remoteBalances = new HashMap<>();
+        if (remoteAccountNumbers.length > 0) {
+            try {
+                writeToNet.writeObject(new Message(READ_MANY, remoteAccountNumbers));
+                int[] readBalances = (int[]) ((Message) readFromNet.readObject()).getContent();
+
+                if (readCache == null) {
+                    return readBalances;
+                }
+                for (int index = 0; index < remoteAccountNumbers.length; index++) {
+                    remoteBalances.put(remoteAccountNumbers[index], readBalances[index]);
+                    if (!depositedAccounts.contains(remoteAccountNumbers[index])) {
+                        localBalances.put(remoteAccountNumbers[index], readBalances[index]);
+                    }
+                }
+
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Error in readMany: " + e.getMessage());
+                return balances;
+            }
+        }
+
+        for (int index = 0; index < accountNumbers.length; index++) {
+            Integer remoteBalance = remoteBalances.get(accountNumbers[index]);
+            balances[index] = remoteBalance != null ? remoteBalance : readThroughCache(accountNumbers[index]);
+        }
+
+        return balances;
+    }
+
     
 /**
  * Writing value to account
@@ -158,10 +421,208 @@ public class TransactionServerProxy implements MessageTypes{
             Message responseMessage = (Message) readFromNet.readObject();
             priorBalance = (Integer) responseMessage.getContent();
 
+            if (readCache != null) {
+                localBalances.put(accountNumber, amount);
+            }
+
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Error in write: " + e.getMessage());
         }
 
         return priorBalance;
     }
+
+
+    /**
+     * Writing a number of accounts in one round trip, in order
+     *
+     * @param accountNumbers
+     * @param amounts the balances to write, index by index
+     * @return the prior balances, index by index
+     */
+    public int[] writeMany(int[] accountNumbers, int[] amounts) {
+        int[] priorBalances = new int[accountNumbers.length];
+
+        try {
+            writeToNet.writeObject(new Message(WRITE_MANY, new int[][] { accountNumbers, amounts }));
+            priorBalances = (int[]) ((Message) readFromNet.readObject()).getContent();
+
+            if (readCache != null) {
+                for (int index = 0; index < accountNumbers.length; index++) {
+                    localBalances.put(accountNumbers[index], amounts[index]);
+                }
+            }
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in writeMany: " + e.getMessage());
+        }
+
+        return priorBalances;
+    }
+
+
+    /**
+     * Depositing an amount into an account without reading its balance,
+     * which lets concurrent deposits to a split hot account commit without conflicts
+     * 
+     * @param accountNumber
+     * @param amount the amount to add, negative for a withdrawal
+     */
+    public void deposit(int accountNumber, int amount) {
+
+        try {
+            writeToNet.writeObject(new Message(DEPOSIT_REQUEST, new int[] { accountNumber, amount }));
+
+            // the balance is not known here anymore, reads of the account go to the server
+            localBalances.remove(accountNumber);
+            depositedAccounts.add(accountNumber);
+
+            // wait for the confirmation
+            readFromNet.readObject();
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in deposit: " + e.getMessage());
+        }
+    }
+
+
+    /**
+     * Splits a hot account on the server into sub-accounts, this is not part of a transaction
+     * 
+     * @param accountNumber
+     * @param numberSubAccounts the number of sub-accounts, including the account itself
+     * @return a flag indicating whether the account was split
+     */
+    public boolean splitAccount(int accountNumber, int numberSubAccounts) {
+        return restructure(new Message(SPLIT_ACCOUNT, new int[] { accountNumber, numberSubAccounts }));
+    }
+
+
+    /**
+     * Merges a split account on the server back into one account, this is not part of a transaction
+     * 
+     * @param accountNumber
+     * @return a flag indicating whether the account was merged
+     */
+    public boolean mergeAccount(int accountNumber) {
+        return restructure(new Message(MERGE_ACCOUNT, accountNumber));
+    }
+
+
+    /**
+     * Queries the server's conflict analytics, this is not part of a transaction
+     * 
+     * @param k maximum number of accounts to report per list
+     * @return the accounts involved in the most conflicts and written the most, null if the server cannot be reached
+     */
+    public AccountStatistics getAccountStatistics(int k) {
+        return (AccountStatistics) administer(new Message(ACCOUNT_STATISTICS, k));
+    }
+
+
+    /**
+     * Creates an account on the server with the next free account number, this is not part of a transaction
+     * 
+     * @param balance the initial balance
+     * @return the number of the account created, -1 if none was created or the server cannot be reached
+     */
+    public int createAccount(int balance) {
+        return createAccount(-1, balance);
+    }
+
+
+    /**
+     * Creates an account on the server, this is not part of a transaction
+     * 
+     * @param accountNumber the account number
+     * @param balance the initial balance
+     * @return the number of the account created, -1 if it exists already or the server cannot be reached
+     */
+    public int createAccount(int accountNumber, int balance) {
+        Object created = administer(new Message(CREATE_ACCOUNT, new int[] { accountNumber, balance }));
+        return created == null ? -1 : (Integer) created;
+    }
+
+
+    /**
+     * Closes an account on the server, which must be empty, this is not part of a transaction
+     * 
+     * @param accountNumber
+     * @return a flag indicating whether the account was closed
+     */
+    public boolean closeAccount(int accountNumber) {
+        return Boolean.TRUE.equals(administer(new Message(CLOSE_ACCOUNT, accountNumber)));
+    }
+
+
+    /**
+     * Updates all accounts on the server by one function, this is not part of a transaction
+     * 
+     * @param function UPDATE_INTEREST or UPDATE_ADD
+     * @param argument the function's argument, e.g. the interest in basis points
+     * @param chunkSize number of accounts updated per transaction, 0 to update all accounts in one transaction
+     * @return {number of accounts updated, number of accounts not updated}, null if the server cannot be reached
+     */
+    public int[] bulkUpdate(int function, int argument, int chunkSize) {
+        return (int[]) administer(new Message(BULK_UPDATE, new int[] { function, argument, chunkSize }));
+    }
+
+
+    /**
+     * Aggregates the balances of a range of accounts at one point in time, without stopping transactions,
+     * this is not part of a transaction
+     * 
+     * @param from first account of the range
+     * @param to first account after the range
+     * @return the aggregate, null if the server cannot be reached
+     */
+    public AccountAggregate aggregate(int from, int to) {
+        return (AccountAggregate) administer(new Message(AGGREGATE, new int[] { from, to }));
+    }
+
+
+    /**
+     * Aggregates the balances of all accounts, the sum being the branch total, see aggregate()
+     * 
+     * @return the aggregate, null if the server cannot be reached
+     */
+    public AccountAggregate branchTotal() {
+        return (AccountAggregate) administer(new Message(AGGREGATE, null));
+    }
+
+
+    /**
+     * Helper sending a restructuring request over its own connection
+     * 
+     * @param message SPLIT_ACCOUNT or MERGE_ACCOUNT message
+     * @return the server's answer
+     */
+    private boolean restructure(Message message) {
+        return Boolean.TRUE.equals(administer(message));
+    }
+
+
+    /**
+     * Helper sending an administrative request over its own connection
+     * 
+     * @param message the request
+     * @return the content of the server's answer, null if there is none
+     */
+    private Object administer(Message message) {
+        Object answer = null;
+
+        try (Socket connection = UnixDomainSocket.connect(host, port)) {
+            ObjectOutputStream writeToServer = new ObjectOutputStream(connection.getOutputStream());
+            ObjectInputStream readFromServer = new ObjectInputStream(connection.getInputStream());
+
+            message.setBranch(branch);
+            writeToServer.writeObject(message);
+            answer = ((Message) readFromServer.readObject()).getContent();
+
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Error in administrative request: " + e.getMessage());
+        }
+
+        return answer;
+    }
 }
@@ -0,0 +1,137 @@
+package transaction.client;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import transaction.comm.UnixDomainSocket;
+import transaction.server.TransactionServer;
+import utils.PropertyHandler;
+
+
+/**
+ * Class [TransportBenchmark] Compares the Unix domain socket transport with loopback TCP: runs a server in this JVM
+ * listening on both, and drives transfers through it one after the other, over either transport and in either
+ * protocol, i.e. serialized messages on a connection per transaction and the binary protocol on one connection.
+ * Reports the time and the CPU time, of client and server together, per request, e.g.
+ *
+ *     java -cp build transaction.client.TransportBenchmark config/TransactionServer.properties 20000 20000
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TransportBenchmark
+{
+    private static final int REQUESTS_PER_TRANSFER = 5;
+
+    private static int numberAccounts;
+
+
+    /**
+     * @param args server properties file, number of transfers to warm up (default 20000)
+     *             and number of transfers to measure (default 20000), per transport and protocol
+     */
+    public static void main(String[] args) throws IOException
+    {
+        String serverPropertiesFile = args.length > 0 ? args[0] : "config/TransactionServer.properties";
+        int warmUpTransfers = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int measuredTransfers = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        // the server's configuration, listening on a Unix domain socket of its own and not printing per request
+        Path unixSocketDirectory = Files.createTempDirectory("TransportBenchmark");
+        Path unixSocket = unixSocketDirectory.resolve("TransactionServer.sock");
+        Properties serverProperties = new PropertyHandler(serverPropertiesFile);
+        serverProperties.setProperty("UNIX_SOCKET", unixSocket.toString());
+        serverProperties.setProperty("LOGGING", "false");
+        serverProperties.setProperty("TRANSACTION_VIEW", "false");
+        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS").trim());
+
+        Path benchmarkPropertiesFile = Files.createTempFile("TransportBenchmark", ".properties");
+        try (OutputStream out = new FileOutputStream(benchmarkPropertiesFile.toFile()))
+        {
+            serverProperties.store(out, "TransportBenchmark");
+        }
+
+        Thread server = new Thread(new TransactionServer(benchmarkPropertiesFile.toString()), "TransactionServer");
+        server.setDaemon(true);
+        server.start();
+        Files.delete(benchmarkPropertiesFile);
+
+        String tcpHost = serverProperties.getProperty("HOST").trim();
+        String unixHost = UnixDomainSocket.PREFIX + unixSocket;
+        int port = Integer.parseInt(serverProperties.getProperty("PORT").trim());
+
+        // warm up everything before measuring anything, so no run profits from the JIT warmed up by the one before
+        for (boolean binary : new boolean[] { false, true })
+        {
+            for (String host : new String[] { tcpHost, unixHost })
+            {
+                runTransfers(binary, host, port, warmUpTransfers);
+            }
+        }
+
+        for (boolean binary : new boolean[] { false, true })
+        {
+            for (String host : new String[] { tcpHost, unixHost })
+            {
+                com.sun.management.OperatingSystemMXBean system = (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+                long cpuBefore = system.getProcessCpuTime();
+                long timeBefore = System.nanoTime();
+                int committed = runTransfers(binary, host, port, measuredTransfers);
+                long time = System.nanoTime() - timeBefore;
+                long cpu = system.getProcessCpuTime() - cpuBefore;
+
+                int requests = measuredTransfers * REQUESTS_PER_TRANSFER;
+                System.out.println("[TransportBenchmark.main] " + (binary ? "binary protocol" : "object streams ") + " over "
+                        + (UnixDomainSocket.isUnix(host) ? "Unix domain socket" : "loopback TCP      ") + ": "
+                        + measuredTransfers + " transfers (" + committed + " committed), "
+                        + String.format("%.1f us per request, %.1f us CPU per request", time / 1000.0 / requests, cpu / 1000.0 / requests));
+            }
+        }
+
+        new BinaryTransactionServerProxy(tcpHost, port).shutDownServer();
+        Files.deleteIfExists(unixSocket);
+        Files.deleteIfExists(unixSocketDirectory);
+        System.exit(0);
+    }
+
+
+    /**
+     * Helper running transfers between accounts picked round robin, not restarting aborted ones
+     *
+     * @param binary whether to talk the binary protocol on one connection, rather than serialized messages
+     *               on a connection per transaction
+     * @param host IP address of the server, or unix:<path> of its Unix domain socket
+     * @param port port number of the server
+     * @param transfers number of transfers
+     * @return number of transfers committed
+     */
+    private static int runTransfers(boolean binary, String host, int port, int transfers)
+    {
+        TransactionServerProxy transaction = binary ? new BinaryTransactionServerProxy(host, port) : new TransactionServerProxy(host, port);
+        int committed = 0;
+
+        for (int transfer = 0; transfer < transfers; transfer++)
+        {
+            int accountFrom = transfer % numberAccounts;
+            int accountTo = (transfer + 1) % numberAccounts;
+
+            transaction.openTransaction();
+            transaction.write(accountFrom, transaction.read(accountFrom) - 1);
+            transaction.write(accountTo, transaction.read(accountTo) + 1);
+
+            if (transaction.closeTransaction() == TransactionServerProxy.TRANSACTION_COMMITTED)
+            {
+                committed++;
+            }
+        }
+
+        if (binary)
+        {
+            ((BinaryTransactionServerProxy) transaction).disconnect();
+        }
+        return committed;
+    }
+}
@@ -0,0 +1,88 @@
+package transaction.comm;
+
+import java.io.Serializable;
+
+/**
+ * Class [AccountAggregate] Sum, minimum, maximum and count of the balances of a range of accounts,
+ * taken at one point in time while transactions go on committing, see AGGREGATE.
+ * Over all accounts of a server the sum is the branch total.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AccountAggregate implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the range of accounts, to being exclusive
+    int from;
+    int to;
+    // number of accounts in the range held by the server(s), and their balances
+    int count;
+    long sum;
+    int min;
+    int max;
+    // whether all balances were read at the same point in time, rather than at different ones
+    boolean consistent;
+
+    public AccountAggregate(int from, int to, int count, long sum, int min, int max, boolean consistent) {
+        this.from = from;
+        this.to = to;
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+        this.consistent = consistent;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    public boolean isConsistent() {
+        return consistent;
+    }
+
+    /**
+     * Combines the aggregates of two disjoint ranges, e.g. of two shards. Read at different points in time,
+     * the result is not consistent even if both parts are
+     *
+     * @param other the aggregate of the other range
+     * @return the aggregate of both ranges
+     */
+    public AccountAggregate combine(AccountAggregate other) {
+        if (other.count == 0) {
+            return new AccountAggregate(Math.min(from, other.from), Math.max(to, other.to), count, sum, min, max, consistent && other.consistent);
+        }
+        if (count == 0) {
+            return new AccountAggregate(Math.min(from, other.from), Math.max(to, other.to), other.count, other.sum, other.min, other.max, consistent && other.consistent);
+        }
+        return new AccountAggregate(Math.min(from, other.from), Math.max(to, other.to), count + other.count, sum + other.sum,
+                Math.min(min, other.min), Math.max(max, other.max), false);
+    }
+
+    @Override
+    public String toString() {
+        return "accounts #" + from + " to #" + (to - 1) + ": " + count + " accounts, total $" + sum
+                + (count > 0 ? ", min $" + min + ", max $" + max : "") + (consistent ? "" : " (not consistent)");
+    }
+}
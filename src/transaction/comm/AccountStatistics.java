@@ -0,0 +1,62 @@
+package transaction.comm;
+
+import java.io.Serializable;
+
+/**
+ * Class [AccountStatistics] Snapshot of a server's conflict analytics: the accounts that caused
+ * the most validation failures and the accounts written the most, each list most frequent first.
+ * Counts are approximate, over-estimated by at most the error given alongside.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AccountStatistics implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // { account number, count, maximum overestimation of count } per account
+    long[][] conflictedAccounts;
+    long[][] writtenAccounts;
+    // number of transactions aborted and committed so far
+    int abortedCount;
+    int committedCount;
+
+    public AccountStatistics(long[][] conflictedAccounts, long[][] writtenAccounts, int abortedCount, int committedCount) {
+        this.conflictedAccounts = conflictedAccounts;
+        this.writtenAccounts = writtenAccounts;
+        this.abortedCount = abortedCount;
+        this.committedCount = committedCount;
+    }
+
+    public long[][] getConflictedAccounts() {
+        return conflictedAccounts;
+    }
+
+    public long[][] getWrittenAccounts() {
+        return writtenAccounts;
+    }
+
+    public int getAbortedCount() {
+        return abortedCount;
+    }
+
+    public int getCommittedCount() {
+        return committedCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder statistics = new StringBuilder();
+
+        statistics.append(committedCount).append(" committed, ").append(abortedCount).append(" aborted\n");
+        statistics.append("most conflicted accounts:");
+        for (long[] account : conflictedAccounts) {
+            statistics.append(" #").append(account[0]).append(":").append(account[1]);
+        }
+        statistics.append("\nmost written accounts:   ");
+        for (long[] account : writtenAccounts) {
+            statistics.append(" #").append(account[0]).append(":").append(account[1]);
+        }
+
+        return statistics.toString();
+    }
+}
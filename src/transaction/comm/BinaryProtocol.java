@@ -0,0 +1,30 @@
+package transaction.comm;
+
+/**
+ * Class [BinaryProtocol] Defines the compact alternative to sending serialized Message objects, used where
+ * the cost of a request matters more than flexibility. A client announces the binary protocol by sending
+ * the MAGIC byte first (an object stream starts with 0xAC instead), then exchanges fixed-size frames
+ * of primitive fields, using the message types defined in MessageTypes:
+ *
+ *   request: byte type, int first argument, int second argument  (e.g. WRITE_REQUEST, account number, balance)
+ *   reply:   byte type, int value                                 (e.g. WRITE_REQUEST, prior balance)
+ *
+ * Unused fields are 0. Unlike with object streams, one connection carries any number of transactions,
+ * one after the other: after CLOSE_TRANSACTION the next OPEN_TRANSACTION may follow right away.
+ * The first argument of OPEN_TRANSACTION names the branch the transaction runs on, 0 for the default branch.
+ * Supported are OPEN_TRANSACTION, READ_REQUEST, WRITE_REQUEST, DEPOSIT_REQUEST, CLOSE_TRANSACTION,
+ * ABORT_TRANSACTION (no reply) and SHUTDOWN (no reply).
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class BinaryProtocol {
+
+    // first byte sent by a client speaking the binary protocol
+    public static final int MAGIC = 0x42;
+
+    // frame sizes in bytes
+    public static final int REQUEST_SIZE = 9;
+    public static final int REPLY_SIZE   = 5;
+
+    private BinaryProtocol() {}
+}
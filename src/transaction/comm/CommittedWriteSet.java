@@ -0,0 +1,39 @@
+package transaction.comm;
+
+import java.io.Serializable;
+
+/**
+ * Class [CommittedWriteSet] The effect of one committed transaction as shipped to followers:
+ * the new logical balances of all accounts the transaction wrote.
+ * Also used for snapshots, holding the balances of all accounts at a given transaction number.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class CommittedWriteSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // number of the committed transaction on the server it was taken from
+    int transactionNumber;
+    // account numbers and their new balances, index by index
+    int[] accounts;
+    int[] balances;
+
+    public CommittedWriteSet(int transactionNumber, int[] accounts, int[] balances) {
+        this.transactionNumber = transactionNumber;
+        this.accounts = accounts;
+        this.balances = balances;
+    }
+
+    public int getTransactionNumber() {
+        return transactionNumber;
+    }
+
+    public int[] getAccounts() {
+        return accounts;
+    }
+
+    public int[] getBalances() {
+        return balances;
+    }
+}
@@ -15,6 +15,9 @@ public class Message implements MessageTypes, Serializable {
     int type;
     // contains the content that is specific to a certain message type
     Object content;
+    // the branch of the server the message is meant for, 0 for the default branch, see BRANCHES.
+    // The first message on a connection decides the branch serving it
+    int branch = 0;
 
     public Message(int type, Object content) {
         this.type = type;
@@ -42,4 +45,13 @@ public class Message implements MessageTypes, Serializable {
     public Object getContent() {
         return content;
     }
+
+    // getter and setter methods for the branch
+    public void setBranch(int branch) {
+        this.branch = branch;
+    }
+
+    public int getBranch() {
+        return branch;
+    }
 }
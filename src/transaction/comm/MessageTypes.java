@@ -24,4 +24,88 @@ public interface MessageTypes {
     
     // message sent from the client to the server to signal shutdown
     public static final int SHUTDOWN   = 8;
+    
+    // blind deposit of an amount into an account, the way to write to split hot accounts
+    public static final int DEPOSIT_REQUEST = 9;
+    
+    // administrative messages splitting a hot account into sub-accounts and merging it back
+    public static final int SPLIT_ACCOUNT = 10;
+    public static final int MERGE_ACCOUNT = 11;
+    
+    // two-phase commit of transactions spanning several shards, sent by the coordinator:
+    // PREPARE_TRANSACTION returns TRANSACTION_PREPARED or TRANSACTION_ABORTED,
+    // a prepared transaction is finished by COMMIT_TRANSACTION (returns TRANSACTION_COMMITTED) or ABORT_TRANSACTION
+    public static final int PREPARE_TRANSACTION  = 12;
+    public static final int TRANSACTION_PREPARED = 13;
+    public static final int COMMIT_TRANSACTION   = 14;
+    
+    // replication: a follower sends FOLLOW to the primary, which answers with a REPLICATION_SNAPSHOT followed
+    // by a stream of REPLICATION_BATCHes of committed write sets, acknowledged asynchronously by REPLICATION_ACKs
+    public static final int FOLLOW               = 15;
+    public static final int REPLICATION_SNAPSHOT = 16;
+    public static final int REPLICATION_BATCH    = 17;
+    public static final int REPLICATION_ACK      = 18;
+    
+    // message sent to a follower to make it stop following and accept writes
+    public static final int PROMOTE = 19;
+    
+    // change data capture: a subscriber sends SUBSCRIBE with the last transaction number it has seen (null for none)
+    // and receives REPLICATION_BATCHes of committed write sets from there on, preceded by a REPLICATION_SNAPSHOT
+    // if the server does not retain write sets back to that transaction number
+    public static final int SUBSCRIBE = 20;
+    
+    // sent from server in response to an OPEN_TRANSACTION over the cap on running transactions,
+    // carrying the number of milliseconds after which to retry
+    public static final int TRANSACTION_REJECTED = 21;
+    
+    // administrative query for the accounts involved in the most conflicts and written the most,
+    // returns an AccountStatistics
+    public static final int ACCOUNT_STATISTICS = 22;
+    
+    // client-side read cache: a READ_REQUEST that also returns the version of the balance read, as int[] {balance, version},
+    // the version being -1 if the balance must not be cached. A caching client sends the last transaction number its cache
+    // has seen with OPEN_TRANSACTION and receives int[] {transaction ID, invalidations...}. It sends the accounts it read
+    // from its cache with CLOSE_TRANSACTION, as int[] {account, version, account, version, ...}, which are validated like reads,
+    // and receives int[] {invalidations...}. Invalidations are the last transaction number covered followed by the accounts
+    // written by the transactions committed since, or found out of date, to be evicted from the cache, -1 for all accounts
+    public static final int VERSIONED_READ_REQUEST = 23;
+    
+    // batched access within a transaction: READ_MANY carries int[] account numbers and returns int[] balances,
+    // WRITE_MANY carries int[][] {account numbers, balances} and returns int[] prior balances
+    public static final int READ_MANY  = 24;
+    public static final int WRITE_MANY = 25;
+    
+    // bulk submission of independent transfers, each run as a transaction of its own and retried by the server
+    // if it aborts: the content is int[] {account from, account to, amount, ...}, the reply byte[] holds per transfer
+    // TRANSACTION_COMMITTED or TRANSACTION_ABORTED if it was given up on. A connection carries one chunk
+    // after the other, an empty chunk ends it
+    public static final int BULK_SUBMIT = 26;
+    
+    // administrative update of all accounts of a server by one function, content int[] {function, argument, chunk size}:
+    // the accounts are updated in sub-transactions of chunk size accounts each, or in one transaction if it is 0.
+    // Returns int[] {number of accounts updated, number of accounts not updated}
+    public static final int BULK_UPDATE = 27;
+    
+    // the functions of a BULK_UPDATE: adding interest given in basis points, rounded towards zero, and adding an amount
+    public static final int UPDATE_INTEREST = 0;
+    public static final int UPDATE_ADD      = 1;
+    
+    // administrative query aggregating the balances of a range of accounts of a server while transactions go on committing,
+    // content int[] {account from, account to (exclusive)}, or null for all accounts of the server, i.e. the branch total.
+    // Returns an AccountAggregate, all balances read at the same point in time unless flagged otherwise
+    public static final int AGGREGATE = 28;
+    
+    // administrative messages creating and closing accounts at runtime: CREATE_ACCOUNT with content
+    // int[] {account number or -1 for the next free one, initial balance} returns the account number, -1 if none was created.
+    // CLOSE_ACCOUNT with the account number returns a flag telling whether it was closed, which only an empty account is
+    public static final int CREATE_ACCOUNT = 29;
+    public static final int CLOSE_ACCOUNT  = 30;
+    
+    // answer to a FOLLOW or SUBSCRIBE a server cannot serve, as it does not publish its commits,
+    // carrying the reason, after which the server closes the connection
+    public static final int REPLICATION_REFUSED = 31;
+    
+    // status a coordinator returns for a transaction spanning shards when some shards committed it and others
+    // could not be told to, even after retrying, which then hold it prepared until told to commit
+    public static final int TRANSACTION_IN_DOUBT = 32;
 }
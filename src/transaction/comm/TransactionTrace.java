@@ -0,0 +1,243 @@
+package transaction.comm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Class [TransactionTrace] One transaction of a workload trace, as recorded by a server with TRACE_FILE set
+ * and fed back to a server by TraceReplay: the branch it ran on, when it was opened, how long it took,
+ * how it ended, and its reads, writes and deposits in order, each with the time it arrived. A trace file is a header
+ * followed by one record per transaction, in the order the transactions finished, all fields big-endian:
+ *
+ *   header:      int MAGIC, int VERSION, long start of the recording in milliseconds since the epoch
+ *   transaction: long opened, int duration, int branch, byte outcome, int number of operations,
+ *                followed by the operations
+ *   operation:   byte type, int arrival, int account number, int value,
+ *                followed by int delta for a WRITE_REQUEST
+ *
+ * Times are in microseconds: the opening since the start of the recording, the duration and the arrival of operations
+ * since the opening. The type is READ_REQUEST, WRITE_REQUEST or DEPOSIT_REQUEST of MessageTypes, the value is
+ * the balance read, the balance written or the amount deposited. The delta of a write is the balance written less
+ * the balance the transaction saw of the account before, by its own reads, writes and deposits, or, if it saw none,
+ * the balance the server had, so a replay can repeat a transfer on balances that have since changed.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TransactionTrace implements MessageTypes {
+
+    // first int of a trace file, "TRAC"
+    public static final int MAGIC = 0x54524143;
+    public static final int VERSION = 1;
+
+    // how a transaction ended
+    public static final byte COMMITTED = 0;
+    public static final byte ABORTED = 1;
+    public static final byte ABORTED_BY_CLIENT = 2;
+    public static final byte ABANDONED = 3;
+
+    private final long opened;
+    private int duration;
+    private final int branch;
+    private byte outcome;
+
+    // the operations, index by index
+    private int numberOperations = 0;
+    private byte[] types = new byte[4];
+    private int[] arrivals = new int[4];
+    private int[] accountNumbers = new int[4];
+    private int[] values = new int[4];
+    private int[] deltas = new int[4];
+
+    /**
+     * Constructor
+     *
+     * @param branch the branch the transaction runs on
+     * @param opened microseconds since the start of the recording
+     */
+    public TransactionTrace(int branch, long opened) {
+        this.branch = branch;
+        this.opened = opened;
+    }
+
+    /**
+     * Adds an operation
+     *
+     * @param type READ_REQUEST, WRITE_REQUEST or DEPOSIT_REQUEST
+     * @param arrival microseconds since the transaction was opened
+     * @param accountNumber the account
+     * @param value the balance read, the balance written or the amount deposited
+     * @param delta the balance written less the one seen before, 0 unless a write
+     */
+    public void add(int type, int arrival, int accountNumber, int value, int delta) {
+        if (numberOperations == types.length) {
+            types = Arrays.copyOf(types, numberOperations * 2);
+            arrivals = Arrays.copyOf(arrivals, numberOperations * 2);
+            accountNumbers = Arrays.copyOf(accountNumbers, numberOperations * 2);
+            values = Arrays.copyOf(values, numberOperations * 2);
+            deltas = Arrays.copyOf(deltas, numberOperations * 2);
+        }
+
+        types[numberOperations] = (byte) type;
+        arrivals[numberOperations] = arrival;
+        accountNumbers[numberOperations] = accountNumber;
+        values[numberOperations] = value;
+        deltas[numberOperations] = delta;
+        numberOperations++;
+    }
+
+    /**
+     * @param accountNumber an account
+     * @param otherwise the balance returned if the transaction did not see the account so far
+     * @return the balance of the account as last seen by the transaction: read or written, plus the amounts deposited since
+     */
+    public int getSeenBalance(int accountNumber, int otherwise) {
+        int deposited = 0;
+
+        for (int index = numberOperations - 1; index >= 0; index--) {
+            if (accountNumbers[index] == accountNumber) {
+                if (types[index] != DEPOSIT_REQUEST) {
+                    return values[index] + deposited;
+                }
+                deposited += values[index];
+            }
+        }
+        return otherwise;
+    }
+
+    /**
+     * Records how the transaction ended
+     *
+     * @param outcome COMMITTED, ABORTED, ABORTED_BY_CLIENT or ABANDONED
+     * @param duration microseconds since the transaction was opened
+     */
+    public void finish(byte outcome, int duration) {
+        this.outcome = outcome;
+        this.duration = duration;
+    }
+
+    public long getOpened() {
+        return opened;
+    }
+
+    public int getDuration() {
+        return duration;
+    }
+
+    public int getBranch() {
+        return branch;
+    }
+
+    public byte getOutcome() {
+        return outcome;
+    }
+
+    public int getNumberOperations() {
+        return numberOperations;
+    }
+
+    public int getType(int index) {
+        return types[index];
+    }
+
+    public int getArrival(int index) {
+        return arrivals[index];
+    }
+
+    public int getAccountNumber(int index) {
+        return accountNumbers[index];
+    }
+
+    public int getValue(int index) {
+        return values[index];
+    }
+
+    public int getDelta(int index) {
+        return deltas[index];
+    }
+
+    /**
+     * Writes the header of a trace file
+     *
+     * @param out the file
+     * @param start start of the recording in milliseconds since the epoch
+     */
+    public static void writeHeader(DataOutputStream out, long start) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(start);
+    }
+
+    /**
+     * Reads the header of a trace file
+     *
+     * @param in the file
+     * @return start of the recording in milliseconds since the epoch
+     * @throws IOException if the file is not a trace of this version
+     */
+    public static long readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a transaction trace");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("trace version " + version + " not supported, expected " + VERSION);
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Writes this transaction's record
+     *
+     * @param out the file, past the header
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(opened);
+        out.writeInt(duration);
+        out.writeInt(branch);
+        out.writeByte(outcome);
+        out.writeInt(numberOperations);
+
+        for (int index = 0; index < numberOperations; index++) {
+            out.writeByte(types[index]);
+            out.writeInt(arrivals[index]);
+            out.writeInt(accountNumbers[index]);
+            out.writeInt(values[index]);
+            if (types[index] == WRITE_REQUEST) {
+                out.writeInt(deltas[index]);
+            }
+        }
+    }
+
+    /**
+     * Reads the next transaction's record
+     *
+     * @param in the file, past the header
+     * @return the transaction, null at the end of the file
+     * @throws IOException if the file cannot be read or ends in the middle of a record
+     */
+    public static TransactionTrace read(DataInputStream in) throws IOException {
+        long opened;
+        try {
+            opened = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        int duration = in.readInt();
+        TransactionTrace trace = new TransactionTrace(in.readInt(), opened);
+        trace.finish(in.readByte(), duration);
+
+        int numberOperations = in.readInt();
+        for (int index = 0; index < numberOperations; index++) {
+            int type = in.readByte();
+            int arrival = in.readInt();
+            int accountNumber = in.readInt();
+            int value = in.readInt();
+            trace.add(type, arrival, accountNumber, value, type == WRITE_REQUEST ? in.readInt() : 0);
+        }
+        return trace;
+    }
+}
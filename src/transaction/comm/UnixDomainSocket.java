@@ -0,0 +1,192 @@
+package transaction.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Class [UnixDomainSocket] A connection over a Unix domain socket, for clients running on the same host as the server,
+ * sparing both sides the loopback TCP stack. It is dressed up as a Socket, so everything written against sockets
+ * serves it unchanged. A host given as unix:<path> names such a socket, see connect().
+ *
+ * There is no read timeout: setSoTimeout() is accepted and ignored, a worker waiting for a client that went idle
+ * on such a connection is freed by closing it, see TRANSACTION_TIMEOUT. TCP options are ignored as well.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class UnixDomainSocket extends Socket {
+
+    // prefix of a host naming a Unix domain socket, followed by the socket's path
+    public static final String PREFIX = "unix:";
+
+    private final SocketChannel channel;
+    private final InputStream inputStream;
+    private final OutputStream outputStream;
+    private int soTimeout = 0;
+
+    /**
+     * Constructor
+     *
+     * @param channel a connected Unix domain socket channel in blocking mode
+     */
+    public UnixDomainSocket(SocketChannel channel) {
+        this.channel = channel;
+
+        // the channel's own read and write locks are independent, unlike those of the streams of java.nio.channels.Channels,
+        // so one thread may block reading while another one writes
+        inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] oneByte = new byte[1];
+                return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                return length == 0 ? 0 : channel.read(ByteBuffer.wrap(buffer, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException {
+                UnixDomainSocket.this.close();
+            }
+        };
+
+        outputStream = new OutputStream() {
+            @Override
+            public void write(int oneByte) throws IOException {
+                write(new byte[] { (byte) oneByte }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                ByteBuffer written = ByteBuffer.wrap(buffer, offset, length);
+                while (written.hasRemaining()) {
+                    channel.write(written);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                UnixDomainSocket.this.close();
+            }
+        };
+    }
+
+    /**
+     * Opens a connection to the server, over a Unix domain socket if the host names one, over TCP otherwise
+     *
+     * @param host IP address or host name of the server, or unix:<path>
+     * @param port port number of the server, not used for a Unix domain socket
+     * @return the connection
+     */
+    public static Socket connect(String host, int port) throws IOException {
+        if (isUnix(host)) {
+            return new UnixDomainSocket(SocketChannel.open(address(host)));
+        }
+        return new Socket(host, port);
+    }
+
+    /**
+     * @param host a host as given in the properties
+     * @return a flag indicating whether it names a Unix domain socket
+     */
+    public static boolean isUnix(String host) {
+        return host != null && host.startsWith(PREFIX);
+    }
+
+    /**
+     * @param host a host naming a Unix domain socket, i.e. unix:<path>
+     * @return the socket's address
+     */
+    public static UnixDomainSocketAddress address(String host) {
+        return UnixDomainSocketAddress.of(host.substring(PREFIX.length()).trim());
+    }
+
+    public SocketChannel getSocketChannel() {
+        return channel;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return outputStream;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        channel.shutdownOutput();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        try {
+            return channel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void setSoTimeout(int timeout) {
+        soTimeout = timeout;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return soTimeout;
+    }
+
+    @Override
+    public void setTcpNoDelay(boolean on) {
+        // there is no Nagle's algorithm to switch off
+    }
+
+    @Override
+    public boolean getTcpNoDelay() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "UnixDomainSocket[" + getLocalSocketAddress() + "]";
+    }
+}
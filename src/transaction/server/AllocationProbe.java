@@ -0,0 +1,130 @@
+package transaction.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+import transaction.client.BinaryTransactionServerProxy;
+import utils.PropertyHandler;
+
+
+/**
+ * Class [AllocationProbe] Checks that the server processes requests without allocating: runs a server in this
+ * JVM in the allocation-free configuration (binary protocol, epoch-based commit, logging off, no conflict
+ * analytics), drives transfers through it until the JIT has settled, and then measures the bytes allocated
+ * by the server's worker thread over a number of transfers, each made up of five requests.
+ * Exits with status 0 if the worker allocated nothing, 1 otherwise, e.g.
+ *
+ *     java -cp build transaction.server.AllocationProbe config/TransactionServer.properties 20000 20000
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AllocationProbe
+{
+    private static final int REQUESTS_PER_TRANSFER = 5;
+
+    private static int numberAccounts;
+
+
+    /**
+     * @param args server properties file, number of transfers to warm up (default 20000)
+     *             and number of transfers to measure (default 20000)
+     */
+    public static void main(String[] args) throws IOException
+    {
+        String serverPropertiesFile = args.length > 0 ? args[0] : "config/TransactionServer.properties";
+        int warmUpTransfers = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        int measuredTransfers = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+
+        // the server's configuration, switched to allocation-free request processing
+        Properties serverProperties = new PropertyHandler(serverPropertiesFile);
+        serverProperties.setProperty("EPOCH_MILLISECONDS", "40");
+        serverProperties.setProperty("LOGGING", "false");
+        serverProperties.setProperty("ACCOUNT_STATISTICS_SIZE", "0");
+        serverProperties.setProperty("TRANSACTION_VIEW", "false");
+        numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS").trim());
+
+        Path probePropertiesFile = Files.createTempFile("AllocationProbe", ".properties");
+        try (OutputStream out = new FileOutputStream(probePropertiesFile.toFile()))
+        {
+            serverProperties.store(out, "AllocationProbe");
+        }
+
+        Thread server = new Thread(new TransactionServer(probePropertiesFile.toString()), "TransactionServer");
+        server.start();
+        Files.delete(probePropertiesFile);
+
+        BinaryTransactionServerProxy transaction = new BinaryTransactionServerProxy(
+                serverProperties.getProperty("HOST").trim(), Integer.parseInt(serverProperties.getProperty("PORT").trim()));
+
+        // warm up, the connection's worker is the only one
+        runTransfers(transaction, warmUpTransfers);
+        long workerThreadID = findWorkerThread();
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getThreadAllocatedBytes(workerThreadID);
+        int committed = runTransfers(transaction, measuredTransfers);
+        long allocated = threads.getThreadAllocatedBytes(workerThreadID) - allocatedBefore;
+
+        transaction.shutDownServer();
+
+        System.out.println("[AllocationProbe.main] " + measuredTransfers + " transfers (" + committed + " committed), "
+                + measuredTransfers * REQUESTS_PER_TRANSFER + " requests");
+        System.out.println("[AllocationProbe.main] worker allocated " + allocated + " bytes, "
+                + (double) allocated / (measuredTransfers * REQUESTS_PER_TRANSFER) + " bytes per request");
+
+        System.exit(allocated == 0 ? 0 : 1);
+    }
+
+
+    /**
+     * Helper running transfers between accounts picked round robin, not restarting aborted ones
+     *
+     * @param transaction the proxy, reused for all transfers
+     * @param transfers number of transfers
+     * @return number of transfers committed
+     */
+    private static int runTransfers(BinaryTransactionServerProxy transaction, int transfers)
+    {
+        int committed = 0;
+
+        for (int transfer = 0; transfer < transfers; transfer++)
+        {
+            int accountFrom = transfer % numberAccounts;
+            int accountTo = (transfer + 1) % numberAccounts;
+
+            transaction.openTransaction();
+            transaction.write(accountFrom, transaction.read(accountFrom) - 1);
+            transaction.write(accountTo, transaction.read(accountTo) + 1);
+
+            if (transaction.closeTransaction() == BinaryTransactionServerProxy.TRANSACTION_COMMITTED)
+            {
+                committed++;
+            }
+        }
+
+        return committed;
+    }
+
+
+    /**
+     * Helper finding the thread serving the probe's connection
+     *
+     * @return the thread ID
+     */
+    private static long findWorkerThread()
+    {
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().equals("TransactionManagerWorker"))
+            {
+                return thread.getId();
+            }
+        }
+
+        throw new IllegalStateException("No worker thread found");
+    }
+}
@@ -1,16 +1,28 @@
 package transaction.server;
 
+import transaction.server.transaction.AbortHistory;
+import transaction.server.transaction.AdmissionController;
+import transaction.server.transaction.BulkExecutor;
+import transaction.server.transaction.TraceRecorder;
 import transaction.server.transaction.TransactionManager;
+import transaction.server.account.AccountLoader;
 import transaction.server.account.AccountManager;
+import transaction.server.replication.ReplicationFollower;
+import transaction.server.replication.ReplicationManager;
+import transaction.comm.UnixDomainSocket;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import transaction.server.account.Account;
 import utils.PropertyHandler;
 
 /**
@@ -23,9 +35,23 @@ public class TransactionServer implements Runnable
     // manager objects
     public static AccountManager accountManager = null;
     public static TransactionManager transactionManager = null;
+    public static ReplicationManager replicationManager = null;
+    
+    // the transaction managers of all branches, see BRANCHES, the managers above being those of the default branch
+    static TransactionManager[] branches = new TransactionManager[0];
+    
+    // records the workload of all branches, null unless TRACE_FILE is set
+    static TraceRecorder traceRecorder = null;
+    
+    // replication from the primary, null unless running as a follower
+    public static ReplicationFollower replicationFollower = null;
     
     // the server socket to accept incoming clients' requests
     public static ServerSocket serverSocket = null;
+    
+    // the Unix domain socket accepting clients on the same host, null if not listening on one
+    static ServerSocketChannel unixServerChannel = null;
+    static Path unixSocketPath = null;
 
     // flag indicating to keep running the server loop
     static boolean keepgoing = true;
@@ -34,6 +60,10 @@ public class TransactionServer implements Runnable
     // or reflecting the program execution
     public static boolean transactionView;
 
+    // flag switching off transaction logs altogether, building log strings being the main source
+    // of garbage when processing requests
+    public static boolean logging = true;
+
     // unique counter to number log message, so they can be ordered how they occurred
     static int messageCounter = 0;
 
@@ -44,6 +74,18 @@ public class TransactionServer implements Runnable
      * @param serverPropertiesFile file containing server-side configuration information
      */
     public TransactionServer(String serverPropertiesFile) 
+    {
+        this(serverPropertiesFile, -1);
+    }
+    
+    
+    /**
+     * Constructor for running one shard of a sharded account space
+     * 
+     * @param serverPropertiesFile file containing server-side configuration information
+     * @param shardIndex the shard to run, overriding SHARD_INDEX in the properties if not negative
+     */
+    public TransactionServer(String serverPropertiesFile, int shardIndex) 
     {
 
         Properties serverProperties = null;
@@ -51,6 +93,7 @@ public class TransactionServer implements Runnable
         // variables holding config information
         int numberAccounts;
         int initialBalance;
+        int port;
 
         // get properties
         try 
@@ -62,37 +105,264 @@ public class TransactionServer implements Runnable
             System.exit(1);
         }
 
-        // create transaction manager
         transactionView = Boolean.parseBoolean(serverProperties.getProperty("TRANSACTION_VIEW"));
-        TransactionServer.transactionManager = new TransactionManager();
-        System.out.println("[TransactionServer.TransactionServer] TransactionManager created");
+        logging = Boolean.parseBoolean(serverProperties.getProperty("LOGGING", "true").trim());
 
-        // create account manager
+        // create account managers and transaction managers, one of each per branch
         numberAccounts = Integer.parseInt(serverProperties.getProperty("NUMBER_ACCOUNTS"));
         initialBalance = Integer.parseInt(serverProperties.getProperty("INITIAL_BALANCE"));
+        port = Integer.parseInt(serverProperties.getProperty("PORT"));
         
-        TransactionServer.accountManager = new AccountManager(numberAccounts, initialBalance);
-        System.out.println("[TransactionServer.TransactionServer] AccountManager created");
+        // in a sharded setup, this server holds one contiguous range of accounts of each branch and listens on its shard's port
+        int firstAccountNumber = 0;
+        int accountNumberLimit = Integer.MAX_VALUE;
+        String shards = serverProperties.getProperty("SHARDS", "").trim();
+        if (!shards.isEmpty())
+        {
+            String[] shardAddresses = shards.split(",");
+            if (shardIndex < 0)
+            {
+                shardIndex = Integer.parseInt(serverProperties.getProperty("SHARD_INDEX", "0").trim());
+            }
+            
+            int shardSize = (numberAccounts + shardAddresses.length - 1) / shardAddresses.length;
+            firstAccountNumber = shardIndex * shardSize;
+            accountNumberLimit = firstAccountNumber + shardSize;
+            numberAccounts = Math.min(shardSize, numberAccounts - firstAccountNumber);
+            port = Integer.parseInt(shardAddresses[shardIndex].trim().split(":")[1]);
+            System.out.println("[TransactionServer.TransactionServer] Running shard " + shardIndex + ", accounts " + firstAccountNumber + " - " + (firstAccountNumber + numberAccounts - 1));
+        }
 
+        // the branches, the first one being the default branch, see BRANCHES
+        String branchList = serverProperties.getProperty("BRANCHES", "").trim();
+        String[] branchNames = branchList.isEmpty() ? new String[] { "default" } : branchList.split(",");
+
+        // a follower only applies the default branch's writes, the others would stay at their initial balances
+        // and, once promoted, silently lose the primary's state
+        if (branchNames.length > 1 && !serverProperties.getProperty("PRIMARY", "").trim().isEmpty())
+        {
+            System.err.println("[TransactionServer.TransactionServer] PRIMARY cannot be set with more than one branch in BRANCHES, only the default branch is replicated");
+            System.exit(1);
+        }
+        String[] accountsFiles = serverProperties.getProperty("ACCOUNTS_FILE", "").trim().split(",");
+        branches = new TransactionManager[branchNames.length];
+        for (int branchID = 0; branchID < branchNames.length; branchID++)
+        {
+            branches[branchID] = createBranch(serverProperties, branchID, branchNames[branchID].trim(), firstAccountNumber, numberAccounts, initialBalance, accountNumberLimit,
+                    branchID < accountsFiles.length ? accountsFiles[branchID].trim() : "");
+        }
+        transactionManager = branches[0];
+        accountManager = transactionManager.getAccountManager();
+        replicationManager = transactionManager.getReplicationManager();
+        System.out.println("[TransactionServer.TransactionServer] " + (branches.length == 1 ? "TransactionManager and AccountManager created" : "Branches created: " + branchList));
+        
+        // record the workload for replaying it later
+        String traceFile = serverProperties.getProperty("TRACE_FILE", "").trim();
+        if (!traceFile.isEmpty())
+        {
+            try 
+            {
+                traceRecorder = new TraceRecorder(traceFile);
+            } 
+            catch (IOException ex) 
+            {
+                System.err.println("[TransactionServer.TransactionServer] Could not create trace file " + traceFile + ": " + ex.getMessage());
+                System.exit(1);
+            }
+            for (TransactionManager branch : branches)
+            {
+                branch.setTraceRecorder(traceRecorder);
+            }
+            System.out.println("[TransactionServer.TransactionServer] Recording trace to " + traceFile);
+        }
+        
         // create server socket
         try 
         {
-            serverSocket = new ServerSocket(Integer.parseInt(serverProperties.getProperty("PORT")));
+            // the backlog bounds the connections waiting to be accepted
+            serverSocket = new ServerSocket(port, Integer.parseInt(serverProperties.getProperty("ACCEPT_BACKLOG", "50").trim()));
             System.out.println("[TransactionServer.TransactionServer] ServerSocket created");
         } catch (IOException ex) 
         {
             System.err.println("[TransactionServer.TransactionServer] Could not create server socket");
             System.exit(1);
         }
+
+        // clients on the same host may talk to the server over a Unix domain socket, serving the same protocols
+        String unixSocket = serverProperties.getProperty("UNIX_SOCKET", "").trim();
+        if (!unixSocket.isEmpty())
+        {
+            try 
+            {
+                // a socket file left behind by a server that did not shut down cleanly would make binding fail
+                unixSocketPath = Path.of(unixSocket);
+                Files.deleteIfExists(unixSocketPath);
+                unixServerChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                unixServerChannel.bind(UnixDomainSocketAddress.of(unixSocketPath), Integer.parseInt(serverProperties.getProperty("ACCEPT_BACKLOG", "50").trim()));
+                System.out.println("[TransactionServer.TransactionServer] Unix domain socket " + unixSocketPath + " created");
+            } 
+            catch (IOException ex) 
+            {
+                System.err.println("[TransactionServer.TransactionServer] Could not create Unix domain socket " + unixSocket + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // follow a primary, serving read-only transactions until promoted, with the default branch as the only one
+        String primary = serverProperties.getProperty("PRIMARY", "").trim();
+        if (!primary.isEmpty())
+        {
+            String[] address = primary.split(":");
+            transactionManager.setReadOnly(true);
+            replicationFollower = new ReplicationFollower(address[0].trim(), Integer.parseInt(address[1].trim()));
+            replicationFollower.start();
+            System.out.println("[TransactionServer.TransactionServer] Following primary " + primary);
+        }
     }
 
     
+    /**
+     * Creates a branch: its accounts and its transaction manager, set up as the properties say, each branch alike
+     * 
+     * @param serverProperties the server's properties
+     * @param branchID the branch's ID, its position in BRANCHES
+     * @param branchName the branch's name
+     * @param firstAccountNumber number of the first account held by this server
+     * @param numberAccounts number of accounts this server starts out with
+     * @param initialBalance initial balance of each account
+     * @param accountNumberLimit first account number held by the next shard
+     * @param accountsFile file of balances to load, empty for none
+     * @return the branch's transaction manager
+     */
+    private static TransactionManager createBranch(Properties serverProperties, int branchID, String branchName, 
+            int firstAccountNumber, int numberAccounts, int initialBalance, int accountNumberLimit, String accountsFile)
+    {
+        // the accounts are created as they are first accessed, so starting up does not depend on their number
+        AccountManager branchAccounts = new AccountManager(firstAccountNumber, numberAccounts, initialBalance, accountNumberLimit);
+
+        // balances loaded from a file, e.g. of accounts migrated from elsewhere, before any transaction runs
+        if (!accountsFile.isEmpty())
+        {
+            try 
+            {
+                new AccountLoader(branchAccounts, Integer.parseInt(serverProperties.getProperty("LOAD_THREADS", "" + Runtime.getRuntime().availableProcessors()).trim()))
+                        .load(Path.of(accountsFile));
+            } 
+            catch (IOException ex) 
+            {
+                System.err.println("[TransactionServer.createBranch] Could not load accounts of branch " + branchName + " from " + accountsFile + ": " + ex.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // replication manager, shipping committed write sets to followers and change subscribers
+        TransactionManager branch = new TransactionManager(branchID, branchName, branchAccounts, new ReplicationManager(
+                Integer.parseInt(serverProperties.getProperty("REPLICATION_HISTORY", "1000").trim()),
+                Integer.parseInt(serverProperties.getProperty("SUBSCRIBER_BUFFER", "10000").trim())));
+
+        // admission control, capping the number of running transactions
+        int maxRunningTransactions = Integer.parseInt(serverProperties.getProperty("MAX_RUNNING_TRANSACTIONS", "0").trim());
+        if (maxRunningTransactions > 0)
+        {
+            branch.setAdmissionController(new AdmissionController(maxRunningTransactions,
+                    Integer.parseInt(serverProperties.getProperty("ADMISSION_QUEUE", "0").trim()),
+                    Integer.parseInt(serverProperties.getProperty("RETRY_AFTER_MILLISECONDS", "50").trim())));
+            System.out.println("[TransactionServer.createBranch] Admission control: at most " + maxRunningTransactions + " running transactions");
+        }
+
+        // bounded history of aborted transactions, only every ABORT_LOG_SAMPLING-th one keeps its log
+        branch.setAbortHistory(new AbortHistory(
+                Integer.parseInt(serverProperties.getProperty("ABORT_HISTORY", "100").trim()),
+                Integer.parseInt(serverProperties.getProperty("ABORT_LOG_SAMPLING", "1").trim())));
+
+        // conflict analytics, number of most conflicted and most written accounts tracked
+        branch.setAccountStatisticsSize(Integer.parseInt(serverProperties.getProperty("ACCOUNT_STATISTICS_SIZE", "32").trim()));
+
+        // timeouts guarding against clients that vanish or go silent in the middle of a transaction
+        branch.setSocketReadTimeout(Integer.parseInt(serverProperties.getProperty("SOCKET_READ_TIMEOUT", "0").trim()));
+        int transactionTimeout = Integer.parseInt(serverProperties.getProperty("TRANSACTION_TIMEOUT", "0").trim());
+        if (transactionTimeout > 0)
+        {
+            branch.startReaper(transactionTimeout);
+            System.out.println("[TransactionServer.createBranch] Aborting transactions idle for more than " + transactionTimeout + " ms");
+        }
+
+        // partitioned execution, accounts range-partitioned across executor threads
+        int numberPartitions = Integer.parseInt(serverProperties.getProperty("PARTITIONS", "0").trim());
+        if (numberPartitions > 0)
+        {
+            branch.startPartitions(numberPartitions);
+            System.out.println("[TransactionServer.createBranch] Partitioned execution on " + branch.getPartitions().getNumberPartitions() + " partitions");
+        }
+
+        // epoch-based commit, validating against per-account commit IDs without a central commit lock
+        int epochMilliseconds = Integer.parseInt(serverProperties.getProperty("EPOCH_MILLISECONDS", "0").trim());
+        if (epochMilliseconds > 0 && numberPartitions == 0)
+        {
+            branch.startEpochCommit(epochMilliseconds);
+            System.out.println("[TransactionServer.createBranch] Epoch-based commit, epochs of " + epochMilliseconds + " ms");
+        }
+
+        // group validation of transactions closing at about the same time, partitioned execution validates per partition instead
+        int commitBatchSize = Integer.parseInt(serverProperties.getProperty("COMMIT_BATCH_SIZE", "0").trim());
+        if (commitBatchSize > 1 && numberPartitions == 0 && epochMilliseconds == 0)
+        {
+            branch.startCommitSequencer(commitBatchSize);
+            System.out.println("[TransactionServer.createBranch] Group validation of up to " + commitBatchSize + " transactions");
+        }
+
+        // transfers submitted in bulk are run on a pool of threads, retrying aborted ones
+        int bulkThreads = Integer.parseInt(serverProperties.getProperty("BULK_THREADS", "" + Runtime.getRuntime().availableProcessors()).trim());
+        int bulkMaxAttempts = Integer.parseInt(serverProperties.getProperty("BULK_MAX_ATTEMPTS", "20").trim());
+        if (bulkThreads > 0)
+        {
+            branch.setBulkExecutor(new BulkExecutor(branch, bulkThreads, bulkMaxAttempts));
+        }
+        else
+        {
+            // aggregates are served regardless, reduced on the common pool
+            branch.setAggregator(new BulkExecutor(branch, ForkJoinPool.commonPool(), bulkMaxAttempts));
+        }
+
+        // a follower replicates logical balances only, so hot accounts are not split there
+        String primary = serverProperties.getProperty("PRIMARY", "").trim();
+        
+        // split hot accounts given as a list of <account>:<number of sub-accounts>
+        String hotAccounts = serverProperties.getProperty("HOT_ACCOUNTS", "").trim();
+        if (!hotAccounts.isEmpty() && primary.isEmpty())
+        {
+            for (String hotAccount : hotAccounts.split(","))
+            {
+                String[] split = hotAccount.trim().split(":");
+                int accountNumber = Integer.parseInt(split[0].trim());
+                
+                // hot accounts of other shards are split there
+                if (branchAccounts.isLocal(accountNumber))
+                {
+                    branch.splitAccount(accountNumber, Integer.parseInt(split[1].trim()));
+                }
+            }
+            System.out.println("[TransactionServer.createBranch] Hot accounts split: " + hotAccounts);
+        }
+
+        return branch;
+    }
+
+
     /**
      * Run the server loop, when done, print out summery
      */
     @Override
     public void run() 
     {
+        // clients connecting over the Unix domain socket are accepted by a loop of their own
+        if (unixServerChannel != null)
+        {
+            Thread unixServerLoop = new Thread(TransactionServer::acceptUnixClients, "UnixDomainSocketListener");
+            unixServerLoop.setDaemon(true);
+            unixServerLoop.start();
+        }
+        
         // run server loop
         while (keepgoing) 
         {
@@ -127,6 +397,31 @@ public class TransactionServer implements Runnable
     }
     
     
+    /**
+     * Server loop accepting clients over the Unix domain socket, they are run by the transaction manager
+     * like those connecting over TCP
+     */
+    private static void acceptUnixClients()
+    {
+        while (keepgoing) 
+        {
+            try 
+            {
+                transactionManager.runTransaction(new UnixDomainSocket(unixServerChannel.accept()));
+            } 
+            catch (IOException e) 
+            {
+                // we get here when we close the channel from the outside
+                if (!unixServerChannel.isOpen())
+                {
+                    return;
+                }
+                System.err.println("IOException in Unix domain socket server loop");
+            }
+        }
+    }
+    
+    
     /**
      * Helper method called indirectly by client by sending a SHUTDOWN message to server,
      * which is received by a TransactionManagerWorker that in turn will call this method.
@@ -138,12 +433,35 @@ public class TransactionServer implements Runnable
         try {
             keepgoing = false;
             serverSocket.close();
+            if (unixServerChannel != null) {
+                unixServerChannel.close();
+                Files.deleteIfExists(unixSocketPath);
+            }
+            if (traceRecorder != null) {
+                traceRecorder.close();
+            }
         } catch (IOException ex) {
             Logger.getLogger(TransactionServer.class.getName()).log(Level.SEVERE, null, ex);
         }    
     }
   
     
+    /**
+     * Helper method called indirectly by a client sending a PROMOTE message to a follower:
+     * stops following the primary and starts accepting writes
+     */
+    public static synchronized void promote()
+    {
+        if (replicationFollower != null)
+        {
+            replicationFollower.stopFollowing();
+            System.out.println("[TransactionServer.promote] Promoted after primary's transaction #" + replicationFollower.getAppliedTransactionNumber());
+            replicationFollower = null;
+        }
+        transactionManager.setReadOnly(false);
+    }
+  
+    
     /**
      * Print out summary
      */
@@ -165,31 +483,39 @@ public class TransactionServer implements Runnable
         System.out.print(abortedTransactionsLogs);
         */
         
-        System.out.println("\n\n======================================= BRANCH TOTAL =======================================");
+        for (TransactionManager branch : branches)
+        {
+            // branches are told apart by name only if there are several of them
+            String branchName = branches.length > 1 ? " " + branch.getBranchName().toUpperCase() : "";
+            
+            System.out.println("\n\n======================================= ABORTED TRANSACTIONS" + branchName + " =======================================");
+            System.out.println(branch.getAbortHistory());
+            System.out.println(branch.getAccountStatistics(10));
 
-        ArrayList<Account> accounts = TransactionServer.accountManager.getAccounts();
-        Iterator<Account> accountIterator = accounts.iterator();
-        Account account;
-        int total = 0;
+            System.out.println("\n\n======================================= BRANCH TOTAL" + branchName + " =======================================");
 
-        while (accountIterator.hasNext())
-        {
-            account = accountIterator.next();
-            total += TransactionServer.accountManager.read(account.getNumber());
-            System.out.print(account.getNumber() + ":" + account._read() + "$ ");
-        }
+            int total = 0;
+
+            for (int accountNumber : branch.getAccountManager().getAccountNumbers())
+            {
+                total += branch.getAccountManager().read(accountNumber);
+                System.out.print(accountNumber + ":" + branch.getAccountManager().read(accountNumber) + "$ ");
+            }
 
-        System.out.println("---> $" + total + "\n\n");        
+            System.out.println("---> $" + total + "\n\n");
+        }
     }
     
     
     /**
      * main()
-     * @param args 
+     * @param args properties file, optionally followed by the index of the shard to run
      */
     public static void main(String[] args) 
     {
-        if (args.length == 1) {
+        if (args.length == 2) {
+            new TransactionServer(args[0], Integer.parseInt(args[1])).run();
+        } else if (args.length == 1) {
             new TransactionServer(args[0]).run();
         } else {
             new TransactionServer("../../config/TransactionServer.properties").run();
@@ -197,6 +523,16 @@ public class TransactionServer implements Runnable
     }
 
 
+    /**
+     * @param branchID a branch's ID, its position in BRANCHES
+     * @return the branch's transaction manager, null if there is no such branch
+     */
+    public static TransactionManager getBranch(int branchID)
+    {
+        return branchID >= 0 && branchID < branches.length ? branches[branchID] : null;
+    }
+
+
     /**
      * Helper method to return a system-wide, unique counter for logging purposes
      * 
@@ -1,5 +1,7 @@
 package transaction.server.account;
 
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
 /**
  *
  * @author wolfdieterotte
@@ -7,9 +9,18 @@ package transaction.server.account;
 public class Account 
 {
     
-    private int balance;
+    private volatile int balance;
     private final int number;
     
+    // incremented with every write, after the balance is written, used for validating reads against per-record versions
+    private volatile int version = 0;
+    
+    // epoch-based commit: commit ID of the last transaction that wrote this account,
+    // the lock bit is set while a committing transaction holds the account
+    public static final long LOCK_BIT = 1L << 63;
+    private volatile long tid = 0;
+    private static final AtomicLongFieldUpdater<Account> TID = AtomicLongFieldUpdater.newUpdater(Account.class, "tid");
+    
     
     public Account (int number, int initialBalance) 
     {
@@ -34,6 +45,48 @@ public class Account
     public void _write(int balance) 
     {
         this.balance = balance;
+        version++;
+    }
+    
+    
+    /**
+     * Low level read of the version
+     * @return the number of writes to this account so far
+     */
+    public int _version() 
+    {
+        return version;
+    }
+
+    
+    /**
+     * Low level read of the commit ID word
+     * @return the commit ID of the last write, with the lock bit set if the account is locked
+     */
+    public long _tid() 
+    {
+        return tid;
+    }
+    
+    
+    /**
+     * Low level attempt to lock the account for writing, without blocking
+     * @return a flag indicating whether the account is locked by the caller now
+     */
+    public boolean _tryLock() 
+    {
+        long current = tid;
+        return (current & LOCK_BIT) == 0 && TID.compareAndSet(this, current, current | LOCK_BIT);
+    }
+    
+    
+    /**
+     * Low level unlock, publishing a new commit ID, to be called by the lock holder after writing
+     * @param newTid the commit ID of the transaction that held the lock
+     */
+    public void _unlock(long newTid) 
+    {
+        tid = newTid;
     }
 
     
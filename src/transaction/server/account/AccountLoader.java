@@ -0,0 +1,343 @@
+package transaction.server.account;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Class loading the balances of accounts from a file at startup, straight into the AccountManager, without
+ * going through transactions. The file is memory-mapped in chunks that are parsed in parallel, fork/join style.
+ * A file named *.csv holds a line <account>,<balance> per account, lines not starting with a number, e.g. a header,
+ * are skipped. Any other file holds a record of two big-endian ints per account, the account number and the balance.
+ *
+ * The accounts listed are created, or set to the balance listed if the server starts out with them anyway,
+ * the accounts not listed keep their initial balance. Accounts of other shards are skipped, so all shards may
+ * load the same file. An account listed twice ends up with either one of its balances.
+ *
+ * @author wolfdieterotte
+ */
+public class AccountLoader
+{
+    // bytes of the file parsed by one task, the unit of parallelism and of progress
+    private static final int CHUNK_SIZE = 8 << 20;
+
+    // longest line of a CSV file, a line crossing the end of a chunk is parsed by the chunk it starts in
+    private static final int MAX_LINE_LENGTH = 256;
+
+    // size of a record of a binary file
+    private static final int RECORD_SIZE = 8;
+
+    private final AccountManager accountManager;
+    private final int numberThreads;
+
+    // progress so far, updated chunk by chunk
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    private final AtomicLong accountsLoaded = new AtomicLong();
+    private final AtomicLong accountsSkipped = new AtomicLong();
+
+
+    /**
+     * Constructor
+     *
+     * @param accountManager the account manager to load into
+     * @param numberThreads number of chunks parsed concurrently
+     */
+    public AccountLoader(AccountManager accountManager, int numberThreads)
+    {
+        this.accountManager = accountManager;
+        this.numberThreads = Math.max(numberThreads, 1);
+    }
+
+
+    /**
+     * Loads a file, reporting progress about once a second. Must be called before any transaction runs
+     *
+     * @param file the file
+     * @return the number of accounts loaded, not counting those of other shards
+     * @throws IOException if the file cannot be read or is malformed
+     */
+    public long load(Path file) throws IOException
+    {
+        boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        ForkJoinPool threads = new ForkJoinPool(numberThreads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("AccountLoader");
+            return thread;
+        }, null, false);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (!csv && size % RECORD_SIZE != 0)
+            {
+                throw new IOException("size of " + file + " is not a multiple of " + RECORD_SIZE + " bytes");
+            }
+
+            long start = System.nanoTime();
+            ForkJoinTask<Void> loading = threads.submit(new Chunks(channel, size, csv, 0, (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE)));
+
+            while (true)
+            {
+                try
+                {
+                    loading.get(1, TimeUnit.SECONDS);
+                    break;
+                }
+                catch (TimeoutException e)
+                {
+                    System.out.println("[AccountLoader.load] " + report(size, start));
+                }
+            }
+
+            System.out.println("[AccountLoader.load] Loaded " + file + ": " + report(size, start)
+                    + (accountsSkipped.get() > 0 ? ", " + accountsSkipped.get() + " accounts of other shards skipped" : ""));
+            return accountsLoaded.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted loading " + file);
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+        }
+        finally
+        {
+            threads.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Helper describing the progress so far
+     */
+    private String report(long size, long start)
+    {
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        return String.format("%,d accounts, %d%% of %,d MB in %.1f s, %,.0f accounts/s, %,.0f MB/s",
+                accountsLoaded.get(), size == 0 ? 100 : bytesLoaded.get() * 100 / size, size >> 20, seconds,
+                accountsLoaded.get() / seconds, bytesLoaded.get() / seconds / (1 << 20));
+    }
+
+
+    /**
+     * Fork/join task loading a range of chunks of the file
+     */
+    private class Chunks extends RecursiveTask<Void>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long size;
+        private final boolean csv;
+        private final int from, to;
+
+        Chunks(FileChannel channel, long size, boolean csv, int from, int to)
+        {
+            this.channel = channel;
+            this.size = size;
+            this.csv = csv;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Void compute()
+        {
+            if (to - from > 1)
+            {
+                int middle = from + (to - from) / 2;
+                invokeAll(new Chunks(channel, size, csv, from, middle), new Chunks(channel, size, csv, middle, to));
+                return null;
+            }
+
+            if (from < to)
+            {
+                long start = (long) from * CHUNK_SIZE;
+                long end = Math.min(start + CHUNK_SIZE, size);
+                try
+                {
+                    if (csv)
+                    {
+                        loadLines(start, end);
+                    }
+                    else
+                    {
+                        loadRecords(start, end);
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+                bytesLoaded.addAndGet(end - start);
+            }
+            return null;
+        }
+
+
+        /**
+         * Loads the records of a chunk of a binary file
+         */
+        private void loadRecords(long start, long end) throws IOException
+        {
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            long loaded = 0;
+
+            for (int position = 0; position < chunk.limit(); position += RECORD_SIZE)
+            {
+                if (accountManager.load(chunk.getInt(position), chunk.getInt(position + 4)))
+                {
+                    loaded++;
+                }
+            }
+            count(loaded, (end - start) / RECORD_SIZE - loaded);
+        }
+
+
+        /**
+         * Loads the lines starting in a chunk of a CSV file, the line starting before the chunk
+         * is left to the previous chunk, the line crossing its end is parsed to the end
+         */
+        private void loadLines(long start, long end) throws IOException
+        {
+            long mapped = Math.max(start - 1, 0);
+            MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, mapped, Math.min(end + MAX_LINE_LENGTH, size) - mapped);
+            int position = 0;
+            long loaded = 0;
+            long skipped = 0;
+
+            // the previous chunk ends with the line this chunk starts in, unless it starts right after a line break
+            if (start > 0)
+            {
+                while (position < chunk.limit() && chunk.get(position) != '\n')
+                {
+                    position++;
+                }
+                position++;
+            }
+
+            while (mapped + position < end)
+            {
+                int lineStart = position;
+                position = skipBlanks(chunk, position);
+                boolean numberLine = isNumberLine(chunk, position);
+
+                if (numberLine)
+                {
+                    long[] numbers = new long[2];
+                    position = parseInt(chunk, position, numbers, 0, mapped + lineStart);
+                    position = skipBlanks(chunk, position);
+                    if (position >= chunk.limit() || chunk.get(position) != ',')
+                    {
+                        throw malformed(mapped + lineStart);
+                    }
+                    position = parseInt(chunk, skipBlanks(chunk, position + 1), numbers, 1, mapped + lineStart);
+
+                    if (accountManager.load((int) numbers[0], (int) numbers[1]))
+                    {
+                        loaded++;
+                    }
+                    else
+                    {
+                        skipped++;
+                    }
+                }
+
+                // the rest of the line, which has to be blank after an account
+                while (position < chunk.limit() && chunk.get(position) != '\n')
+                {
+                    byte character = chunk.get(position++);
+                    if (numberLine && character != ' ' && character != '\t' && character != '\r')
+                    {
+                        throw malformed(mapped + lineStart);
+                    }
+                }
+                if (position == chunk.limit() && mapped + position < size)
+                {
+                    throw new IOException("line at byte " + (mapped + lineStart) + " longer than " + MAX_LINE_LENGTH + " bytes");
+                }
+                position++;
+            }
+            count(loaded, skipped);
+        }
+
+
+        private void count(long loaded, long skipped)
+        {
+            accountsLoaded.addAndGet(loaded);
+            accountsSkipped.addAndGet(skipped);
+        }
+    }
+
+
+    /**
+     * Helper parsing an int
+     *
+     * @return the position after the int
+     */
+    private static int parseInt(MappedByteBuffer chunk, int position, long[] numbers, int index, long lineOffset) throws IOException
+    {
+        boolean negative = position < chunk.limit() && chunk.get(position) == '-';
+        if (negative)
+        {
+            position++;
+        }
+
+        int digitsStart = position;
+        long value = 0;
+        while (position < chunk.limit() && isDigit(chunk.get(position)) && value <= Integer.MAX_VALUE + 1L)
+        {
+            value = value * 10 + chunk.get(position++) - '0';
+        }
+
+        value = negative ? -value : value;
+        if (position == digitsStart || value > Integer.MAX_VALUE || value < Integer.MIN_VALUE)
+        {
+            throw malformed(lineOffset);
+        }
+        numbers[index] = value;
+        return position;
+    }
+
+
+    private static int skipBlanks(MappedByteBuffer chunk, int position)
+    {
+        while (position < chunk.limit() && (chunk.get(position) == ' ' || chunk.get(position) == '\t'))
+        {
+            position++;
+        }
+        return position;
+    }
+
+
+    private static boolean isNumberLine(MappedByteBuffer chunk, int position)
+    {
+        return position < chunk.limit() && (isDigit(chunk.get(position)) || chunk.get(position) == '-');
+    }
+
+
+    private static boolean isDigit(byte character)
+    {
+        return character >= '0' && character <= '9';
+    }
+
+
+    private static IOException malformed(long lineOffset)
+    {
+        return new IOException("malformed line at byte " + lineOffset + ", expected <account>,<balance>");
+    }
+}
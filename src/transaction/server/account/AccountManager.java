@@ -1,53 +1,495 @@
 package transaction.server.account;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
+ * Class holding the accounts of one branch, see BRANCHES, each branch of a server having its own
  *
  * @author wolfdieterotte
  */
 public class AccountManager
 {
     
-    private static ArrayList<Account> accounts;
-    static int numberAccounts;
-    static int initialBalance;
+    // the accounts, created and closed at runtime, see AccountTable
+    private final AccountTable accounts;
+    private final int numberAccounts;
+    private final int initialBalance;
+    
+    // range of account numbers held, accounts of other shards are held by other servers
+    private final int firstAccountNumber;
+    private final int accountNumberLimit;
+
+    // one past the highest account number ever held, where looking for a free number to create an account starts
+    private final AtomicInteger nextAccountNumber = new AtomicInteger();
+
+    // hot accounts that are split into sub-accounts: logical account number -> physical keys,
+    // slot 0 always being the logical account itself
+    private final ConcurrentHashMap<Integer, int[]> splitAccounts = new ConcurrentHashMap<>();
+
+    // the physical sub-accounts created by splitting, addressed by negative keys
+    // so they never collide with regular account numbers
+    private final ConcurrentHashMap<Integer, Account> subAccounts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Integer> subAccountOwners = new ConcurrentHashMap<>();
+    private int subAccountKeyCounter = 0;
+
+    // snapshots being read, see AccountSnapshot, each write records the pre-image in all of them
+    private volatile AccountSnapshot[] snapshots = new AccountSnapshot[0];
+
+    // number of splits, merges, creations and closings so far, a snapshot spanning one has to be read again
+    private volatile int restructurings = 0;
     
     public AccountManager(int numberAccounts, int initialBalance) 
     {
-        accounts = new ArrayList<Account>();
-        AccountManager.numberAccounts = numberAccounts;
-        AccountManager.initialBalance = initialBalance;
-        int accountIndex;
+        this(0, numberAccounts, initialBalance, Integer.MAX_VALUE);
+    }
+    
+    
+    /**
+     * Constructor for a shard holding a contiguous range of accounts
+     * 
+     * @param firstAccountNumber number of the first account of this shard
+     * @param numberAccounts number of accounts this shard starts out with
+     * @param initialBalance initial balance of each account
+     * @param accountNumberLimit first account number of the next shard, accounts can be created up to here
+     */
+    public AccountManager(int firstAccountNumber, int numberAccounts, int initialBalance, int accountNumberLimit) 
+    {
+        this.firstAccountNumber = firstAccountNumber;
+        this.numberAccounts = numberAccounts;
+        this.initialBalance = initialBalance;
+        this.accountNumberLimit = accountNumberLimit;
         
-        for (accountIndex = 0; accountIndex < numberAccounts; accountIndex++) 
+        // the accounts are created as they are first accessed, so starting up does not depend on their number
+        accounts = new AccountTable(firstAccountNumber, numberAccounts, initialBalance);
+        nextAccountNumber.set(firstAccountNumber + numberAccounts);
+    }
+    
+    
+    /**
+     * Returns the physical account for a key, which is either a regular account number
+     * or the (negative) key of a sub-account
+     *
+     * @param accountNumber account number or sub-account key
+     * @return the account object, null for an account that does not exist, e.g. is closed,
+     *         or a sub-account that has been merged away
+     */
+    public Account getAccount(int accountNumber)
+    {
+        if (accountNumber < 0)
         {
-            accounts.add(new Account(accountIndex, initialBalance));
+            return subAccounts.get(accountNumber);
         }
+        return isLocal(accountNumber) ? accounts.get(accountNumber) : null;
+    }
+
+
+    /**
+     * @return the numbers of all accounts open, in ascending order
+     */
+    public int[] getAccountNumbers()
+    {
+        return getAccountNumbers(firstAccountNumber, accountNumberLimit);
+    }
+
+
+    /**
+     * @param from first account number of a range
+     * @param to first account number after the range
+     * @return the numbers of the accounts of the range open, in ascending order
+     */
+    public int[] getAccountNumbers(int from, int to)
+    {
+        return accounts.accountNumbers(Math.max(from, firstAccountNumber), Math.min(to, accountNumberLimit));
     }
     
     
-    public Account getAccount(int accountNumber) 
+    /**
+     * @return the number of accounts open
+     */
+    public int getNumberAccounts()
     {
-        return accounts.get(accountNumber);
+        return accounts.size();
     }
     
     
-    public ArrayList<Account> getAccounts()
+    /**
+     * @return the number of accounts the server started out with
+     */
+    public int getNumberInitialAccounts()
     {
-        return accounts;
+        return numberAccounts;
     }
     
     
-    public int read (int accountNumber)
-    {        
-        return (getAccount(accountNumber))._read();
+    public int getFirstAccountNumber()
+    {
+        return firstAccountNumber;
     }
     
     
-    public void write (int accountNumber, int balance) 
+    /**
+     * @return one past the highest account number held so far
+     */
+    public int getHighestAccountNumber()
+    {
+        return nextAccountNumber.get();
+    }
+
+    
+    /**
+     * @param accountNumber a logical account number
+     * @return a flag indicating whether the account is held here, rather than by another shard, if it exists
+     */
+    public boolean isLocal(int accountNumber)
     {
-        (getAccount(accountNumber))._write(balance);
+        return accountNumber >= firstAccountNumber && accountNumber < accountNumberLimit;
+    }
+
+
+    /**
+     * @param accountNumber a logical account number
+     * @return a flag indicating whether the account exists on this server
+     */
+    public boolean exists(int accountNumber)
+    {
+        return accountNumber >= 0 && getAccount(accountNumber) != null;
+    }
+
+
+    /**
+     * Maps a physical key to the logical account it belongs to
+     *
+     * @param key account number or sub-account key
+     * @return the logical account number, -1 for a sub-account that has been merged away
+     */
+    public int getLogicalNumber(int key)
+    {
+        if (key >= 0)
+        {
+            return key;
+        }
+
+        Integer owner = subAccountOwners.get(key);
+        return owner == null ? -1 : owner;
+    }
+
+
+    /**
+     * Reads the logical balance of an account, summing up all sub-accounts of a split account
+     *
+     * @param accountNumber the logical account number
+     * @return the balance
+     */
+    public int read (int accountNumber)
+    {
+        int[] slots = splitAccounts.get(accountNumber);
+
+        if (slots == null)
+        {
+            return readPhysical(accountNumber);
+        }
+
+        int balance = 0;
+        for (int slot : slots)
+        {
+            balance += readPhysical(slot);
+        }
+        return balance;
+    }
+
+
+    /**
+     * Reads one physical account, i.e. a regular account or a single sub-account
+     *
+     * @param key account number or sub-account key
+     * @return the balance, 0 for an account that does not exist, e.g. a sub-account that has been merged away in the meantime
+     */
+    public int readPhysical (int key)
+    {
+        Account account = getAccount(key);
+
+        // a transaction that still sees a closed account or a merged sub-account will fail validation anyway
+        return account == null ? 0 : account._read();
+    }
+
+
+    /**
+     * Writes one physical account, i.e. a regular account or a single sub-account
+     *
+     * @param accountNumber account number or sub-account key
+     * @param balance the balance to write
+     */
+    public void write (int accountNumber, int balance)
+    {
+        Account account = getAccount(accountNumber);
+
+        if (account != null)
+        {
+            recordPreImage(accountNumber, account);
+            account._write(balance);
+        }
+    }
+
+
+    /**
+     * Records the balance of an account about to be written in all snapshots being read.
+     * Must be called by the writer before writing
+     *
+     * @param key account number or sub-account key
+     * @param account the account
+     */
+    public void recordPreImage(int key, Account account)
+    {
+        recordPreImage(key, account, snapshots);
+    }
+
+
+    /**
+     * Records the balance of an account about to be written in the snapshots given, for writers that
+     * determine once which snapshots their writes belong to, see EpochCommit
+     *
+     * @param key account number or sub-account key
+     * @param account the account
+     * @param snapshots the snapshots, see getSnapshots()
+     */
+    public void recordPreImage(int key, Account account, AccountSnapshot[] snapshots)
+    {
+        for (AccountSnapshot snapshot : snapshots)
+        {
+            snapshot.record(key, account._read());
+        }
+    }
+
+
+    /**
+     * @return the snapshots being read
+     */
+    public AccountSnapshot[] getSnapshots()
+    {
+        return snapshots;
+    }
+
+
+    /**
+     * Starts a snapshot, from now on writes record the pre-images it needs.
+     * Must be called while no transaction writes, see TransactionManager.startSnapshot()
+     *
+     * @param snapshot the snapshot
+     */
+    public synchronized void startSnapshot(AccountSnapshot snapshot)
+    {
+        AccountSnapshot[] started = Arrays.copyOf(snapshots, snapshots.length + 1);
+        started[snapshots.length] = snapshot;
+        snapshots = started;
+    }
+
+
+    /**
+     * Ends a snapshot, writes no longer record pre-images for it
+     *
+     * @param snapshot the snapshot
+     */
+    public synchronized void endSnapshot(AccountSnapshot snapshot)
+    {
+        AccountSnapshot[] started = new AccountSnapshot[snapshots.length];
+        int startedCount = 0;
+        for (AccountSnapshot other : snapshots)
+        {
+            if (other != snapshot)
+            {
+                started[startedCount++] = other;
+            }
+        }
+        snapshots = Arrays.copyOf(started, startedCount);
+    }
+
+
+    /**
+     * @return the number of splits and merges so far
+     */
+    public int getRestructurings()
+    {
+        return restructurings;
+    }
+
+
+    /**
+     * Reads the version of a regular account, i.e. the number of writes to it so far
+     *
+     * @param accountNumber the account number
+     * @return the version, -1 if the account does not exist
+     */
+    public int getVersion(int accountNumber)
+    {
+        Account account = getAccount(accountNumber);
+        return account == null ? -1 : account._version();
+    }
+
+
+    /**
+     * Returns the physical keys of a split account
+     *
+     * @param accountNumber the logical account number
+     * @return the keys of all sub-accounts, slot 0 being the account itself, or null if not split
+     */
+    public int[] getSlots(int accountNumber)
+    {
+        return splitAccounts.get(accountNumber);
+    }
+
+
+    /**
+     * Creates an account. Must be called while no transaction commits, see TransactionManager.createAccount()
+     *
+     * @param accountNumber the account number, -1 for the next free one
+     * @param balance the initial balance
+     * @return the number of the account created, -1 if it exists already or is out of this server's range
+     */
+    public synchronized int create(int accountNumber, int balance)
+    {
+        if (accountNumber < 0)
+        {
+            // numbers below the highest one held are not reused, there could be transactions around that still know them
+            accountNumber = nextAccountNumber.get();
+        }
+
+        if (!isLocal(accountNumber) || accounts.create(accountNumber, balance) == null)
+        {
+            return -1;
+        }
+
+        nextAccountNumber.set(Math.max(nextAccountNumber.get(), accountNumber + 1));
+        restructurings++;
+        return accountNumber;
+    }
+
+
+    /**
+     * Loads the balance of an account at startup, creating the account unless the server starts out with it anyway,
+     * see AccountLoader. May be called by several threads at once, but not while transactions run
+     *
+     * @param accountNumber the account number
+     * @param balance the balance
+     * @return a flag indicating whether the account was loaded, false if it is out of this server's range
+     */
+    public boolean load(int accountNumber, int balance)
+    {
+        if (accountNumber < 0 || !isLocal(accountNumber))
+        {
+            return false;
+        }
+
+        Account account = accounts.get(accountNumber);
+        if (account == null && accounts.create(accountNumber, balance) != null)
+        {
+            if (accountNumber >= nextAccountNumber.get())
+            {
+                nextAccountNumber.accumulateAndGet(accountNumber + 1, Math::max);
+            }
+            return true;
+        }
+
+        // the account existed, or was created by a thread loading the same account number at the same time
+        accounts.get(accountNumber)._write(balance);
+        return true;
+    }
+
+
+    /**
+     * Closes an account. Only an empty account can be closed, its balance has been transferred away before
+     * by an ordinary transaction, so closing accounts does not change the branch total.
+     * Must be called while no transaction commits, see TransactionManager.closeAccount()
+     *
+     * @param accountNumber the account number
+     * @return a flag indicating whether the account was closed, false if it does not exist, is split or not empty
+     */
+    public synchronized boolean close(int accountNumber)
+    {
+        Account account = getAccount(accountNumber);
+
+        if (accountNumber < 0 || account == null || splitAccounts.containsKey(accountNumber) || account._read() != 0)
+        {
+            return false;
+        }
+
+        if (accounts.remove(account))
+        {
+            restructurings++;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Splits an account into a number of sub-accounts. The whole balance stays in slot 0,
+     * the new sub-accounts start out empty, so the logical balance does not change.
+     * Must be called while no transaction commits, see TransactionManager.splitAccount()
+     *
+     * @param accountNumber the logical account number
+     * @param numberSlots the number of sub-accounts, including the account itself
+     * @return the physical keys of the split account, or null if it was split already
+     */
+    public synchronized int[] split(int accountNumber, int numberSlots)
+    {
+        int[] slots = splitAccounts.get(accountNumber);
+
+        if (slots != null || numberSlots < 2 || !exists(accountNumber))
+        {
+            return null;
+        }
+
+        // rewriting slot 0 bumps its version, transactions that read the account before the split validate against it
+        // and would otherwise miss deposits to the new sub-accounts
+        Account account = getAccount(accountNumber);
+        account._write(account._read());
+
+        slots = new int[numberSlots];
+        slots[0] = accountNumber;
+
+        for (int slotIndex = 1; slotIndex < numberSlots; slotIndex++)
+        {
+            slots[slotIndex] = --subAccountKeyCounter;
+            subAccounts.put(slots[slotIndex], new Account(slots[slotIndex], 0));
+            subAccountOwners.put(slots[slotIndex], accountNumber);
+        }
+
+        splitAccounts.put(accountNumber, slots);
+        restructurings++;
+        return slots;
+    }
+
+
+    /**
+     * Merges all sub-accounts of a split account back into the account itself.
+     * Must be called while no transaction commits, see TransactionManager.mergeAccount()
+     *
+     * @param accountNumber the logical account number
+     * @return the physical keys the account was split into, or null if it was not split
+     */
+    public synchronized int[] merge(int accountNumber)
+    {
+        int[] slots = splitAccounts.get(accountNumber);
+
+        if (slots == null)
+        {
+            return null;
+        }
+
+        int balance = read(accountNumber);
+
+        splitAccounts.remove(accountNumber);
+        for (int slotIndex = 1; slotIndex < slots.length; slotIndex++)
+        {
+            subAccounts.remove(slots[slotIndex]);
+            subAccountOwners.remove(slots[slotIndex]);
+        }
+        write(accountNumber, balance);
+        restructurings++;
+
+        return slots;
     }
 }
@@ -0,0 +1,54 @@
+package transaction.server.account;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A consistent view of the balances as of the moment it was started, kept while transactions go on committing.
+ * Instead of copying all accounts up front, a snapshot only holds the balance an account had before the
+ * first write to it after the snapshot started. Accounts not written since read through to the current balance.
+ * Writers record the pre-image before writing, so a reader reading the current balance first and looking for
+ * a pre-image second never misses a write that happened in between.
+ *
+ * @author wolfdieterotte
+ */
+public class AccountSnapshot
+{
+    // physical key -> balance before the first write after the snapshot started
+    private final ConcurrentHashMap<Integer, Integer> preImages = new ConcurrentHashMap<>();
+
+
+    /**
+     * Records the balance of an account about to be written, if not recorded already
+     *
+     * @param key account number or sub-account key
+     * @param balance the balance before the write
+     */
+    public void record(int key, int balance)
+    {
+        preImages.putIfAbsent(key, balance);
+    }
+
+
+    /**
+     * Returns the balance of an account as of the moment the snapshot started
+     *
+     * @param key account number or sub-account key
+     * @param current the current balance, read before calling this method
+     * @return the balance
+     */
+    public int get(int key, int current)
+    {
+        Integer preImage = preImages.get(key);
+        return preImage == null ? current : preImage;
+    }
+
+
+    /**
+     * @return the number of accounts written since the snapshot started
+     */
+    public int size()
+    {
+        return preImages.size();
+    }
+}
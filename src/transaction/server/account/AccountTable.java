@@ -0,0 +1,229 @@
+package transaction.server.account;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Sparse table of the accounts of a server, addressed by account number, which may be any non-negative int.
+ * The table is a radix tree of three levels: a fixed root of directories, directories of segments and
+ * segments of 1024 accounts. Directories and segments are allocated the first time an account in their range
+ * is created and installed by compare-and-set, so the table grows while being read and written, without ever
+ * being copied or locked as a whole. Memory is proportional to the number of segments holding live accounts.
+ *
+ * The accounts the server starts out with are not created up front either: a segment covering some of them
+ * is filled with them when it is allocated, i.e. the first time one of its accounts is accessed.
+ *
+ * @author wolfdieterotte
+ */
+public class AccountTable
+{
+    // 11 + 10 + 10 bits make up the 31 bits of a non-negative account number
+    private static final int SEGMENT_BITS = 10;
+    private static final int DIRECTORY_BITS = 10;
+    private static final int ROOT_BITS = 31 - SEGMENT_BITS - DIRECTORY_BITS;
+
+    static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+    private static final int DIRECTORY_SIZE = 1 << DIRECTORY_BITS;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<AtomicReferenceArray<Account>>> root = new AtomicReferenceArray<>(1 << ROOT_BITS);
+
+    // the accounts the server starts out with, created lazily segment by segment
+    private final int firstInitialAccount;
+    private final int numberInitialAccounts;
+    private final int initialBalance;
+
+    // number of accounts open
+    private final AtomicInteger size;
+
+
+    /**
+     * Constructor
+     *
+     * @param firstInitialAccount number of the first account the server starts out with
+     * @param numberInitialAccounts number of accounts the server starts out with
+     * @param initialBalance initial balance of each of them
+     */
+    public AccountTable(int firstInitialAccount, int numberInitialAccounts, int initialBalance)
+    {
+        this.firstInitialAccount = firstInitialAccount;
+        this.numberInitialAccounts = numberInitialAccounts;
+        this.initialBalance = initialBalance;
+        size = new AtomicInteger(numberInitialAccounts);
+    }
+
+
+    /**
+     * @param accountNumber the account number
+     * @return the account, null if it does not exist
+     */
+    public Account get(int accountNumber)
+    {
+        AtomicReferenceArray<Account> segment = segment(accountNumber, isInitial(accountNumber));
+
+        return segment == null ? null : segment.get(accountNumber & SEGMENT_SIZE - 1);
+    }
+
+
+    /**
+     * Creates an account, unless it exists
+     *
+     * @param accountNumber the account number
+     * @param balance the initial balance
+     * @return the account, null if it exists already
+     */
+    public Account create(int accountNumber, int balance)
+    {
+        Account account = new Account(accountNumber, balance);
+
+        if (!segment(accountNumber, true).compareAndSet(accountNumber & SEGMENT_SIZE - 1, null, account))
+        {
+            return null;
+        }
+        size.incrementAndGet();
+        return account;
+    }
+
+
+    /**
+     * Removes an account
+     *
+     * @param account the account, as returned by get()
+     * @return a flag indicating whether it was removed, false if it had been removed already
+     */
+    public boolean remove(Account account)
+    {
+        AtomicReferenceArray<Account> segment = segment(account.getNumber(), false);
+
+        if (segment == null || !segment.compareAndSet(account.getNumber() & SEGMENT_SIZE - 1, account, null))
+        {
+            return false;
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+
+    /**
+     * @return the number of accounts open
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+
+    /**
+     * Collects the numbers of all accounts open, walking only the segments allocated or holding initial accounts
+     *
+     * @param from the first account number of interest
+     * @param to the first account number not of interest anymore
+     * @return the account numbers in ascending order
+     */
+    public int[] accountNumbers(int from, int to)
+    {
+        from = Math.max(from, 0);
+        int[] accountNumbers = new int[Math.min(size(), 1024)];
+        int count = 0;
+
+        for (int segmentStart = from & -SEGMENT_SIZE; segmentStart >= 0 && segmentStart < to; segmentStart += SEGMENT_SIZE)
+        {
+            // skip a directory that has never been allocated and holds no initial accounts in one go
+            if (root.get(segmentStart >>> SEGMENT_BITS + DIRECTORY_BITS) == null && !holdsInitial(segmentStart, SEGMENT_SIZE * DIRECTORY_SIZE))
+            {
+                segmentStart = (segmentStart | SEGMENT_SIZE * DIRECTORY_SIZE - 1) - SEGMENT_SIZE + 1;
+                continue;
+            }
+
+            AtomicReferenceArray<Account> segment = segment(segmentStart, holdsInitial(segmentStart, SEGMENT_SIZE));
+            if (segment == null)
+            {
+                continue;
+            }
+
+            for (int slot = 0; slot < SEGMENT_SIZE; slot++)
+            {
+                int accountNumber = segmentStart + slot;
+                if (accountNumber >= from && accountNumber < to && segment.get(slot) != null)
+                {
+                    if (count == accountNumbers.length)
+                    {
+                        accountNumbers = Arrays.copyOf(accountNumbers, Math.max(count * 2, 16));
+                    }
+                    accountNumbers[count++] = accountNumber;
+                }
+            }
+        }
+
+        return Arrays.copyOf(accountNumbers, count);
+    }
+
+
+    /**
+     * Helper finding the segment holding an account
+     *
+     * @param accountNumber the account number
+     * @param allocate whether to allocate the segment if it does not exist
+     * @return the segment, null if it does not exist and is not to be allocated
+     */
+    private AtomicReferenceArray<Account> segment(int accountNumber, boolean allocate)
+    {
+        int rootIndex = accountNumber >>> SEGMENT_BITS + DIRECTORY_BITS;
+        AtomicReferenceArray<AtomicReferenceArray<Account>> directory = root.get(rootIndex);
+
+        if (directory == null)
+        {
+            if (!allocate)
+            {
+                return null;
+            }
+            root.compareAndSet(rootIndex, null, new AtomicReferenceArray<>(DIRECTORY_SIZE));
+            directory = root.get(rootIndex);
+        }
+
+        int directoryIndex = accountNumber >>> SEGMENT_BITS & DIRECTORY_SIZE - 1;
+        AtomicReferenceArray<Account> segment = directory.get(directoryIndex);
+
+        if (segment == null)
+        {
+            if (!allocate)
+            {
+                return null;
+            }
+
+            // of two threads allocating a segment at the same time, only one gets to install it with its initial accounts
+            int segmentStart = accountNumber & -SEGMENT_SIZE;
+            segment = new AtomicReferenceArray<>(SEGMENT_SIZE);
+            for (int slot = 0; slot < SEGMENT_SIZE; slot++)
+            {
+                if (isInitial(segmentStart + slot))
+                {
+                    segment.set(slot, new Account(segmentStart + slot, initialBalance));
+                }
+            }
+            directory.compareAndSet(directoryIndex, null, segment);
+            segment = directory.get(directoryIndex);
+        }
+
+        return segment;
+    }
+
+
+    /**
+     * Helper checking whether an account is one of those the server starts out with
+     */
+    private boolean isInitial(int accountNumber)
+    {
+        return accountNumber >= firstInitialAccount && accountNumber - firstInitialAccount < numberInitialAccounts;
+    }
+
+
+    /**
+     * Helper checking whether a range of account numbers holds any of the accounts the server starts out with
+     */
+    private boolean holdsInitial(int from, int length)
+    {
+        return numberInitialAccounts > 0 && (long) from < (long) firstInitialAccount + numberInitialAccounts && (long) from + length > firstInitialAccount;
+    }
+}
@@ -0,0 +1,115 @@
+package transaction.server.replication;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import transaction.comm.CommittedWriteSet;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+import transaction.server.TransactionServer;
+
+
+/**
+ * Thread running a server as follower of a primary: it installs the primary's snapshot,
+ * then applies the stream of committed write sets batch by batch, acknowledging each batch
+ * without the primary waiting for it. The follower only commits read-only transactions
+ * of its own until it is promoted.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class ReplicationFollower extends Thread implements MessageTypes
+{
+    String host;
+    int port;
+
+    private Socket primaryConnection = null;
+
+    // last transaction number of the primary applied here
+    private volatile int appliedTransactionNumber = 0;
+
+
+    /**
+     * Constructor
+     * @param host IP address of the primary
+     * @param port port number of the primary
+     */
+    public ReplicationFollower(String host, int port)
+    {
+        this.host = host;
+        this.port = port;
+        setDaemon(true);
+    }
+
+
+    /**
+     * @return the last transaction number of the primary applied here
+     */
+    public int getAppliedTransactionNumber()
+    {
+        return appliedTransactionNumber;
+    }
+
+
+    /**
+     * Stops following the primary, e.g. when this server is promoted
+     */
+    public void stopFollowing()
+    {
+        try
+        {
+            if (primaryConnection != null)
+            {
+                primaryConnection.close();
+            }
+        }
+        catch (IOException e)
+        {
+            // ignore
+        }
+    }
+
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            primaryConnection = new Socket(host, port);
+            ObjectOutputStream writeToNet = new ObjectOutputStream(primaryConnection.getOutputStream());
+            ObjectInputStream readFromNet = new ObjectInputStream(primaryConnection.getInputStream());
+
+            writeToNet.writeObject(new Message(FOLLOW));
+
+            // first comes the snapshot, unless the primary does not publish its commits
+            Message reply = (Message) readFromNet.readObject();
+            if (reply.getType() == REPLICATION_REFUSED)
+            {
+                System.err.println("[ReplicationFollower.run] Primary " + host + ":" + port + " refused to be followed: " + reply.getContent());
+                primaryConnection.close();
+                return;
+            }
+            CommittedWriteSet snapshot = (CommittedWriteSet) reply.getContent();
+            TransactionServer.transactionManager.installReplicaSnapshot(snapshot);
+            appliedTransactionNumber = snapshot.getTransactionNumber();
+
+            System.out.println("[ReplicationFollower.run] Following " + host + ":" + port + " from transaction #" + appliedTransactionNumber);
+
+            // then the write sets, in commit order
+            while (true)
+            {
+                CommittedWriteSet[] batch = (CommittedWriteSet[]) ((Message) readFromNet.readObject()).getContent();
+
+                TransactionServer.transactionManager.applyReplicatedBatch(batch);
+                appliedTransactionNumber = batch[batch.length - 1].getTransactionNumber();
+
+                writeToNet.writeObject(new Message(REPLICATION_ACK, appliedTransactionNumber));
+                writeToNet.reset();
+            }
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            System.out.println("[ReplicationFollower.run] Lost primary " + host + ":" + port + " after transaction #" + appliedTransactionNumber);
+        }
+    }
+}
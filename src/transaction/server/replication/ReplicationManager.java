@@ -0,0 +1,294 @@
+package transaction.server.replication;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import transaction.comm.CommittedWriteSet;
+import transaction.comm.Message;
+import transaction.comm.MessageTypes;
+
+
+/**
+ * Class shipping committed write sets to the followers and change subscribers of this server.
+ * Commits only put their write set into each receiver's queue, a sender thread per receiver
+ * ships the queue in batches and does not wait for acknowledgements, which a follower
+ * sends back asynchronously, so replication does not slow down commits.
+ *
+ * Once the first follower or subscriber connected, the most recent write sets are retained, so a subscriber
+ * can resume the stream after the last transaction number it has seen. Until then commits publish nothing. A subscriber's queue is bounded, a subscriber falling
+ * behind that far is disconnected, rather than holding up commits, and may resume later.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class ReplicationManager implements MessageTypes
+{
+    // maximum number of write sets shipped in one message
+    static final int MAX_BATCH_SIZE = 256;
+
+    // number of write sets retained for resuming subscriptions, and the bound of each subscriber's queue
+    private final int historySize;
+    private final int subscriberBufferSize;
+
+    // the most recent write sets, in commit order, retained from the first follower or subscriber on, guarded by the commit lock
+    private final ArrayDeque<CommittedWriteSet> history = new ArrayDeque<>();
+    private boolean retaining = false;
+
+    // the followers and subscribers currently connected
+    private final CopyOnWriteArrayList<Receiver> receivers = new CopyOnWriteArrayList<>();
+
+
+    /**
+     * Constructor
+     *
+     * @param historySize number of write sets retained for resuming subscriptions
+     * @param subscriberBufferSize number of write sets a subscriber may fall behind before it is disconnected
+     */
+    public ReplicationManager(int historySize, int subscriberBufferSize)
+    {
+        this.historySize = historySize;
+        this.subscriberBufferSize = subscriberBufferSize;
+    }
+
+
+    /**
+     * @return a flag indicating whether committed write sets need to be published at all
+     */
+    public boolean isPublishing()
+    {
+        return retaining || !receivers.isEmpty();
+    }
+
+
+    /**
+     * Hands a committed write set to all followers and subscribers. Needs to be called in commit order,
+     * i.e. while holding the commit lock
+     *
+     * @param writeSet the committed write set
+     */
+    public void publish(CommittedWriteSet writeSet)
+    {
+        if (retaining)
+        {
+            if (history.size() == historySize)
+            {
+                history.removeFirst();
+            }
+            history.addLast(writeSet);
+        }
+
+        for (Receiver receiver : receivers)
+        {
+            // a subscriber too far behind is dropped, commits never wait for it
+            if (!receiver.queue.offer(writeSet))
+            {
+                receiver.overflow();
+            }
+        }
+    }
+
+
+    /**
+     * @return the number of write sets retained for resuming subscriptions. Needs to be called while holding the commit lock
+     */
+    public int getRetainedCount()
+    {
+        return history.size();
+    }
+
+
+    /**
+     * Checks whether the retained write sets reach back far enough to resume a subscription,
+     * and whether the ones the subscriber missed fit into its buffer, see SUBSCRIBER_BUFFER.
+     * Needs to be called while holding the commit lock
+     *
+     * @param transactionNumber the last transaction number the subscriber has seen
+     * @return a flag indicating whether the stream can be resumed right after that transaction
+     */
+    public boolean canResumeAfter(int transactionNumber)
+    {
+        int missed = -1;
+        for (CommittedWriteSet writeSet : history)
+        {
+            if (missed >= 0)
+            {
+                missed++;
+            }
+            else if (writeSet.getTransactionNumber() == transactionNumber)
+            {
+                missed = 0;
+            }
+        }
+        return missed >= 0 && missed <= subscriberBufferSize;
+    }
+
+
+    /**
+     * Starts shipping to a new follower: sends the snapshot, then everything published afterwards.
+     * Needs to be called while holding the commit lock, so no commit falls between snapshot and stream
+     *
+     * @param client the follower's connection
+     * @param readFromNet stream from the follower
+     * @param writeToNet stream to the follower
+     * @param snapshot the balances of all accounts as of now
+     */
+    public void addFollower(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet, CommittedWriteSet snapshot)
+    {
+        Receiver follower = new Receiver(client, readFromNet, writeToNet, snapshot, Integer.MAX_VALUE);
+
+        retaining = historySize > 0;
+        receivers.add(follower);
+        follower.start();
+
+        System.out.println("[ReplicationManager.addFollower] Follower " + client.getRemoteSocketAddress() + " added at transaction #" + snapshot.getTransactionNumber());
+    }
+
+
+    /**
+     * Starts shipping to a new change subscriber, either resuming after a transaction number
+     * or starting with a snapshot. Needs to be called while holding the commit lock
+     *
+     * @param client the subscriber's connection
+     * @param readFromNet stream from the subscriber
+     * @param writeToNet stream to the subscriber
+     * @param resumeAfter the last transaction number the subscriber has seen, used if there is no snapshot
+     * @param snapshot the balances of all accounts as of now, null when resuming
+     */
+    public void addSubscriber(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet, int resumeAfter, CommittedWriteSet snapshot)
+    {
+        Receiver subscriber = new Receiver(client, readFromNet, writeToNet, snapshot, subscriberBufferSize);
+
+        // replay what the subscriber missed from the retained write sets, canResumeAfter() made sure they all fit
+        if (snapshot == null)
+        {
+            Iterator<CommittedWriteSet> historyIterator = history.iterator();
+            while (historyIterator.next().getTransactionNumber() != resumeAfter);
+
+            while (historyIterator.hasNext())
+            {
+                subscriber.queue.add(historyIterator.next());
+            }
+        }
+
+        retaining = historySize > 0;
+        receivers.add(subscriber);
+        subscriber.start();
+
+        System.out.println("[ReplicationManager.addSubscriber] Subscriber " + client.getRemoteSocketAddress() + (snapshot == null ? " resumed after transaction #" + resumeAfter : " added at transaction #" + snapshot.getTransactionNumber()));
+    }
+
+
+    /**
+     * Objects of this inner class ship the write sets to one follower or subscriber
+     */
+    class Receiver extends Thread
+    {
+        Socket client;
+        ObjectInputStream readFromNet;
+        ObjectOutputStream writeToNet;
+
+        // the snapshot to be sent first, null if none
+        CommittedWriteSet snapshot;
+
+        // write sets published, but not shipped yet
+        final LinkedBlockingQueue<CommittedWriteSet> queue;
+
+        // last transaction number the follower acknowledged having applied
+        volatile int acknowledgedTransactionNumber = 0;
+
+
+        private Receiver(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet, CommittedWriteSet snapshot, int bufferSize)
+        {
+            this.client = client;
+            this.readFromNet = readFromNet;
+            this.writeToNet = writeToNet;
+            this.snapshot = snapshot;
+            this.queue = new LinkedBlockingQueue<>(bufferSize);
+            setDaemon(true);
+        }
+
+
+        /**
+         * Drops this receiver since its queue is full, the sender thread ends as the connection closes
+         */
+        private void overflow()
+        {
+            receivers.remove(this);
+            System.out.println("[ReplicationManager.Receiver.overflow] " + client.getRemoteSocketAddress() + " fell behind by " + queue.size() + " write sets, disconnecting");
+
+            try
+            {
+                client.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            // acknowledgements come back on their own thread, shipping never waits for them
+            Thread acknowledgementReader = new Thread(() -> {
+                try
+                {
+                    while (true)
+                    {
+                        acknowledgedTransactionNumber = (Integer) ((Message) readFromNet.readObject()).getContent();
+                    }
+                }
+                catch (IOException | ClassNotFoundException e)
+                {
+                    // receiver gone, the sender finds out on its next write
+                }
+            });
+            acknowledgementReader.setDaemon(true);
+            acknowledgementReader.start();
+
+            ArrayList<CommittedWriteSet> batch = new ArrayList<>();
+            try
+            {
+                // the snapshot goes first, on its own
+                if (snapshot != null)
+                {
+                    writeToNet.writeObject(new Message(REPLICATION_SNAPSHOT, snapshot));
+                    snapshot = null;
+                }
+
+                while (true)
+                {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                    writeToNet.writeObject(new Message(REPLICATION_BATCH, batch.toArray(new CommittedWriteSet[batch.size()])));
+                    writeToNet.flush();
+
+                    // forget the objects written, the stream would keep them all otherwise
+                    writeToNet.reset();
+                    batch.clear();
+                }
+            }
+            catch (IOException | InterruptedException e)
+            {
+                System.out.println("[ReplicationManager.Receiver.run] " + client.getRemoteSocketAddress() + " disconnected, acknowledged up to transaction #" + acknowledgedTransactionNumber);
+            }
+
+            receivers.remove(this);
+            try
+            {
+                client.close();
+            }
+            catch (IOException e)
+            {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package transaction.server.transaction;
+
+import java.util.ArrayList;
+
+
+/**
+ * Class keeping track of aborted transactions in bounded space: aggregate counters of all aborts
+ * by cause, plus a fixed-size ring buffer of the most recent sampled aborted transactions,
+ * which keep their detailed logs. Under contention aborts pile up faster than commits,
+ * so keeping every aborted transaction around is not an option for a long running server.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AbortHistory
+{
+    // causes of aborts
+    public static final int CONFLICT    = 0;  // failed validation
+    public static final int ABANDONED   = 1;  // client vanished or went silent
+    public static final int READ_ONLY   = 2;  // wrote on a follower
+    public static final int COORDINATOR = 3;  // prepared, then aborted by the two-phase commit coordinator
+
+    private static final String[] CAUSE_NAMES = { "conflict", "abandoned", "read-only", "coordinator" };
+
+    // aggregate counters, over the lifetime of the server
+    private int abortedCount = 0;
+    private final int[] causeCounts = new int[CAUSE_NAMES.length];
+
+    // ring buffer of sampled aborted transactions, next points to the oldest entry once the buffer is full
+    private final Transaction[] retained;
+    private int next = 0;
+    private int size = 0;
+
+    // every sampling-th aborted transaction is retained, 0 to retain none
+    private final int sampling;
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity maximum number of aborted transactions retained with their logs
+     * @param sampling retain every sampling-th aborted transaction, 1 for all, 0 for none
+     */
+    public AbortHistory(int capacity, int sampling)
+    {
+        this.retained = new Transaction[Math.max(capacity, 0)];
+        this.sampling = sampling;
+    }
+
+
+    /**
+     * Records an aborted transaction
+     *
+     * @param transaction the aborted transaction
+     * @param cause the cause of the abort, one of the constants above
+     */
+    public synchronized void record(Transaction transaction, int cause)
+    {
+        abortedCount++;
+        causeCounts[cause]++;
+
+        if (sampling <= 0 || retained.length == 0 || abortedCount % sampling != 0)
+        {
+            return;
+        }
+
+        retained[next] = transaction;
+        transaction.setRetained();
+        next = (next + 1) % retained.length;
+        size = Math.min(size + 1, retained.length);
+    }
+
+
+    /**
+     * @return the number of transactions aborted so far
+     */
+    public synchronized int getAbortedCount()
+    {
+        return abortedCount;
+    }
+
+
+    /**
+     * @param cause one of the constants above
+     * @return the number of transactions aborted so far for the given cause
+     */
+    public synchronized int getAbortedCount(int cause)
+    {
+        return causeCounts[cause];
+    }
+
+
+    /**
+     * @return the retained aborted transactions, oldest first
+     */
+    public synchronized ArrayList<Transaction> getRetainedTransactions()
+    {
+        ArrayList<Transaction> transactions = new ArrayList<>(size);
+
+        for (int index = 0; index < size; index++)
+        {
+            transactions.add(retained[(next - size + index + retained.length) % retained.length]);
+        }
+
+        return transactions;
+    }
+
+
+    /**
+     * @return a one-line summary of the counters
+     */
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder summary = new StringBuilder().append(abortedCount).append(" aborted");
+
+        for (int cause = 0; cause < CAUSE_NAMES.length; cause++)
+        {
+            summary.append(cause == 0 ? " (" : ", ").append(CAUSE_NAMES[cause]).append(": ").append(causeCounts[cause]);
+        }
+
+        return summary.append("), ").append(size).append(" retained").toString();
+    }
+}
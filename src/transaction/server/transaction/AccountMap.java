@@ -0,0 +1,182 @@
+package transaction.server.transaction;
+
+import java.util.Arrays;
+
+
+/**
+ * Map from account keys to balances on primitive ints, used for write sets. Unlike a HashMap of Integers
+ * it allocates nothing once it has grown to the size needed, also not when it is cleared and reused,
+ * which keeps request processing free of garbage. Entries are kept in insertion order and iterated by index:
+ *
+ *     for (int index = 0; index < map.size(); index++) { map.keyAt(index) ... map.valueAt(index) ... }
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AccountMap
+{
+    // the entries, densely packed in insertion order
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    // open addressing hash table of positions in the arrays above, plus one, 0 marking an empty bucket
+    private int[] buckets;
+
+
+    public AccountMap()
+    {
+        this(8);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity number of entries to make room for up front
+     */
+    public AccountMap(int capacity)
+    {
+        capacity = Math.max(capacity, 2);
+        keys = new int[capacity];
+        values = new int[capacity];
+        buckets = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    public boolean containsKey(int key)
+    {
+        return position(key) >= 0;
+    }
+
+
+    /**
+     * @param key the account key
+     * @return the balance mapped to the key, 0 if there is none
+     */
+    public int get(int key)
+    {
+        int position = position(key);
+        return position >= 0 ? values[position] : 0;
+    }
+
+
+    public void put(int key, int value)
+    {
+        int position = position(key);
+        if (position >= 0)
+        {
+            values[position] = value;
+            return;
+        }
+
+        if (size == keys.length)
+        {
+            grow();
+        }
+
+        keys[size] = key;
+        values[size] = value;
+        insertBucket(key, size++);
+    }
+
+
+    public int keyAt(int index)
+    {
+        return keys[index];
+    }
+
+
+    public int valueAt(int index)
+    {
+        return values[index];
+    }
+
+
+    /**
+     * Removes all entries, keeping the memory for reuse
+     */
+    public void clear()
+    {
+        if (size > 0)
+        {
+            Arrays.fill(buckets, 0);
+            size = 0;
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        StringBuilder map = new StringBuilder("{");
+
+        for (int index = 0; index < size; index++)
+        {
+            map.append(index == 0 ? "" : ", ").append(keys[index]).append("=").append(values[index]);
+        }
+
+        return map.append("}").toString();
+    }
+
+
+    /**
+     * Helper looking up the position of a key in the arrays
+     */
+    private int position(int key)
+    {
+        int mask = buckets.length - 1;
+
+        for (int bucket = hash(key) & mask; buckets[bucket] != 0; bucket = (bucket + 1) & mask)
+        {
+            if (keys[buckets[bucket] - 1] == key)
+            {
+                return buckets[bucket] - 1;
+            }
+        }
+        return -1;
+    }
+
+
+    private void insertBucket(int key, int position)
+    {
+        int mask = buckets.length - 1;
+        int bucket = hash(key) & mask;
+
+        while (buckets[bucket] != 0)
+        {
+            bucket = (bucket + 1) & mask;
+        }
+        buckets[bucket] = position + 1;
+    }
+
+
+    private void grow()
+    {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        values = Arrays.copyOf(values, values.length * 2);
+        buckets = new int[buckets.length * 2];
+
+        for (int position = 0; position < size; position++)
+        {
+            insertBucket(keys[position], position);
+        }
+    }
+
+
+    private static int hash(int key)
+    {
+        return key * 0x9E3779B9 >>> 16 ^ key;
+    }
+}
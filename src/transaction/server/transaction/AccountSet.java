@@ -0,0 +1,155 @@
+package transaction.server.transaction;
+
+import java.util.Arrays;
+
+
+/**
+ * Set of account keys on primitive ints, used for read sets. Membership is a hash lookup, so a transaction
+ * reading many accounts does not pay a linear scan per read, and like AccountMap it allocates nothing once
+ * it has grown to the size needed. Keys are kept in insertion order and iterated by index:
+ *
+ *     for (int index = 0; index < set.size(); index++) { set.keyAt(index) ... }
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AccountSet
+{
+    // the keys, densely packed in insertion order
+    private int[] keys;
+    private int size = 0;
+
+    // open addressing hash table of positions in the array above, plus one, 0 marking an empty bucket
+    private int[] buckets;
+
+
+    public AccountSet()
+    {
+        this(8);
+    }
+
+
+    /**
+     * Constructor
+     *
+     * @param capacity number of keys to make room for up front
+     */
+    public AccountSet(int capacity)
+    {
+        capacity = Math.max(capacity, 2);
+        keys = new int[capacity];
+        buckets = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+
+    public int size()
+    {
+        return size;
+    }
+
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+
+    public boolean contains(int key)
+    {
+        int mask = buckets.length - 1;
+
+        for (int bucket = hash(key) & mask; buckets[bucket] != 0; bucket = (bucket + 1) & mask)
+        {
+            if (keys[buckets[bucket] - 1] == key)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @param key the account key
+     * @return a flag indicating whether the key was added, i.e. was not in the set yet
+     */
+    public boolean add(int key)
+    {
+        if (contains(key))
+        {
+            return false;
+        }
+
+        if (size == keys.length)
+        {
+            grow();
+        }
+
+        keys[size] = key;
+        insertBucket(key, size++);
+        return true;
+    }
+
+
+    public int keyAt(int index)
+    {
+        return keys[index];
+    }
+
+
+    /**
+     * Removes all keys, keeping the memory for reuse
+     */
+    public void clear()
+    {
+        if (size > 0)
+        {
+            Arrays.fill(buckets, 0);
+            size = 0;
+        }
+    }
+
+
+    @Override
+    public String toString()
+    {
+        StringBuilder set = new StringBuilder("[");
+
+        for (int index = 0; index < size; index++)
+        {
+            set.append(index == 0 ? "" : ", ").append(keys[index]);
+        }
+
+        return set.append("]").toString();
+    }
+
+
+    private void insertBucket(int key, int position)
+    {
+        int mask = buckets.length - 1;
+        int bucket = hash(key) & mask;
+
+        while (buckets[bucket] != 0)
+        {
+            bucket = (bucket + 1) & mask;
+        }
+        buckets[bucket] = position + 1;
+    }
+
+
+    private void grow()
+    {
+        keys = Arrays.copyOf(keys, keys.length * 2);
+        buckets = new int[buckets.length * 2];
+
+        for (int position = 0; position < size; position++)
+        {
+            insertBucket(keys[position], position);
+        }
+    }
+
+
+    private static int hash(int key)
+    {
+        return key * 0x9E3779B9 >>> 16 ^ key;
+    }
+}
@@ -0,0 +1,94 @@
+package transaction.server.transaction;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Class capping the number of concurrently running transactions. The more transactions overlap,
+ * the more of them fail validation, so beyond some point admitting more transactions lowers throughput.
+ * An OPEN_TRANSACTION over the cap either waits in a bounded queue or is rejected right away,
+ * the client being told when to retry.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class AdmissionController
+{
+    // one permit per transaction allowed to run
+    private final Semaphore permits;
+
+    // maximum number of transactions waiting for admission, 0 to reject right away
+    private final int queueSize;
+    private final AtomicInteger waiting = new AtomicInteger(0);
+
+    // hint sent to rejected clients
+    private final int retryAfterMilliseconds;
+
+
+    /**
+     * Constructor
+     *
+     * @param maxRunningTransactions maximum number of transactions running at a time
+     * @param queueSize maximum number of transactions waiting for admission, 0 to reject right away
+     * @param retryAfterMilliseconds time a rejected client is told to wait before retrying
+     */
+    public AdmissionController(int maxRunningTransactions, int queueSize, int retryAfterMilliseconds)
+    {
+        this.permits = new Semaphore(maxRunningTransactions, true);
+        this.queueSize = queueSize;
+        this.retryAfterMilliseconds = retryAfterMilliseconds;
+    }
+
+
+    /**
+     * Admits a transaction, waiting in the queue if it is over the cap and the queue is not full
+     *
+     * @return a flag indicating whether the transaction is admitted, it needs to call release() when done
+     */
+    public boolean admit()
+    {
+        if (permits.tryAcquire())
+        {
+            return true;
+        }
+
+        // over the cap and the queue is full
+        if (waiting.incrementAndGet() > queueSize)
+        {
+            waiting.decrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            permits.acquire();
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            return false;
+        }
+        finally
+        {
+            waiting.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * Ends an admitted transaction, letting the next one in
+     */
+    public void release()
+    {
+        permits.release();
+    }
+
+
+    /**
+     * @return the time in milliseconds a rejected client is told to wait before retrying
+     */
+    public int getRetryAfterMilliseconds()
+    {
+        return retryAfterMilliseconds;
+    }
+}
@@ -0,0 +1,488 @@
+package transaction.server.transaction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import transaction.comm.AccountAggregate;
+import transaction.comm.MessageTypes;
+import transaction.server.account.AccountManager;
+import transaction.server.account.AccountSnapshot;
+
+
+/**
+ * Class executing chunks of independent transfers submitted in bulk, see BULK_SUBMIT. The transfers of a chunk
+ * are spread over a fixed pool of threads, each running its share one transfer after the other as ordinary
+ * transactions, opened, validated and written by the TransactionManager like those of any client.
+ * A transfer that fails validation is retried right away, backing off a little longer after every abort,
+ * until it commits or runs out of attempts. Each thread reuses its transaction object from one transfer to the next.
+ *
+ * The same pool runs updates of all accounts of the server, see BULK_UPDATE, splitting the accounts into ranges
+ * fork/join style. Either every range is a sub-transaction of its own, committed and retried independently, so
+ * concurrent transactions only ever compete with a small one, or the ranges are parts of one transaction,
+ * read and written in parallel and merged, which commits all accounts or none. Such a transaction rarely
+ * validates while other transactions keep committing, with central validation it finally runs holding the commit lock.
+ *
+ * Aggregates of ranges of accounts, see AGGREGATE, are reduced fork/join style as well, reading the accounts
+ * through a snapshot so writers neither wait for the reduction nor make it fail, see AccountSnapshot.
+ *
+ * @author wolfdieterotte
+ */
+public class BulkExecutor implements MessageTypes
+{
+    // number of accounts a part of an all-accounts transaction covers, see update()
+    private static final int PART_SIZE = 1024;
+
+    // the branch whose accounts are transferred between, updated and aggregated
+    private final TransactionManager transactionManager;
+    private final AccountManager accountManager;
+
+    // the threads running transfers and updates
+    private final ForkJoinPool threads;
+    private final int numberThreads;
+
+    // number of times a transfer is tried before it is given up on
+    private final int maxAttempts;
+
+
+    /**
+     * Constructor, starts the threads
+     *
+     * @param transactionManager the transaction manager of the branch
+     * @param numberThreads number of transfers run concurrently
+     * @param maxAttempts number of times a transfer is tried before it is given up on
+     */
+    public BulkExecutor(TransactionManager transactionManager, int numberThreads, int maxAttempts)
+    {
+        this(transactionManager, new ForkJoinPool(Math.max(numberThreads, 1), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("BulkExecutor");
+            return thread;
+        }, null, false), maxAttempts);
+    }
+
+
+    /**
+     * Constructor running on threads of an existing pool, e.g. the common pool for a server
+     * that does not serve BULK_SUBMIT and only needs to aggregate
+     *
+     * @param transactionManager the transaction manager of the branch
+     * @param threads the pool
+     * @param maxAttempts number of times a transfer, update or consistent aggregation is tried before it is given up on
+     */
+    public BulkExecutor(TransactionManager transactionManager, ForkJoinPool threads, int maxAttempts)
+    {
+        this.transactionManager = transactionManager;
+        this.accountManager = transactionManager.getAccountManager();
+        this.threads = threads;
+        this.numberThreads = threads.getParallelism();
+        this.maxAttempts = Math.max(maxAttempts, 1);
+    }
+
+
+    /**
+     * Runs a chunk of transfers and waits for all of them to finish
+     *
+     * @param transfers the transfers, as {account from, account to, amount, account from, account to, amount, ...}
+     * @return per transfer, TRANSACTION_COMMITTED or TRANSACTION_ABORTED if it ran out of attempts
+     */
+    public byte[] execute(int[] transfers)
+    {
+        int numberTransfers = transfers.length / 3;
+        byte[] outcomes = new byte[numberTransfers];
+
+        // thread i runs transfers i, i + n, i + 2n, ... so hot accounts are not all handed to the same thread
+        int numberSlices = Math.min(numberThreads, numberTransfers);
+        CompletableFuture<?>[] slices = new CompletableFuture<?>[numberSlices];
+        for (int sliceIndex = 0; sliceIndex < numberSlices; sliceIndex++)
+        {
+            int firstTransfer = sliceIndex;
+            slices[sliceIndex] = CompletableFuture.runAsync(() -> runSlice(transfers, outcomes, firstTransfer, numberSlices), threads);
+        }
+        CompletableFuture.allOf(slices).join();
+
+        return outcomes;
+    }
+
+
+    /**
+     * Helper running every step-th transfer of a chunk
+     */
+    private void runSlice(int[] transfers, byte[] outcomes, int firstTransfer, int step)
+    {
+        Transaction transaction = null;
+
+        for (int transferIndex = firstTransfer; transferIndex < outcomes.length; transferIndex += step)
+        {
+            int accountFrom = transfers[3 * transferIndex];
+            int accountTo   = transfers[3 * transferIndex + 1];
+            int amount      = transfers[3 * transferIndex + 2];
+
+            outcomes[transferIndex] = TRANSACTION_ABORTED;
+
+            // transfers involving accounts this server does not hold, or that do not exist, are given up on right away
+            if (!accountManager.exists(accountFrom) || !accountManager.exists(accountTo))
+            {
+                continue;
+            }
+
+            for (int attempt = 1; attempt <= maxAttempts; attempt++)
+            {
+                transaction = transactionManager.startTransaction(transaction);
+
+                transaction.write(accountFrom, transaction.read(accountFrom) - amount);
+                transaction.write(accountTo, transaction.read(accountTo) + amount);
+
+                if (transactionManager.closeTransaction(transaction))
+                {
+                    outcomes[transferIndex] = TRANSACTION_COMMITTED;
+                    break;
+                }
+
+                // back off a random time growing with the aborts, so colliding transfers do not collide again
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(attempt * 50_000L));
+            }
+        }
+    }
+
+
+    /**
+     * Applies a function to the balance of every account of this server, see BULK_UPDATE
+     *
+     * @param function UPDATE_INTEREST or UPDATE_ADD
+     * @param argument the function's argument
+     * @param chunkSize number of accounts per sub-transaction, 0 to update all accounts in one transaction
+     * @return {number of accounts updated, number of accounts not updated as their transaction ran out of attempts}
+     */
+    public int[] update(int function, int argument, int chunkSize)
+    {
+        // accounts created after this are not updated, accounts closed meanwhile make their transactions fail
+        int[] accountNumbers = accountManager.getAccountNumbers();
+        int numberAccounts = accountNumbers.length;
+
+        if (chunkSize > 0)
+        {
+            int updated = threads.invoke(new ChunkedUpdate(accountNumbers, 0, numberAccounts, function, argument, chunkSize));
+            return new int[] { updated, numberAccounts - updated };
+        }
+
+        for (int attempt = 1; attempt <= maxAttempts; attempt++)
+        {
+            Transaction transaction = transactionManager.startTransaction(null);
+            transaction.merge(threads.invoke(new PartialUpdate(transaction, accountNumbers, 0, numberAccounts, function, argument)));
+
+            if (transactionManager.closeTransaction(transaction))
+            {
+                return new int[] { numberAccounts, 0 };
+            }
+
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(attempt * 50_000L));
+        }
+
+        // under steady load a transaction reading every account hardly ever validates, as a last resort
+        // it runs holding the commit lock, which concurrent transactions wait for no longer than one pass over the accounts.
+        // The pass is not forked, the pool's threads may be running transfers waiting for the lock
+        Consumer<Transaction> updateAll = transaction -> {
+            for (int accountNumber : accountNumbers)
+            {
+                transaction.write(accountNumber, apply(function, argument, transaction.read(accountNumber)));
+            }
+        };
+        if (transactionManager.runExclusively(updateAll))
+        {
+            return new int[] { numberAccounts, 0 };
+        }
+
+        return new int[] { 0, numberAccounts };
+    }
+
+
+    /**
+     * Aggregates the balances of a range of accounts of this server, see AGGREGATE
+     *
+     * @param from first account of the range
+     * @param to first account after the range
+     * @return the aggregate of the accounts of the range held by this server
+     */
+    public AccountAggregate aggregate(int from, int to)
+    {
+        long[] result = null;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++)
+        {
+            // a split or merge while reading moves balances between physical accounts the reduction may have read already,
+            // an account created or closed makes the accounts collected up front differ from those of the snapshot
+            int restructurings = accountManager.getRestructurings();
+            int[] accountNumbers = accountManager.getAccountNumbers(from, to);
+            AccountSnapshot snapshot = transactionManager.startSnapshot();
+            if (snapshot == null)
+            {
+                break;
+            }
+
+            try
+            {
+                result = threads.invoke(new Aggregation(snapshot, null, accountNumbers, 0, accountNumbers.length));
+            }
+            finally
+            {
+                transactionManager.endSnapshot(snapshot);
+            }
+
+            if (restructurings == accountManager.getRestructurings())
+            {
+                return aggregate(from, to, result, true);
+            }
+        }
+
+        // without snapshots, i.e. in partitioned execution, the accounts are read by a read-only transaction,
+        // consistent if it validates
+        for (int attempt = 1; result == null && attempt <= maxAttempts; attempt++)
+        {
+            int[] accountNumbers = accountManager.getAccountNumbers(from, to);
+            Transaction transaction = transactionManager.startTransaction(null);
+            Aggregation aggregation = new Aggregation(null, transaction, accountNumbers, 0, accountNumbers.length);
+            long[] read = threads.invoke(aggregation);
+            transaction.merge(aggregation.part);
+
+            if (transactionManager.closeTransaction(transaction))
+            {
+                return aggregate(from, to, read, true);
+            }
+            if (attempt == maxAttempts)
+            {
+                result = read;
+            }
+
+            LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(attempt * 50_000L));
+        }
+
+        return aggregate(from, to, result, false);
+    }
+
+
+    /**
+     * Helper turning the result of an aggregation into the reply
+     */
+    private static AccountAggregate aggregate(int from, int to, long[] result, boolean consistent)
+    {
+        return new AccountAggregate(from, to, (int) result[0], result[1], (int) result[2], (int) result[3], consistent);
+    }
+
+
+    /**
+     * Helper applying an update function to a balance
+     */
+    private static int apply(int function, int argument, int balance)
+    {
+        switch (function)
+        {
+            case UPDATE_INTEREST:
+                return balance + (int) ((long) balance * argument / 10000);
+            case UPDATE_ADD:
+                return balance + argument;
+            default:
+                return balance;
+        }
+    }
+
+
+    /**
+     * Fork/join task updating a range of accounts in sub-transactions of at most chunkSize accounts,
+     * resulting in the number of accounts updated. Ranges are given as indices into an array of account numbers
+     */
+    private class ChunkedUpdate extends RecursiveTask<Integer>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] accountNumbers;
+        private final int from, to, function, argument, chunkSize;
+
+        ChunkedUpdate(int[] accountNumbers, int from, int to, int function, int argument, int chunkSize)
+        {
+            this.accountNumbers = accountNumbers;
+            this.from = from;
+            this.to = to;
+            this.function = function;
+            this.argument = argument;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if (to - from > chunkSize)
+            {
+                int middle = from + (to - from) / 2;
+                ChunkedUpdate left = new ChunkedUpdate(accountNumbers, from, middle, function, argument, chunkSize);
+                left.fork();
+                return new ChunkedUpdate(accountNumbers, middle, to, function, argument, chunkSize).compute() + left.join();
+            }
+
+            for (int attempt = 1; attempt <= maxAttempts; attempt++)
+            {
+                Transaction transaction = transactionManager.startTransaction(null);
+                for (int accountIndex = from; accountIndex < to; accountIndex++)
+                {
+                    transaction.write(accountNumbers[accountIndex], apply(function, argument, transaction.read(accountNumbers[accountIndex])));
+                }
+
+                if (transactionManager.closeTransaction(transaction))
+                {
+                    return to - from;
+                }
+
+                LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(attempt * 50_000L));
+            }
+            return 0;
+        }
+    }
+
+
+    /**
+     * Fork/join task reading and writing a range of accounts as parts of one transaction,
+     * resulting in a part holding the reads and writes of the whole range
+     */
+    private static class PartialUpdate extends RecursiveTask<Transaction>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Transaction transaction;
+        private final int[] accountNumbers;
+        private final int from, to, function, argument;
+
+        PartialUpdate(Transaction transaction, int[] accountNumbers, int from, int to, int function, int argument)
+        {
+            this.transaction = transaction;
+            this.accountNumbers = accountNumbers;
+            this.from = from;
+            this.to = to;
+            this.function = function;
+            this.argument = argument;
+        }
+
+        @Override
+        protected Transaction compute()
+        {
+            if (to - from > PART_SIZE)
+            {
+                int middle = from + (to - from) / 2;
+                PartialUpdate left = new PartialUpdate(transaction, accountNumbers, from, middle, function, argument);
+                left.fork();
+                Transaction part = new PartialUpdate(transaction, accountNumbers, middle, to, function, argument).compute();
+                part.merge(left.join());
+                return part;
+            }
+
+            Transaction part = transaction.part();
+            for (int accountIndex = from; accountIndex < to; accountIndex++)
+            {
+                part.write(accountNumbers[accountIndex], apply(function, argument, part.read(accountNumbers[accountIndex])));
+            }
+            return part;
+        }
+    }
+
+
+    /**
+     * Fork/join task aggregating the balances of a range of accounts, resulting in {count, sum, minimum, maximum}.
+     * The accounts are read through a snapshot, or if there is none, as a part of a read-only transaction,
+     * which is left in the field part holding the reads of the whole range
+     */
+    private class Aggregation extends RecursiveTask<long[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final AccountSnapshot snapshot;
+        private final Transaction transaction;
+        private final int[] accountNumbers;
+        private final int from, to;
+        Transaction part = null;
+
+        Aggregation(AccountSnapshot snapshot, Transaction transaction, int[] accountNumbers, int from, int to)
+        {
+            this.snapshot = snapshot;
+            this.transaction = transaction;
+            this.accountNumbers = accountNumbers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute()
+        {
+            if (to - from > PART_SIZE)
+            {
+                int middle = from + (to - from) / 2;
+                Aggregation left = new Aggregation(snapshot, transaction, accountNumbers, from, middle);
+                left.fork();
+                Aggregation right = new Aggregation(snapshot, transaction, accountNumbers, middle, to);
+                long[] result = right.compute();
+                long[] leftResult = left.join();
+
+                if (transaction != null)
+                {
+                    part = right.part;
+                    part.merge(left.part);
+                }
+                return new long[] { result[0] + leftResult[0], result[1] + leftResult[1],
+                        Math.min(result[2], leftResult[2]), Math.max(result[3], leftResult[3]) };
+            }
+
+            if (transaction != null)
+            {
+                part = transaction.part();
+            }
+
+            long sum = 0;
+            long min = Integer.MAX_VALUE;
+            long max = Integer.MIN_VALUE;
+            for (int accountIndex = from; accountIndex < to; accountIndex++)
+            {
+                int balance = read(accountNumbers[accountIndex]);
+                sum += balance;
+                min = Math.min(min, balance);
+                max = Math.max(max, balance);
+            }
+            return new long[] { to - from, sum, min, max };
+        }
+
+        /**
+         * Helper reading the logical balance of an account, summing up the sub-accounts of a split account
+         */
+        private int read(int accountNumber)
+        {
+            if (part != null)
+            {
+                return part.read(accountNumber);
+            }
+
+            int[] slots = accountManager.getSlots(accountNumber);
+            if (slots == null)
+            {
+                return readPhysical(accountNumber);
+            }
+
+            int balance = 0;
+            for (int slot : slots)
+            {
+                balance += readPhysical(slot);
+            }
+            return balance;
+        }
+
+        /**
+         * Helper reading a physical account as of the moment the snapshot started, the current balance first
+         */
+        private int readPhysical(int key)
+        {
+            // with epoch-based commit an account held by a committing transaction is read once written
+            EpochCommit epochCommit = transactionManager.getEpochCommit();
+            int current = epochCommit != null ? epochCommit.read(key, null) : accountManager.readPhysical(key);
+
+            return snapshot.get(key, current);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package transaction.server.transaction;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Thread collecting transactions closing at about the same time into batches, which are validated
+ * in a single pass over the committed transactions and written together, taking the commit lock once
+ * per batch instead of once per transaction. Transactions closing while a batch is being committed
+ * make up the next batch, so under low load batches are of size one and nobody waits for a batch to fill up.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class CommitSequencer extends Thread
+{
+    // transactions waiting to be validated, along with the future telling their workers the outcome
+    private final LinkedBlockingQueue<PendingClose> pendingCloses = new LinkedBlockingQueue<>();
+
+    // the transaction manager validating the batches
+    private final TransactionManager transactionManager;
+
+    // maximum number of transactions validated in one pass
+    private final int maxBatchSize;
+
+
+    /**
+     * Constructor
+     *
+     * @param transactionManager the transaction manager of the branch
+     * @param maxBatchSize maximum number of transactions validated in one pass
+     */
+    public CommitSequencer(TransactionManager transactionManager, int maxBatchSize)
+    {
+        super("CommitSequencer");
+        this.transactionManager = transactionManager;
+        this.maxBatchSize = maxBatchSize;
+        setDaemon(true);
+    }
+
+
+    /**
+     * Hands a transaction over for validation and, if successful, writing, and waits for the outcome
+     *
+     * @param transaction Transaction to be closed
+     * @return a flag indicating whether the transaction committed
+     */
+    public boolean close(Transaction transaction)
+    {
+        PendingClose pendingClose = new PendingClose(transaction);
+        pendingCloses.add(pendingClose);
+
+        return pendingClose.committed.join();
+    }
+
+
+    @Override
+    public void run()
+    {
+        ArrayList<PendingClose> batch = new ArrayList<>(maxBatchSize);
+        ArrayList<Transaction> transactions = new ArrayList<>(maxBatchSize);
+
+        while (true)
+        {
+            batch.clear();
+            transactions.clear();
+
+            // wait for the first one, then take whoever else is waiting
+            try
+            {
+                batch.add(pendingCloses.take());
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            pendingCloses.drainTo(batch, maxBatchSize - 1);
+
+            for (PendingClose pendingClose : batch)
+            {
+                transactions.add(pendingClose.transaction);
+            }
+
+            boolean[] committed;
+            try
+            {
+                committed = transactionManager.closeBatch(transactions);
+            }
+            catch (RuntimeException e)
+            {
+                // do not leave the workers hanging, their transactions count as aborted
+                System.err.println("[CommitSequencer.run] Failed to commit batch: " + e);
+                committed = new boolean[batch.size()];
+            }
+
+            for (int index = 0; index < batch.size(); index++)
+            {
+                batch.get(index).committed.complete(committed[index]);
+            }
+        }
+    }
+
+
+    /**
+     * A transaction waiting to be validated
+     */
+    private static class PendingClose
+    {
+        final Transaction transaction;
+        final CompletableFuture<Boolean> committed = new CompletableFuture<>();
+
+        PendingClose(Transaction transaction)
+        {
+            this.transaction = transaction;
+        }
+    }
+}
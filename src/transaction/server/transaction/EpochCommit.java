@@ -0,0 +1,330 @@
+package transaction.server.transaction;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import transaction.server.TransactionServer;
+import transaction.server.account.Account;
+import transaction.server.account.AccountManager;
+import transaction.server.account.AccountSnapshot;
+
+
+/**
+ * Class implementing epoch-based commit in the style of Silo: there are no transaction numbers handed out
+ * centrally and no commit lock. Each account carries the commit ID of its last writer, reads record the
+ * commit IDs they saw and a committing transaction
+ * - locks the accounts it writes, in ascending order of their keys,
+ * - reads the global epoch,
+ * - validates that every account read still carries the commit ID seen and is not locked by somebody else,
+ * - derives its own commit ID from the epoch and the commit IDs of the accounts it touched,
+ * - writes its accounts and unlocks them, publishing the new commit ID.
+ * The only global state is the epoch, which a background thread advances periodically, and which
+ * committing transactions merely read. Commit IDs order conflicting transactions, the epoch in the
+ * upper half groups commits into coarse units, e.g. for logging.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class EpochCommit
+{
+    // the accounts of the branch committing
+    private final AccountManager accountManager;
+
+    // the global epoch, only ever written by the epoch thread
+    private volatile long epoch = 1;
+
+    // transaction IDs are handed out to threads in blocks of this many
+    private static final int ID_BLOCK_SIZE = 1024;
+
+    // start of the next block of transaction IDs, and per thread the next ID and the end of its block
+    private final AtomicInteger nextIdBlock = new AtomicInteger(1);
+    private final ThreadLocal<int[]> idBlock = ThreadLocal.withInitial(() -> new int[2]);
+
+
+    /**
+     * Constructor, starts the thread advancing the epoch
+     *
+     * @param accountManager the accounts of the branch
+     * @param epochMilliseconds length of an epoch in milliseconds
+     */
+    public EpochCommit(AccountManager accountManager, int epochMilliseconds)
+    {
+        this.accountManager = accountManager;
+        Thread epochAdvancer = new Thread(() -> {
+            while (true)
+            {
+                try
+                {
+                    Thread.sleep(epochMilliseconds);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                epoch++;
+            }
+        }, "EpochAdvancer");
+
+        epochAdvancer.setDaemon(true);
+        epochAdvancer.start();
+    }
+
+
+    /**
+     * @return the current epoch
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+
+    /**
+     * Generates a transaction ID, unique like those of the central counter. Each thread draws its IDs from a block
+     * of its own and takes a new block from the shared counter only once every ID_BLOCK_SIZE transactions,
+     * so opening a transaction practically never touches a cache line shared with other threads
+     *
+     * @return a new, unique transaction ID
+     */
+    public int nextTransactionID()
+    {
+        int[] block = idBlock.get();
+        if (block[0] == block[1])
+        {
+            block[0] = nextIdBlock.getAndAdd(ID_BLOCK_SIZE);
+            block[1] = block[0] + ID_BLOCK_SIZE;
+        }
+
+        // IDs stay positive when the counter wraps, as sub-account slots are chosen by the ID modulo their number
+        return block[0]++ & Integer.MAX_VALUE;
+    }
+
+
+    /**
+     * Reads the committed balance of a physical account along with the commit ID it was written by,
+     * retrying until both belong to the same, completed write
+     *
+     * @param key account number or sub-account key
+     * @param reader if not null, the commit ID seen is recorded in this transaction for validation,
+     *               unless the account was read before
+     * @return the committed balance, 0 for a sub-account that has been merged away
+     */
+    public int read(int key, Transaction reader)
+    {
+        Account account = accountManager.getAccount(key);
+
+        // a merged sub-account reads as empty, its commit ID can never validate
+        if (account == null)
+        {
+            if (reader != null)
+            {
+                reader.recordReadTid(key, -1L);
+            }
+            return 0;
+        }
+
+        long tid;
+        int balance;
+        while (true)
+        {
+            tid = account._tid();
+            if ((tid & Account.LOCK_BIT) != 0)
+            {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            balance = account._read();
+            if (account._tid() == tid)
+            {
+                break;
+            }
+        }
+
+        if (reader != null)
+        {
+            reader.recordReadTid(key, tid);
+        }
+        return balance;
+    }
+
+
+    /**
+     * Validates and, if successful, writes a transaction
+     *
+     * @param transaction the transaction to commit
+     * @return a flag indicating whether the transaction committed
+     */
+    public boolean commit(Transaction transaction)
+    {
+        AccountMap writeSet = transaction.getWriteSet();
+        int writeCount = writeSet.size();
+
+        // the transaction's scratch space, reused along with the transaction
+        if (transaction.commitKeys.length < writeCount)
+        {
+            transaction.commitKeys = new int[writeCount];
+            transaction.commitAccounts = new Account[writeCount];
+        }
+        int[] keys = transaction.commitKeys;
+        Account[] locked = transaction.commitAccounts;
+
+        // lock the write set in a global order, so committing transactions cannot deadlock
+        for (int keyIndex = 0; keyIndex < writeCount; keyIndex++)
+        {
+            keys[keyIndex] = writeSet.keyAt(keyIndex);
+        }
+        Arrays.sort(keys, 0, writeCount);
+
+        for (int keyIndex = 0; keyIndex < writeCount; keyIndex++)
+        {
+            locked[keyIndex] = lock(keys[keyIndex]);
+
+            // wrote a sub-account that is gone by now
+            if (locked[keyIndex] == null)
+            {
+                if (TransactionServer.logging)
+                {
+                    transaction.log("[EpochCommit.commit] Transaction #" + transaction.getTransactionID() + " used a merged sub-account");
+                }
+                unlock(locked, keyIndex);
+                return false;
+            }
+        }
+
+        // the epoch this transaction commits in, read after locking and before validating
+        long commitEpoch = epoch;
+        long tid = commitEpoch << 32;
+
+        // validate: everything read still carries the commit ID seen and is not being written by somebody else
+        for (int readIndex = 0; readIndex < transaction.getReadTidCount(); readIndex++)
+        {
+            int key = transaction.getReadTidKey(readIndex);
+            Account account = accountManager.getAccount(key);
+            long current = account == null ? -1 : account._tid();
+            boolean lockedByOthers = (current & Account.LOCK_BIT) != 0 && !writeSet.containsKey(key);
+
+            if (account == null || (current & ~Account.LOCK_BIT) != transaction.getReadTidValue(readIndex) || lockedByOthers)
+            {
+                transaction.addConflict(key, -1);
+            }
+            tid = Math.max(tid, (current & ~Account.LOCK_BIT) + 1);
+        }
+
+        if (!transaction.getConflictAccounts().isEmpty())
+        {
+            if (TransactionServer.logging)
+            {
+                transaction.log("[EpochCommit.commit] Transaction #" + transaction.getTransactionID() + " failed validation on account(s) " + transaction.getConflictAccounts());
+            }
+            unlock(locked, writeCount);
+            return false;
+        }
+
+        // the commit ID is larger than that of any account touched, and in this epoch
+        for (int keyIndex = 0; keyIndex < writeCount; keyIndex++)
+        {
+            tid = Math.max(tid, (locked[keyIndex]._tid() & ~Account.LOCK_BIT) + 1);
+        }
+
+        // write, unlocking publishes the new commit ID. Snapshots started from here on see the transaction
+        // as committed, reading an account it still holds waits for the lock, those started before get the pre-images
+        AccountSnapshot[] snapshots = accountManager.getSnapshots();
+        for (int keyIndex = 0; keyIndex < writeCount; keyIndex++)
+        {
+            accountManager.recordPreImage(keys[keyIndex], locked[keyIndex], snapshots);
+            locked[keyIndex]._write(writeSet.get(keys[keyIndex]));
+            locked[keyIndex]._unlock(tid);
+        }
+
+        if (TransactionServer.logging)
+        {
+            transaction.log("[EpochCommit.commit] Transaction #" + transaction.getTransactionID() + " committed in epoch " + commitEpoch + " with commit ID " + tid);
+        }
+        return true;
+    }
+
+
+    /**
+     * Runs a restructuring of accounts, i.e. splitting or merging, while holding the locks on the accounts involved.
+     * Afterwards they carry a new commit ID, so transactions having read them before fail validation
+     *
+     * @param keys the physical keys of the accounts involved
+     * @param restructuring the restructuring to run
+     * @return the restructuring's result
+     */
+    public <T> T restructure(int[] keys, Supplier<T> restructuring)
+    {
+        keys = keys.clone();
+        Arrays.sort(keys);
+
+        Account[] locked = new Account[keys.length];
+        int lockedCount = 0;
+        for (int key : keys)
+        {
+            Account account = lock(key);
+            if (account != null)
+            {
+                locked[lockedCount++] = account;
+            }
+        }
+
+        try
+        {
+            return restructuring.get();
+        }
+        finally
+        {
+            for (int lockIndex = 0; lockIndex < lockedCount; lockIndex++)
+            {
+                locked[lockIndex]._unlock(Math.max(epoch << 32, (locked[lockIndex]._tid() & ~Account.LOCK_BIT) + 1));
+            }
+        }
+    }
+
+
+    /**
+     * Helper spinning until an account is locked
+     *
+     * @param key account number or sub-account key
+     * @return the locked account, null if it is gone
+     */
+    private Account lock(int key)
+    {
+        while (true)
+        {
+            Account account = accountManager.getAccount(key);
+            if (account == null)
+            {
+                return null;
+            }
+
+            if (account._tryLock())
+            {
+                // merged away while we were waiting for the lock
+                if (accountManager.getAccount(key) != account)
+                {
+                    account._unlock(account._tid() & ~Account.LOCK_BIT);
+                    return null;
+                }
+                return account;
+            }
+
+            Thread.onSpinWait();
+        }
+    }
+
+
+    /**
+     * Helper unlocking accounts without changing their commit IDs
+     *
+     * @param locked the locked accounts
+     * @param count the number of accounts locked, from the start of the array
+     */
+    private void unlock(Account[] locked, int count)
+    {
+        for (int lockIndex = 0; lockIndex < count; lockIndex++)
+        {
+            locked[lockIndex]._unlock(locked[lockIndex]._tid() & ~Account.LOCK_BIT);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package transaction.server.transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Class counting how often accounts show up in a stream, e.g. of conflicts or writes, keeping track of
+ * the most frequent ones in bounded space. Implements the space-saving algorithm: with k counters,
+ * every account occurring more than 1/k-th of the time is guaranteed to be among them, and its count
+ * is overestimated by at most the error kept alongside it.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class HotAccountCounter
+{
+    // account number -> { count, maximum overestimation }
+    private final HashMap<Integer, long[]> counters = new HashMap<>();
+    private final int size;
+
+    // number of accounts offered in total
+    private long total = 0;
+
+
+    /**
+     * Constructor
+     *
+     * @param size number of counters, i.e. the number of accounts tracked at a time
+     */
+    public HotAccountCounter(int size)
+    {
+        this.size = Math.max(size, 1);
+    }
+
+
+    /**
+     * Counts one occurrence of an account
+     *
+     * @param accountNumber the account
+     */
+    public synchronized void offer(int accountNumber)
+    {
+        total++;
+
+        long[] counter = counters.get(accountNumber);
+        if (counter != null)
+        {
+            counter[0]++;
+            return;
+        }
+
+        if (counters.size() < size)
+        {
+            counters.put(accountNumber, new long[] { 1, 0 });
+            return;
+        }
+
+        // all counters taken, the account replaces the least frequent one, inheriting its count as error
+        Map.Entry<Integer, long[]> minimum = null;
+        for (Map.Entry<Integer, long[]> entry : counters.entrySet())
+        {
+            if (minimum == null || entry.getValue()[0] < minimum.getValue()[0])
+            {
+                minimum = entry;
+            }
+        }
+
+        long minimumCount = minimum.getValue()[0];
+        counters.remove(minimum.getKey());
+        counters.put(accountNumber, new long[] { minimumCount + 1, minimumCount });
+    }
+
+
+    /**
+     * @return the number of accounts offered in total
+     */
+    public synchronized long getTotal()
+    {
+        return total;
+    }
+
+
+    /**
+     * Determines the most frequent accounts
+     *
+     * @param k maximum number of accounts to return
+     * @return { account number, count, maximum overestimation of count } per account, most frequent first
+     */
+    public synchronized long[][] getTop(int k)
+    {
+        ArrayList<long[]> top = new ArrayList<>(counters.size());
+
+        for (Map.Entry<Integer, long[]> entry : counters.entrySet())
+        {
+            top.add(new long[] { entry.getKey(), entry.getValue()[0], entry.getValue()[1] });
+        }
+        top.sort((first, second) -> Long.compare(second[1], first[1]));
+
+        return top.subList(0, Math.min(k, top.size())).toArray(new long[0][]);
+    }
+}
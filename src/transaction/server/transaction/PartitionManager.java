@@ -0,0 +1,331 @@
+package transaction.server.transaction;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import transaction.server.account.Account;
+import transaction.server.account.AccountManager;
+
+
+/**
+ * Class implementing partitioned execution: the accounts are range-partitioned across a number
+ * of executor threads, each of which owns the data of its partition and runs all operations on it
+ * serially, so no locks are needed on the data itself.
+ *
+ * Instead of transaction numbers, reads are validated against per-account versions.
+ * A transaction touching only one partition is validated and written by that partition's executor
+ * in one go. A transaction spanning several partitions visits the partitions in ascending order,
+ * each executor validating its share and then parking until all partitions voted, which rules out
+ * deadlocks between concurrent cross-partition transactions.
+ *
+ * @author wolfdieterotte
+ */
+public class PartitionManager
+{
+    // the accounts of the branch partitioned
+    private final AccountManager accountManager;
+
+    // the executors, one per partition
+    private final PartitionExecutor[] executors;
+
+    // number of accounts per partition, the last partition may hold less
+    private final int partitionSize;
+
+    // transaction IDs are the only thing shared between the partitions
+    private final AtomicInteger transactionIdCounter = new AtomicInteger(0);
+
+
+    /**
+     * Constructor, creates and starts the executors
+     *
+     * @param accountManager the accounts of the branch
+     * @param numberPartitions number of partitions and executor threads
+     */
+    public PartitionManager(AccountManager accountManager, int numberPartitions)
+    {
+        this.accountManager = accountManager;
+        int numberAccounts = accountManager.getNumberInitialAccounts();
+
+        numberPartitions = Math.max(1, Math.min(numberPartitions, numberAccounts));
+        partitionSize = Math.max((numberAccounts + numberPartitions - 1) / numberPartitions, 1);
+
+        executors = new PartitionExecutor[numberPartitions];
+        for (int partitionIndex = 0; partitionIndex < numberPartitions; partitionIndex++)
+        {
+            executors[partitionIndex] = new PartitionExecutor(partitionIndex);
+            executors[partitionIndex].start();
+        }
+    }
+
+
+    /**
+     * @return a new, unique transaction ID
+     */
+    public int nextTransactionID()
+    {
+        return transactionIdCounter.incrementAndGet();
+    }
+
+
+    /**
+     * @return the number of partitions
+     */
+    public int getNumberPartitions()
+    {
+        return executors.length;
+    }
+
+
+    /**
+     * Determines the partition a physical key belongs to, sub-accounts of a split account
+     * belong to the partition of the account itself. Accounts created beyond those the server started out with
+     * are dealt out to the partitions range by range, the ranges being as large as the initial ones
+     *
+     * @param key account number or sub-account key
+     * @return the partition index, -1 for a sub-account that has been merged away
+     */
+    int partitionOf(int key)
+    {
+        int accountNumber = accountManager.getLogicalNumber(key);
+
+        return accountNumber < 0 ? -1 : (accountNumber - accountManager.getFirstAccountNumber()) / partitionSize % executors.length;
+    }
+
+
+    /**
+     * Runs a task on the executor owning an account and waits for its result
+     *
+     * @param accountNumber the account determining the partition
+     * @param task the task to run
+     * @return the task's result
+     */
+    public <T> T call(int accountNumber, Supplier<T> task)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        executors[partitionOf(accountNumber)].submit(() -> result.complete(task.get()));
+        return result.join();
+    }
+
+
+    /**
+     * Reads the committed balance of a physical account through its partition's executor
+     *
+     * @param key account number or sub-account key
+     * @param readVersions if not null, the version read is recorded in here for validation,
+     *                     unless the key was read before
+     * @return the committed balance
+     */
+    int read(int key, HashMap<Integer, Integer> readVersions)
+    {
+        // a merged sub-account reads as empty, its version can never validate
+        if (partitionOf(key) < 0)
+        {
+            if (readVersions != null)
+            {
+                readVersions.putIfAbsent(key, -1);
+            }
+            return 0;
+        }
+
+        return call(key, () -> {
+            Account account = accountManager.getAccount(key);
+
+            if (readVersions != null)
+            {
+                readVersions.putIfAbsent(key, account == null ? -1 : account._version());
+            }
+            return account == null ? 0 : account._read();
+        });
+    }
+
+
+    /**
+     * Validates and, if successful, writes a transaction
+     *
+     * @param transaction the transaction to commit
+     * @return a flag indicating whether the transaction committed
+     */
+    boolean commit(Transaction transaction)
+    {
+        // collect the partitions involved, in ascending order
+        TreeSet<Integer> partitionIndices = new TreeSet<>();
+
+        for (int index = 0; index < transaction.getReadSet().size(); index++)
+        {
+            partitionIndices.add(partitionOf(transaction.getReadSet().keyAt(index)));
+        }
+        for (int index = 0; index < transaction.getWriteSet().size(); index++)
+        {
+            partitionIndices.add(partitionOf(transaction.getWriteSet().keyAt(index)));
+        }
+
+        // touched a sub-account that is gone by now
+        if (partitionIndices.contains(-1))
+        {
+            transaction.log("[PartitionManager.commit] Transaction #" + transaction.getTransactionID() + " used a merged sub-account");
+            return false;
+        }
+
+        // nothing touched, nothing to do
+        if (partitionIndices.isEmpty())
+        {
+            return true;
+        }
+
+        // single-partition transaction, validated and written in one go by the owning executor
+        if (partitionIndices.size() == 1)
+        {
+            PartitionExecutor executor = executors[partitionIndices.first()];
+            CompletableFuture<Boolean> committed = new CompletableFuture<>();
+
+            executor.submit(() -> {
+                boolean valid = executor.validate(transaction);
+                if (valid)
+                {
+                    executor.install(transaction);
+                }
+                committed.complete(valid);
+            });
+
+            return committed.join();
+        }
+
+        // cross-partition transaction: collect the votes partition by partition,
+        // each voting executor waits for the decision before it continues with other work
+        CompletableFuture<Boolean> decision = new CompletableFuture<>();
+        ArrayList<CompletableFuture<Boolean>> installed = new ArrayList<>();
+
+        for (Integer partitionIndex : partitionIndices)
+        {
+            PartitionExecutor executor = executors[partitionIndex];
+            CompletableFuture<Boolean> vote = new CompletableFuture<>();
+            CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+            executor.submit(() -> {
+                boolean valid = executor.validate(transaction);
+                vote.complete(valid);
+
+                if (valid && decision.join())
+                {
+                    executor.install(transaction);
+                }
+                done.complete(true);
+            });
+            installed.add(done);
+
+            if (!vote.join())
+            {
+                transaction.log("[PartitionManager.commit] Transaction #" + transaction.getTransactionID() + " failed validation in partition " + partitionIndex + " on account(s) " + transaction.getConflictAccounts());
+                decision.complete(false);
+                return false;
+            }
+        }
+
+        decision.complete(true);
+
+        // wait for the writes, so the client does not see its own transaction's effects missing
+        for (CompletableFuture<Boolean> done : installed)
+        {
+            done.join();
+        }
+
+        transaction.log("[PartitionManager.commit] Transaction #" + transaction.getTransactionID() + " committed across " + partitionIndices.size() + " partitions");
+        return true;
+    }
+
+
+    /**
+     * Objects of this inner class are the executor threads, each one owning one partition
+     */
+    class PartitionExecutor extends Thread
+    {
+        private final int partitionIndex;
+        private final LinkedBlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+
+
+        private PartitionExecutor(int partitionIndex)
+        {
+            super("PartitionExecutor-" + partitionIndex);
+            this.partitionIndex = partitionIndex;
+            setDaemon(true);
+        }
+
+
+        void submit(Runnable task)
+        {
+            tasks.add(task);
+        }
+
+
+        /**
+         * Checks the versions of all accounts of this partition read by the transaction,
+         * must only be called from this executor
+         */
+        private boolean validate(Transaction transaction)
+        {
+            for (Map.Entry<Integer, Integer> readVersion : transaction.getReadVersions().entrySet())
+            {
+                if (partitionOf(readVersion.getKey()) == partitionIndex)
+                {
+                    Account account = accountManager.getAccount(readVersion.getKey());
+
+                    if (account == null || account._version() != readVersion.getValue())
+                    {
+                        transaction.addConflict(readVersion.getKey(), -1);
+                    }
+                }
+            }
+
+            // the amount written to an account that does not exist would disappear
+            AccountMap writeSet = transaction.getWriteSet();
+            for (int index = 0; index < writeSet.size(); index++)
+            {
+                if (partitionOf(writeSet.keyAt(index)) == partitionIndex && accountManager.getAccount(writeSet.keyAt(index)) == null)
+                {
+                    transaction.addConflict(writeSet.keyAt(index), -1);
+                }
+            }
+            return transaction.getConflictAccounts().isEmpty();
+        }
+
+
+        /**
+         * Writes all accounts of this partition written by the transaction,
+         * must only be called from this executor
+         */
+        private void install(Transaction transaction)
+        {
+            AccountMap writeSet = transaction.getWriteSet();
+            for (int index = 0; index < writeSet.size(); index++)
+            {
+                if (partitionOf(writeSet.keyAt(index)) == partitionIndex)
+                {
+                    accountManager.write(writeSet.keyAt(index), writeSet.valueAt(index));
+                }
+            }
+        }
+
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                try
+                {
+                    tasks.take().run();
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
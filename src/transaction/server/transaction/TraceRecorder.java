@@ -0,0 +1,188 @@
+package transaction.server.transaction;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import transaction.comm.TransactionTrace;
+
+
+/**
+ * Class recording the workload of all branches to a trace file, see TransactionTrace, to be fed back
+ * to a server by TraceReplay. The workers collect a transaction's operations as they go and hand it over
+ * once it ended, a writer thread appends it to the file. Like replication, recording never holds up
+ * a transaction: if the writer falls behind by more than the queue holds, transactions are left out
+ * of the trace and counted.
+ *
+ * Traced are the transactions opened by clients, over object streams and the binary protocol,
+ * with READ_MANY and WRITE_MANY broken down into single reads and writes. Not traced are bulk submissions,
+ * administrative requests, transactions rejected by admission control and reads a client served
+ * from its read cache.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TraceRecorder extends Thread
+{
+    // number of finished transactions waiting to be written before further ones are dropped
+    private static final int QUEUE_SIZE = 65536;
+
+    // maximum number of transactions written in one go
+    private static final int MAX_BATCH_SIZE = 256;
+
+    // marks the end of the recording in the queue
+    private static final TransactionTrace END = new TransactionTrace(-1, -1);
+
+    private final String traceFile;
+    private final DataOutputStream out;
+    private final LinkedBlockingQueue<TransactionTrace> queue = new LinkedBlockingQueue<>(QUEUE_SIZE);
+
+    // start of the recording, all times of the trace are relative to it
+    private final long startNanos = System.nanoTime();
+
+    private volatile boolean recording = true;
+    private boolean closed = false;
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+
+    /**
+     * Constructor, creates the trace file and starts recording
+     *
+     * @param traceFile the file, overwritten if it exists
+     * @throws IOException if the file cannot be created
+     */
+    public TraceRecorder(String traceFile) throws IOException
+    {
+        super("TraceRecorder");
+        this.traceFile = traceFile;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(traceFile), 1 << 16));
+        TransactionTrace.writeHeader(out, System.currentTimeMillis());
+
+        setDaemon(true);
+        start();
+    }
+
+
+    /**
+     * @return microseconds since the start of the recording
+     */
+    public long now()
+    {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+
+    /**
+     * Starts tracing a transaction
+     *
+     * @param branchID the branch it runs on
+     * @return the trace to add the transaction's operations to
+     */
+    public TransactionTrace open(int branchID)
+    {
+        return new TransactionTrace(branchID, now());
+    }
+
+
+    /**
+     * Adds an operation to a transaction's trace
+     *
+     * @param trace the transaction's trace
+     * @param type READ_REQUEST, WRITE_REQUEST or DEPOSIT_REQUEST
+     * @param accountNumber the account
+     * @param value the balance read, the balance written or the amount deposited
+     * @param previous the balance the server had before a write, 0 unless a write
+     */
+    public void add(TransactionTrace trace, int type, int accountNumber, int value, int previous)
+    {
+        // a write is recorded relative to what the transaction saw, which its client based the write on
+        int delta = type == TransactionTrace.WRITE_REQUEST ? value - trace.getSeenBalance(accountNumber, previous) : 0;
+        trace.add(type, (int) (now() - trace.getOpened()), accountNumber, value, delta);
+    }
+
+
+    /**
+     * Hands over a transaction that ended to be written, the trace must not be touched afterwards
+     *
+     * @param trace the transaction's trace
+     * @param outcome how it ended, see TransactionTrace
+     */
+    public void record(TransactionTrace trace, byte outcome)
+    {
+        trace.finish(outcome, (int) (now() - trace.getOpened()));
+
+        if (!recording || !queue.offer(trace))
+        {
+            dropped.increment();
+        }
+    }
+
+
+    /**
+     * Stops recording, writes what is queued and closes the file. Transactions ending afterwards are dropped
+     */
+    public synchronized void close()
+    {
+        if (closed)
+        {
+            return;
+        }
+        closed = true;
+        recording = false;
+
+        try
+        {
+            queue.put(END);
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.println("[TraceRecorder.close] Recorded " + recorded.sum() + " transactions to " + traceFile
+                + (dropped.sum() > 0 ? ", " + dropped.sum() + " transactions dropped" : ""));
+    }
+
+
+    @Override
+    public void run()
+    {
+        ArrayList<TransactionTrace> batch = new ArrayList<>();
+        try
+        {
+            while (true)
+            {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+                for (TransactionTrace trace : batch)
+                {
+                    if (trace == END)
+                    {
+                        out.close();
+                        return;
+                    }
+                    trace.write(out);
+                    recorded.increment();
+                }
+
+                // a trace cut short by a crash still holds everything written before the queue ran dry
+                if (queue.isEmpty())
+                {
+                    out.flush();
+                }
+                batch.clear();
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            recording = false;
+            queue.clear();
+            System.err.println("[TraceRecorder.run] Stopped recording to " + traceFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package transaction.server.transaction;
 
 import transaction.server.TransactionServer;
+import transaction.server.account.Account;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 
 
@@ -11,20 +13,49 @@ import java.util.HashMap;
  */
 public class Transaction {
 
+	// the transaction manager of the branch this transaction runs on
+	final TransactionManager transactionManager;
+
 	// transaction ID and OCC specific transaction numbers
 	int transactionID;
 	int transactionNumber;
 	int lastAssignedTransactionNumber;
 
 	// the sets of tentative data
-	ArrayList<Integer>         readSet = new ArrayList<>();
-	HashMap<Integer, Integer> writeSet = new HashMap<>();
+	AccountSet         readSet  = new AccountSet();
+	AccountMap         writeSet = new AccountMap();
+
+	// account versions seen by this transaction's reads, only used in partitioned execution
+	HashMap<Integer, Integer> readVersions = new HashMap<>();
+
+	// commit IDs of the accounts read, only used in epoch-based commit, kept in primitive arrays
+	// so reusing a transaction does not allocate
+	int[]  readTidKeys   = new int[8];
+	long[] readTidValues = new long[8];
+	int    readTidCount  = 0;
+
+	// scratch space for epoch-based commit: the keys written, sorted, and the accounts locked
+	int[]     commitKeys     = new int[8];
+	Account[] commitAccounts = new Account[8];
+
+	// reads a client served from its read cache, as pairs of account number and version, null if the client does not cache
+	int[] cachedReads = null;
+
+	// what made this transaction fail validation: the accounts read that were overwritten in the meantime,
+	// and the transaction that overwrote them, -1 if not known
+	ArrayList<Integer> conflictAccounts = new ArrayList<>();
+	int conflictTransactionID = -1;
 
 	StringBuffer log = new StringBuffer("");
 
+	// set once something outside of this transaction's worker keeps a reference to it,
+	// e.g. committed transactions kept for validating others, then it must not be reused
+	boolean retained = false;
 
-	Transaction(int transactionID, int lastCommittedTransactionNumber)
+
+	Transaction(TransactionManager transactionManager, int transactionID, int lastCommittedTransactionNumber)
         {
+            this.transactionManager = transactionManager;
             // save the transactionID and lastAssignedTransactionNumber
             // the latter is at the very foundation to make the whole OCC work!
             this.transactionID = transactionID;
@@ -33,28 +64,18 @@ public class Transaction {
 
         
 	public int read(int accountNumber) {
-        Integer balance;
+        int[] slots = transactionManager.getAccountManager().getSlots(accountNumber);
 
-        // check if value to be read was written by this transaction
-        // i.e. is contained in the writeSet of this transaction
-        // use get() on the writeSet
-        // ...
-        if (writeSet.containsKey(accountNumber)) {
-            balance = writeSet.get(accountNumber);
-        } 
-
-        // if it is not in the writeSet, read the committed version of it from AccountManager
-        // note: null and numerical zero are not the same thing!
-        // ...
-        else {
-            balance = TransactionServer.accountManager.read(accountNumber);
+        // a regular account is read as is
+        if (slots == null) {
+            return readPhysical(accountNumber);
         }
 
-        // check if this account number is already in the readSet
-        // and add it, if not
-        // ...
-        if (!readSet.contains(accountNumber)) {
-            readSet.add(accountNumber);
+        // a split account is read by summing up all its sub-accounts,
+        // each of them ending up in the readSet
+        int balance = 0;
+        for (int slot : slots) {
+            balance += readPhysical(slot);
         }
 
         return balance;
@@ -63,13 +84,23 @@ public class Transaction {
 
 	public int write(int accountNumber, int newBalance) {
         int oldBalance;
+        int[] slots = transactionManager.getAccountManager().getSlots(accountNumber);
+
+        // a split account is written by putting the difference to the current logical balance
+        // into slot 0, which needs all sub-accounts to be read
+        if (slots != null) {
+            oldBalance = read(accountNumber);
+            writeSet.put(slots[0], readPhysical(slots[0]) + newBalance - oldBalance);
+
+            return oldBalance;
+        }
 
         // read (and return) old balance
         // ...
         if (writeSet.containsKey(accountNumber)) {
             oldBalance = writeSet.get(accountNumber);
         } else {
-            oldBalance = TransactionServer.accountManager.read(accountNumber); 
+            oldBalance = readCommitted(accountNumber, false);
         }
 
         // put <accountNumber, newBalance> in writeSet
@@ -82,16 +113,277 @@ public class Transaction {
 	}
 
 
-	public ArrayList<Integer> getReadSet() {
+	/**
+	 * Reads a number of accounts in one go
+	 *
+	 * @param accountNumbers the logical account numbers
+	 * @return the balances, index by index
+	 */
+	public int[] readMany(int[] accountNumbers) {
+        int[] balances = new int[accountNumbers.length];
+
+        for (int index = 0; index < accountNumbers.length; index++) {
+            balances[index] = read(accountNumbers[index]);
+        }
+
+        return balances;
+    }
+
+
+	/**
+	 * Writes a number of accounts in one go, in order, so of an account written twice the second balance sticks
+	 *
+	 * @param accountNumbers the logical account numbers
+	 * @param newBalances the balances to write, index by index
+	 * @return the prior balances, index by index
+	 */
+	public int[] writeMany(int[] accountNumbers, int[] newBalances) {
+        int[] oldBalances = new int[accountNumbers.length];
+
+        for (int index = 0; index < accountNumbers.length; index++) {
+            oldBalances[index] = write(accountNumbers[index], newBalances[index]);
+        }
+
+        return oldBalances;
+    }
+
+
+	/**
+	 * Adds an amount (possibly negative) to an account without reading its logical balance.
+	 * For a split account only one sub-account is read and written, picked by transaction ID,
+	 * so concurrent deposits to the same hot account usually do not conflict in validation.
+	 * Sub-accounts may go negative that way, only their sum is meaningful.
+	 *
+	 * @param accountNumber the logical account number
+	 * @param amount the amount to add
+	 */
+	public void deposit(int accountNumber, int amount) {
+        int[] slots = transactionManager.getAccountManager().getSlots(accountNumber);
+        int key = accountNumber;
+
+        if (slots != null) {
+            key = slots[transactionID % slots.length];
+        }
+
+        writeSet.put(key, readPhysical(key) + amount);
+    }
+
+
+	/**
+	 * Reads one physical account (regular account or sub-account) on behalf of this transaction
+	 *
+	 * @param key account number or sub-account key
+	 * @return the tentative or committed balance
+	 */
+	private int readPhysical(int key) {
+        int balance;
+
+        // check if value to be read was written by this transaction
+        // i.e. is contained in the writeSet of this transaction
+        // use get() on the writeSet
+        // ...
+        if (writeSet.containsKey(key)) {
+            balance = writeSet.get(key);
+        } 
+
+        // if it is not in the writeSet, read the committed version of it from AccountManager
+        // note: null and numerical zero are not the same thing!
+        // ...
+        else {
+            balance = readCommitted(key, true);
+        }
+
+        // add this account number to the readSet, unless it is there already
+        // ...
+        readSet.add(key);
+
+        return balance;
+    }
+
+
+	/**
+	 * Reads the committed balance of a physical account, in partitioned execution
+	 * this is done by the executor owning the account
+	 *
+	 * @param key account number or sub-account key
+	 * @param record whether to record the version read for validation
+	 * @return the committed balance
+	 */
+	private int readCommitted(int key, boolean record) {
+        PartitionManager partitions = transactionManager.getPartitions();
+        EpochCommit epochCommit = transactionManager.getEpochCommit();
+
+        if (partitions != null) {
+            return partitions.read(key, record ? readVersions : null);
+        }
+        if (epochCommit != null) {
+            return epochCommit.read(key, record ? this : null);
+        }
+        return transactionManager.getAccountManager().readPhysical(key);
+    }
+
+
+	public AccountSet getReadSet() {
         return readSet;
     }
 
 
-	public HashMap<Integer, Integer> getWriteSet() {
+	public AccountMap getWriteSet() {
         return writeSet;
     }
 
 
+	public HashMap<Integer, Integer> getReadVersions() {
+        return readVersions;
+    }
+
+
+	public int[] getCachedReads() {
+        return cachedReads;
+    }
+
+
+	/**
+	 * @param cachedReads reads the client served from its read cache, as pairs of account number and version
+	 */
+	public void setCachedReads(int[] cachedReads) {
+        this.cachedReads = cachedReads;
+    }
+
+
+	/**
+	 * Records the commit ID seen by the first read of an account, in epoch-based commit
+	 *
+	 * @param key account number or sub-account key
+	 * @param tid the commit ID
+	 */
+	void recordReadTid(int key, long tid) {
+        // the key enters the readSet right after its first read, so an account in there has been recorded already
+        if (readSet.contains(key)) {
+            return;
+        }
+
+        if (readTidCount == readTidKeys.length) {
+            readTidKeys = Arrays.copyOf(readTidKeys, readTidCount * 2);
+            readTidValues = Arrays.copyOf(readTidValues, readTidCount * 2);
+        }
+        readTidKeys[readTidCount] = key;
+        readTidValues[readTidCount++] = tid;
+    }
+
+
+	/**
+	 * Creates a transaction running a share of this one's operations on another thread, to be merged back
+	 * into this one, see merge(). A part is not registered anywhere, it is never closed on its own
+	 *
+	 * @return the part
+	 */
+	Transaction part() {
+        return new Transaction(transactionManager, transactionID, lastAssignedTransactionNumber);
+    }
+
+
+	/**
+	 * Takes over the reads and writes of a part of this transaction, see part().
+	 * Parts must have touched disjoint accounts, neither one read by this transaction itself
+	 *
+	 * @param part the part
+	 */
+	void merge(Transaction part) {
+        for (int index = 0; index < part.readSet.size(); index++) {
+            readSet.add(part.readSet.keyAt(index));
+        }
+        for (int index = 0; index < part.writeSet.size(); index++) {
+            writeSet.put(part.writeSet.keyAt(index), part.writeSet.valueAt(index));
+        }
+        readVersions.putAll(part.readVersions);
+
+        // the accounts are disjoint, so the commit IDs are appended without looking for duplicates
+        if (readTidCount + part.readTidCount > readTidKeys.length) {
+            readTidKeys = Arrays.copyOf(readTidKeys, Math.max(readTidKeys.length * 2, readTidCount + part.readTidCount));
+            readTidValues = Arrays.copyOf(readTidValues, readTidKeys.length);
+        }
+        System.arraycopy(part.readTidKeys, 0, readTidKeys, readTidCount, part.readTidCount);
+        System.arraycopy(part.readTidValues, 0, readTidValues, readTidCount, part.readTidCount);
+        readTidCount += part.readTidCount;
+    }
+
+
+	public int getReadTidCount() {
+        return readTidCount;
+    }
+
+
+	public int getReadTidKey(int index) {
+        return readTidKeys[index];
+    }
+
+
+	public long getReadTidValue(int index) {
+        return readTidValues[index];
+    }
+
+
+	/**
+	 * Makes this transaction object ready to run another transaction, keeping the memory of its collections
+	 *
+	 * @param transactionID the new transaction ID
+	 * @param lastCommittedTransactionNumber see constructor
+	 */
+	void reset(int transactionID, int lastCommittedTransactionNumber) {
+        this.transactionID = transactionID;
+        this.transactionNumber = 0;
+        this.lastAssignedTransactionNumber = lastCommittedTransactionNumber;
+
+        readSet.clear();
+        writeSet.clear();
+        readVersions.clear();
+        readTidCount = 0;
+        cachedReads = null;
+        Arrays.fill(commitAccounts, null);
+        if (!conflictAccounts.isEmpty()) {
+            conflictAccounts.clear();
+        }
+        conflictTransactionID = -1;
+        log.setLength(0);
+    }
+
+
+	/**
+	 * @return a flag indicating whether this transaction object is referenced from elsewhere and must not be reused
+	 */
+	boolean isRetained() {
+        return retained;
+    }
+
+
+	void setRetained() {
+        retained = true;
+    }
+
+
+	public ArrayList<Integer> getConflictAccounts() {
+        return conflictAccounts;
+    }
+
+
+	public int getConflictTransactionID() {
+        return conflictTransactionID;
+    }
+
+
+	/**
+	 * Records what made this transaction fail validation
+	 *
+	 * @param accountNumber an account read by this transaction and overwritten in the meantime
+	 * @param transactionID the transaction that overwrote it, -1 if not known
+	 */
+	public void addConflict(int accountNumber, int transactionID) {
+        conflictAccounts.add(accountNumber);
+        conflictTransactionID = transactionID;
+    }
+
+
 	public int getTransactionID() 
         {
             return transactionID;
@@ -119,6 +411,12 @@ public class Transaction {
 
 	public void log (String logString) 
         {
+            // logging switched off, e.g. to keep request processing free of garbage
+            if (!TransactionServer.logging) 
+            {
+                return;
+            }
+
             int messageCount = TransactionServer.getMessageCount();
 
             log.append("\n").append(messageCount).append(" ").append(logString);
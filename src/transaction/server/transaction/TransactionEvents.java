@@ -0,0 +1,133 @@
+package transaction.server.transaction;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Java Flight Recorder events covering the life cycle of a transaction on the server, to be looked at
+ * alongside GC and lock events in JDK Mission Control. Unless a recording enables them, creating
+ * and committing these events costs next to nothing, so they are emitted unconditionally.
+ * Record with e.g. java -XX:StartFlightRecording:filename=server.jfr,settings=profile ...
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TransactionEvents
+{
+    private static final String CATEGORY = "Transaction Server";
+
+
+    private TransactionEvents() {}
+
+
+    @Name("transaction.Open")
+    @Label("Transaction Open")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class OpenEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Last Assigned Transaction Number")
+        int lastAssignedTransactionNumber;
+    }
+
+
+    @Name("transaction.Access")
+    @Label("Transaction Read/Write")
+    @Description("One READ_REQUEST, WRITE_REQUEST or DEPOSIT_REQUEST")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class AccessEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Account Number")
+        int accountNumber;
+
+        @Label("Balance")
+        int balance;
+    }
+
+
+    @Name("transaction.Validation")
+    @Label("Transaction Validation")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class ValidationEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Transaction Number")
+        int transactionNumber;
+
+        @Label("Read Set Size")
+        int readSetSize;
+
+        @Label("Committed Transactions Scanned")
+        int committedScanned;
+
+        @Label("Valid")
+        boolean valid;
+    }
+
+
+    @Name("transaction.WritePhase")
+    @Label("Transaction Write Phase")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class WritePhaseEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Transaction Number")
+        int transactionNumber;
+
+        @Label("Write Set Size")
+        int writeSetSize;
+    }
+
+
+    @Name("transaction.Completion")
+    @Label("Transaction Completion")
+    @Description("A transaction from OPEN_TRANSACTION until it committed or aborted")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CompletionEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Committed")
+        boolean committed;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+
+    @Name("transaction.CommitLockWait")
+    @Label("Commit Lock Wait")
+    @Description("Time spent waiting for the monitor on the running transactions")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class CommitLockWaitEvent extends Event
+    {
+        @Label("Transaction ID")
+        int transactionID;
+
+        @Label("Operation")
+        String operation;
+    }
+}
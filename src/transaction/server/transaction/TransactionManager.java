@@ -1,16 +1,44 @@
 package transaction.server.transaction;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import jdk.jfr.EventType;
+import transaction.comm.AccountAggregate;
+import transaction.comm.AccountStatistics;
+import transaction.comm.BinaryProtocol;
+import transaction.comm.CommittedWriteSet;
 import transaction.comm.Message;
 import transaction.comm.MessageTypes;
+import transaction.comm.TransactionTrace;
 import transaction.server.TransactionServer;
+import transaction.server.account.AccountManager;
+import transaction.server.account.AccountSnapshot;
+import transaction.server.replication.ReplicationManager;
+import transaction.server.transaction.TransactionEvents.AccessEvent;
+import transaction.server.transaction.TransactionEvents.CommitLockWaitEvent;
+import transaction.server.transaction.TransactionEvents.CompletionEvent;
+import transaction.server.transaction.TransactionEvents.OpenEvent;
+import transaction.server.transaction.TransactionEvents.ValidationEvent;
+import transaction.server.transaction.TransactionEvents.WritePhaseEvent;
 import static utils.TerminalColors.ABORT_COLOR;
 import static utils.TerminalColors.COMMIT_COLOR;
 import static utils.TerminalColors.OPEN_COLOR;
@@ -20,342 +48,2602 @@ import static utils.TerminalColors.WRITE_COLOR;
 
 
 /**
- * Class representing the (singleton) transaction manager
+ * Class representing the transaction manager of a branch, see BRANCHES. Each branch of a server has one,
+ * along with its own accounts, so transactions of different branches never validate against each other
+ * nor contend for the same locks
  * @author Dr.-Ing. Wolf-Dieter Otte
  */
 public class TransactionManager implements MessageTypes 
 {
+    // the branch, its ID being its position in BRANCHES, 0 for the default branch
+    private final int branchID;
+    private final String branchName;
+    
+    // the accounts of the branch, and the replication of its committed write sets
+    private final AccountManager accountManager;
+    private final ReplicationManager replicationManager;
+    
     // counter for transaction IDs
-    private static int transactionIdCounter = 0;
+    private int transactionIdCounter = 0;
     
     // lists of transactions
-    private static final ArrayList<Transaction>        runningTransactions   = new ArrayList<>();
-    private static final HashMap<Integer, Transaction> committedTransactions = new HashMap<>();
-    private static final ArrayList<Transaction>        abortedTransactions   = new ArrayList<>();
+    private final ArrayList<Transaction>        runningTransactions   = new ArrayList<>();
+    private final HashMap<Integer, Transaction> committedTransactions = new HashMap<>();
+    
+    // committed transactions up to this transaction number have been pruned, so caching clients that have not seen
+    // their writes are told to clear their read caches, as are those that have not seen more than MAX_INVALIDATION_RANGE
+    private int prunedUpTo = 0;
+    private static final int MAX_INVALIDATION_RANGE = 1024;
+    
+    // invalidation telling a caching client to clear its read cache
+    private static final int ALL_ACCOUNTS = -1;
+    
+    // aborted transactions are counted, only a bounded sample of them is kept with their logs
+    private AbortHistory abortHistory = new AbortHistory(100, 1);
+    
+    // conflict analytics: the accounts causing the most validation failures and the accounts written the most,
+    // null if switched off
+    private HotAccountCounter conflictedAccounts = new HotAccountCounter(32);
+    private HotAccountCounter writtenAccounts    = new HotAccountCounter(32);
+    private final LongAdder committedCount       = new LongAdder();
+    
+    // transactions validated in the first phase of a two-phase commit, waiting for the coordinator's decision,
+    // keyed by their transaction numbers
+    private final TreeMap<Integer, Transaction> preparedTransactions = new TreeMap<>();
+    
+    // IDs of the prepared transactions committed most recently, so a coordinator retrying COMMIT_TRANSACTION
+    // after losing the reply learns the transaction committed, guarded by the commit lock
+    private static final int COMMITTED_PREPARED_HISTORY = 1024;
+    private final LinkedHashMap<Integer, Boolean> committedPrepared = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > COMMITTED_PREPARED_HISTORY;
+        }
+    };
    
     // transaction number counter specific to OCC
-    private static int transactionNumberCounter = 0;
+    private int transactionNumberCounter = 0;
+    
+    // partitioned execution, null if transactions are validated centrally
+    private PartitionManager partitions = null;
+    
+    // epoch-based commit, null if transactions are validated centrally
+    private EpochCommit epochCommit = null;
+    
+    // set while following a primary, only read-only transactions commit then
+    private volatile boolean readOnly = false;
+    
+    // cap on concurrently running transactions, null if there is none
+    private AdmissionController admissionController = null;
+    
+    // batches closing transactions for group validation, null if each transaction is validated on its own
+    private CommitSequencer commitSequencer = null;
+    
+    // runs transfers submitted in bulk, null if BULK_SUBMIT is not served
+    private BulkExecutor bulkExecutor = null;
 
+    // reduces AGGREGATE queries, the bulk executor if there is one, otherwise one on the common pool
+    private BulkExecutor aggregator = null;
+    
+    // time in milliseconds a read from a client may block, 0 for no timeout
+    private int socketReadTimeout = 0;
+    
+    // records the workload to a trace file, null if not recording
+    private TraceRecorder traceRecorder = null;
+    
+    // workers currently talking to clients, watched by the reaper
+    private final Set<TransactionManagerWorker> activeWorkers = ConcurrentHashMap.newKeySet();
+    
+    // completion events are kept across requests, so they are only created while a recording wants them
+    private static final EventType completionEventType = EventType.getEventType(CompletionEvent.class);
 
+
+    /**
+     * Constructor
+     * 
+     * @param branchID the branch's ID, 0 for the default branch
+     * @param branchName the branch's name
+     * @param accountManager the accounts of the branch
+     * @param replicationManager the replication of the branch's committed write sets
+     */
+    public TransactionManager(int branchID, String branchName, AccountManager accountManager, ReplicationManager replicationManager) 
+    {
+        this.branchID = branchID;
+        this.branchName = branchName;
+        this.accountManager = accountManager;
+        this.replicationManager = replicationManager;
+    }
+    
+    
+    /**
+     * @return the branch's ID, 0 for the default branch
+     */
+    public int getBranchID()
+    {
+        return branchID;
+    }
+    
+    
+    public String getBranchName()
+    {
+        return branchName;
+    }
+    
+    
+    /**
+     * @return the accounts of the branch
+     */
+    public AccountManager getAccountManager()
+    {
+        return accountManager;
+    }
+    
+    
     /**
-     * Default constructor, nothing to do
+     * @return the replication of the branch's committed write sets
      */
-    public TransactionManager() {}
+    public ReplicationManager getReplicationManager()
+    {
+        return replicationManager;
+    }
     
     
     /**
      * Helper method returning aborted transactions
      * 
-     * @return the list of aborted transactions
+     * @return the list of the most recent sampled aborted transactions, oldest first
      */
     public ArrayList<Transaction> getAbortedTransactions()
     {
-        return abortedTransactions;
+        return abortHistory.getRetainedTransactions();
     }
-
+    
     
     /**
-     * Run the transaction for an incoming client request
-     * 
-     * @param client Socket object representing connection to client
+     * @return the counters of aborted transactions, along with the sampled ones
      */
-    public synchronized void runTransaction(Socket client) 
+    public AbortHistory getAbortHistory()
     {
-        (new TransactionManagerWorker(client)).start();
+        return abortHistory;
     }
-
+    
     
     /**
-     * Validates a transaction according to OCC, implementing backwards validation
+     * Reports the size of what this branch keeps in memory, for watching a long running server for leaks
      * 
-     * @param transaction Transaction to be validated
-     * @return a flag indicating whether validation was successful
+     * @return number of entries by structure, and the characters of the logs of the transactions kept
      */
-    public boolean validateTransaction(Transaction transaction) {
-        int transactionNumber;
-        int lastCommittedTransactionNumber = transaction.getLastAssignedTransactionNumber();
-        ArrayList<Integer> readSet = transaction.getReadSet();
-
-        // assign a transaction number to this transaction
-        // ...            
-        synchronized (TransactionManager.class) {
-            transactionNumber = ++transactionNumberCounter;
-        }
-        transaction.setTransactionNumber(transactionNumber);
-
-        // run through all overlapping transactions
-        // use transactionNumberIndex as the transaction number of overlapping transaction currently looked at
-        for (int transactionNumberIndex = lastCommittedTransactionNumber + 1; transactionNumberIndex <= transactionNumberCounter; transactionNumberIndex++) {
-
-            // get transaction with transaction number transactionNumberIndex
-            // from committedTransactions -> checkedTransaction
-            // ...
-            Transaction checkedTransaction = committedTransactions.get(transactionNumberIndex);
-
-            // make sure transaction with transactionNumberIndex was not aborted before
-            if (checkedTransaction != null) {
-                HashMap<Integer, Integer> checkedTransactionWriteSet = checkedTransaction.getWriteSet();
-
-                // check our own read set against the write set of the checkedTransaction
-                // ...
-                for (Integer accountNumber : readSet) {
-
-                    // Conflict detected: return false
-                    if (checkedTransactionWriteSet.containsKey(accountNumber)) {
-                        transaction.log("[TransactionManager.validateTransaction] Conflict detected with Transaction #" + checkedTransaction.getTransactionID());
-                        return false;
-                    }
-                }
+    public LinkedHashMap<String, Long> getCollectionSizes()
+    {
+        LinkedHashMap<String, Long> sizes = new LinkedHashMap<>();
+        ArrayList<Transaction> abortedTransactions = abortHistory.getRetainedTransactions();
+        long logCharacters = 0;
+        
+        synchronized (runningTransactions) 
+        {
+            sizes.put("runningTransactions", (long) runningTransactions.size());
+            sizes.put("committedTransactions", (long) committedTransactions.size());
+            sizes.put("preparedTransactions", (long) preparedTransactions.size());
+            sizes.put("replicationHistory", (long) replicationManager.getRetainedCount());
+            
+            for (Transaction committedTransaction : committedTransactions.values()) 
+            {
+                logCharacters += committedTransaction.log.length();
             }
         }
-
-        transaction.log("[TransactionManager.validateTransaction] Transaction #" + transaction.getTransactionID() + " successfully validated");
-        return true;
+        sizes.put("abortedTransactionsRetained", (long) abortedTransactions.size());
+        sizes.put("activeWorkers", (long) activeWorkers.size());
+        
+        for (Transaction abortedTransaction : abortedTransactions) 
+        {
+            logCharacters += abortedTransaction.log.length();
+        }
+        sizes.put("transactionLogCharacters", logCharacters);
+        
+        return sizes;
     }
-     
+    
     
     /**
-     * Writes the write set of a transaction into the operational data
+     * Bounds the history of aborted transactions, to be called at startup
      * 
-     * @param transaction Transaction to be written
+     * @param abortHistory the abort history to record aborted transactions in
      */
-    public void writeTransaction(Transaction transaction) {
-        HashMap<Integer, Integer> transactionWriteSet = transaction.getWriteSet();
-        int account;
-        int balance;
-
-        // get all the entries of this write set
-        for (Map.Entry<Integer, Integer> entry : transactionWriteSet.entrySet()) {
-            account = entry.getKey();
-            balance = entry.getValue();
-
-            // Write the new balance to the account in AccountManager
-            TransactionServer.accountManager.write(account, balance);
+    public void setAbortHistory(AbortHistory abortHistory)
+    {
+        this.abortHistory = abortHistory;
+    }
 
-            // Log the write operation
-            transaction.log("[TransactionManager.writeTransaction] Transaction #" + transaction.getTransactionID() + " written");      
+    
+    /**
+     * Sets the number of accounts tracked by the conflict analytics, to be called at startup
+     * 
+     * @param size number of most conflicted and most written accounts tracked, 0 to switch the analytics off
+     */
+    public void setAccountStatisticsSize(int size)
+    {
+        conflictedAccounts = size > 0 ? new HotAccountCounter(size) : null;
+        writtenAccounts    = size > 0 ? new HotAccountCounter(size) : null;
+    }
+    
+    
+    /**
+     * Takes a snapshot of the conflict analytics
+     * 
+     * @param k maximum number of accounts to report per list
+     * @return the most conflicted and most written accounts
+     */
+    public AccountStatistics getAccountStatistics(int k)
+    {
+        if (conflictedAccounts == null)
+        {
+            return new AccountStatistics(new long[0][], new long[0][], abortHistory.getAbortedCount(), committedCount.intValue());
         }
+        return new AccountStatistics(conflictedAccounts.getTop(k), writtenAccounts.getTop(k), abortHistory.getAbortedCount(), committedCount.intValue());
     }
-
+    
     
     /**
-     * Objects of this inner class run transactions, one thread runs one transaction
-     * on behalf of a client
+     * Helper recording a transaction that failed validation, attributing the abort to the accounts involved
+     * 
+     * @param transaction the aborted transaction
      */
-    public class TransactionManagerWorker extends Thread 
+    private void recordConflict(Transaction transaction)
     {
-        // networking communication related fields
-        Socket client = null;
-        ObjectInputStream readFromNet = null;
-        ObjectOutputStream writeToNet = null;
-        Message message = null;
-
-        // transaction related fields
-        Transaction transaction = null;
-        int accountNumber       = 0;
-        int balance             = 0;
-
-        // flag for jumping out of while loop after this transaction closed
-        boolean keepgoing = true;
-
+        abortHistory.record(transaction, AbortHistory.CONFLICT);
+        if (conflictedAccounts == null)
+        {
+            return;
+        }
         
-        // the constructor just opens up the network channels
-        private TransactionManagerWorker(Socket client) 
+        for (Integer key : transaction.getConflictAccounts())
         {
-            this.client = client;
-            // setting up object streams
-            try 
+            int accountNumber = accountManager.getLogicalNumber(key);
+            if (accountNumber >= 0)
             {
-                readFromNet = new ObjectInputStream(client.getInputStream());
-                writeToNet  = new ObjectOutputStream(client.getOutputStream());
-            }
-            catch (IOException e)
-            {
-                System.err.println("[TransactionManagerWorker.run] Failed to open object streams");
-                System.exit(1);
+                conflictedAccounts.offer(accountNumber);
             }
         }
-
+    }
+    
+    
+    /**
+     * Helper recording a committed transaction's writes
+     * 
+     * @param transaction the committed transaction
+     */
+    private void recordCommit(Transaction transaction)
+    {
+        committedCount.increment();
+        if (writtenAccounts == null)
+        {
+            return;
+        }
         
-        @Override
-        public void run() 
+        AccountMap writeSet = transaction.getWriteSet();
+        for (int index = 0; index < writeSet.size(); index++)
         {
-            // loop is left when transaction closes
-            while (keepgoing) 
+            int accountNumber = accountManager.getLogicalNumber(writeSet.keyAt(index));
+            if (accountNumber >= 0)
             {
-                // reading message
-                try 
-                {
-                    message = (Message) readFromNet.readObject();
-                } 
-                catch (IOException | ClassNotFoundException e) 
-                {
-                    System.out.println("[TransactionManagerWorker.run] Message could not be read from object stream.");
-                    System.exit(1);
-                }
-
-                // processing message
-                switch (message.getType()) 
-                {
-
-                    // -------------------------------------------------------------------------------------------
-                    case OPEN_TRANSACTION:
-                    // -------------------------------------------------------------------------------------------
-
-                        // synchronize on the runningTransactions
-                        synchronized (runningTransactions) {
-                            // create new transaction and assign a new transaction ID
-                            // most importantly, pass in the last assigned transaction number
-                            // ...
-                            int newTransactionID = ++transactionIdCounter;
-                            int lastCommittedTransactionNumber = transactionNumberCounter;
-                            transaction = new Transaction(newTransactionID, lastCommittedTransactionNumber);
-
-                            // add the new transaction to ArrayList runningTransactions
-                            // ...
-                            runningTransactions.add(transaction);
-                        }
+                writtenAccounts.offer(accountNumber);
+            }
+        }
+    }
+    
+    
+    /**
+     * Switches to partitioned execution, to be called at startup after the AccountManager is created
+     * 
+     * @param numberPartitions the number of partitions and executor threads
+     */
+    public void startPartitions(int numberPartitions)
+    {
+        partitions = new PartitionManager(accountManager, numberPartitions);
+    }
+    
+    
+    /**
+     * Switches to epoch-based commit, validating against per-account commit IDs without a central commit lock,
+     * to be called at startup
+     * 
+     * @param epochMilliseconds length of an epoch in milliseconds
+     */
+    public void startEpochCommit(int epochMilliseconds)
+    {
+        epochCommit = new EpochCommit(accountManager, epochMilliseconds);
+    }
+    
+    
+    /**
+     * @return the epoch-based commit, or null if not running it
+     */
+    public EpochCommit getEpochCommit()
+    {
+        return epochCommit;
+    }
+    
+    
+    /**
+     * @return the partitions, or null if not running partitioned execution
+     */
+    public PartitionManager getPartitions()
+    {
+        return partitions;
+    }
 
-                        // write back transactionID to client
-                        // ...
-                        try {
-                            writeToNet.writeObject(new Message(OPEN_TRANSACTION, transaction.getTransactionID()));
-                        } catch (IOException e) {
-                            System.err.println("[TransactionManagerWorker.run] Failed to send transaction ID to client: " + e.getMessage());
+    
+    /**
+     * Caps the number of concurrently running transactions, to be called at startup
+     * 
+     * @param admissionController the admission control to apply to OPEN_TRANSACTION
+     */
+    public void setAdmissionController(AdmissionController admissionController)
+    {
+        this.admissionController = admissionController;
+    }
+    
+    
+    /**
+     * Sets the time a worker waits for a client's next message before giving up on the client,
+     * to be called at startup
+     * 
+     * @param socketReadTimeout timeout in milliseconds, 0 for no timeout
+     */
+    public void setSocketReadTimeout(int socketReadTimeout)
+    {
+        this.socketReadTimeout = socketReadTimeout;
+    }
+    
+    
+    /**
+     * Starts aborting transactions that wait for their clients for too long, to be called at startup
+     * 
+     * @param transactionTimeout time in milliseconds a transaction may be idle
+     */
+    public void startReaper(int transactionTimeout)
+    {
+        new TransactionReaper(this, transactionTimeout).start();
+    }
+    
+    
+    /**
+     * Switches to group validation of transactions closing at about the same time, to be called at startup
+     * 
+     * @param maxBatchSize maximum number of transactions validated in one pass
+     */
+    public void startCommitSequencer(int maxBatchSize)
+    {
+        commitSequencer = new CommitSequencer(this, maxBatchSize);
+        commitSequencer.start();
+    }
+    
+    
+    /**
+     * Starts serving transfers submitted in bulk, to be called at startup
+     * 
+     * @param bulkExecutor the executor running the transfers of BULK_SUBMIT
+     */
+    public void setBulkExecutor(BulkExecutor bulkExecutor)
+    {
+        this.bulkExecutor = bulkExecutor;
+        this.aggregator = bulkExecutor;
+    }
+    
+    
+    /**
+     * Sets the executor reducing AGGREGATE queries, to be called at startup if there is no bulk executor
+     * 
+     * @param aggregator the executor
+     */
+    public void setAggregator(BulkExecutor aggregator)
+    {
+        this.aggregator = aggregator;
+    }
+    
+    
+    /**
+     * Starts recording the transactions of this branch, to be called at startup
+     * 
+     * @param traceRecorder the recorder, shared by all branches
+     */
+    public void setTraceRecorder(TraceRecorder traceRecorder)
+    {
+        this.traceRecorder = traceRecorder;
+    }
+    
+    
+    /**
+     * Sets whether this server only commits read-only transactions, as a follower does
+     * 
+     * @param readOnly the flag
+     */
+    public void setReadOnly(boolean readOnly)
+    {
+        this.readOnly = readOnly;
+    }
+
+    
+    /**
+     * Run the transaction for an incoming client request
+     * 
+     * @param client Socket object representing connection to client
+     */
+    public synchronized void runTransaction(Socket client) 
+    {
+        (new TransactionManagerWorker(client)).start();
+    }
+    
+    
+    /**
+     * Takes over a connection from a worker of another branch, the first message of which names this branch
+     * 
+     * @param client the connection
+     * @param readFromNet its object input stream
+     * @param writeToNet its object output stream
+     * @param message the message read from it already
+     */
+    void runTransaction(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet, Message message) 
+    {
+        TransactionManagerWorker worker = new TransactionManagerWorker(client);
+        worker.readFromNet = readFromNet;
+        worker.writeToNet = writeToNet;
+        worker.handedOver = message;
+        worker.start();
+    }
+    
+    
+    /**
+     * Takes over a connection speaking the binary protocol from a worker of another branch,
+     * the OPEN_TRANSACTION read from it naming this branch
+     * 
+     * @param client the connection
+     * @param readFrame its input, past the OPEN_TRANSACTION
+     * @param writeFrame its output
+     */
+    void runTransaction(Socket client, DataInputStream readFrame, DataOutputStream writeFrame) 
+    {
+        TransactionManagerWorker worker = new TransactionManagerWorker(client);
+        worker.readFrame = readFrame;
+        worker.writeFrame = writeFrame;
+        worker.start();
+    }
+
+    
+    /**
+     * Starts a new transaction: assigns its ID and, when validating centrally, its last assigned transaction number,
+     * and registers it as running. The object of a previous transaction is reused unless something else still
+     * references it, e.g. as a committed transaction other transactions validate against
+     * 
+     * @param previous a finished transaction whose object may be reused, null if there is none
+     * @return the new transaction
+     */
+    Transaction startTransaction(Transaction previous)
+    {
+        // in partitioned execution there is no shared bookkeeping of running transactions
+        if (partitions != null)
+        {
+            return reuseTransaction(previous, partitions.nextTransactionID(), 0);
+        }
+        
+        // in epoch-based commit opening a transaction does not touch any shared state
+        if (epochCommit != null)
+        {
+            return reuseTransaction(previous, epochCommit.nextTransactionID(), 0);
+        }
+        
+        // synchronize on the runningTransactions
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(null, "open");
+        synchronized (runningTransactions)
+        {
+            endLockWait(lockWaitEvent);
+
+            // create new transaction and assign a new transaction ID
+            // most importantly, pass in the last assigned transaction number
+            // ...
+            int newTransactionID = ++transactionIdCounter;
+            int lastCommittedTransactionNumber = getLastCommittedTransactionNumber();
+            Transaction transaction = reuseTransaction(previous, newTransactionID, lastCommittedTransactionNumber);
+
+            // add the new transaction to ArrayList runningTransactions
+            // ...
+            runningTransactions.add(transaction);
+            
+            return transaction;
+        }
+    }
+    
+    
+    /**
+     * Helper providing the transaction object for a new transaction, see startTransaction()
+     * 
+     * @param previous a finished transaction whose object may be reused, null if there is none
+     * @param transactionID the new transaction's ID
+     * @param lastCommittedTransactionNumber the last assigned transaction number
+     * @return the transaction
+     */
+    private Transaction reuseTransaction(Transaction previous, int transactionID, int lastCommittedTransactionNumber)
+    {
+        if (previous == null || previous.isRetained())
+        {
+            return new Transaction(this, transactionID, lastCommittedTransactionNumber);
+        }
+        
+        previous.reset(transactionID, lastCommittedTransactionNumber);
+        return previous;
+    }
+    
+    
+    /**
+     * Closes a transaction, i.e. runs the validation phase and, if successful, the update phase
+     * 
+     * @param transaction Transaction to be closed
+     * @return a flag indicating whether the transaction committed
+     */
+    public boolean closeTransaction(Transaction transaction)
+    {
+        // a follower's data is owned by the primary
+        if (readOnly && !transaction.getWriteSet().isEmpty())
+        {
+            transaction.log("[TransactionManager.closeTransaction] Transaction #" + transaction.getTransactionID() + " writes, but this server is read-only");
+            synchronized (runningTransactions)
+            {
+                runningTransactions.remove(transaction);
+                abortHistory.record(transaction, AbortHistory.READ_ONLY);
+            }
+            return false;
+        }
+        
+        // reads served from a client's cache are only validated centrally, where versions are handed out for caching
+        if ((partitions != null || epochCommit != null) && transaction.getCachedReads() != null && transaction.getCachedReads().length > 0)
+        {
+            transaction.log("[TransactionManager.closeTransaction] Transaction #" + transaction.getTransactionID() + " read from a client cache, which cannot be validated here");
+            recordConflict(transaction);
+            return false;
+        }
+        
+        // in partitioned execution the executors owning the accounts validate and write the transaction
+        if (partitions != null)
+        {
+            if (partitions.commit(transaction))
+            {
+                recordCommit(transaction);
+                return true;
+            }
+            
+            recordConflict(transaction);
+            return false;
+        }
+        
+        // in epoch-based commit the transaction locks, validates and writes its own accounts
+        if (epochCommit != null)
+        {
+            if (epochCommit.commit(transaction))
+            {
+                recordCommit(transaction);
+                return true;
+            }
+            
+            recordConflict(transaction);
+            return false;
+        }
+        
+        // group validation, the sequencer validates and writes the transaction along with others closing at the same time
+        if (commitSequencer != null)
+        {
+            return commitSequencer.close(transaction);
+        }
+        
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(transaction, "close");
+        synchronized (runningTransactions) {
+            endLockWait(lockWaitEvent);
+            
+            // remove transaction from ArrayList runningTransactions
+            // if it is not there anymore, the reaper aborted it already
+            // ...
+            if (!runningTransactions.remove(transaction)) {
+                transaction.log("[TransactionManager.closeTransaction] Transaction #" + transaction.getTransactionID() + " was aborted while idle");
+                return false;
+            }
+
+            // the BIG thing, we enter validation phase and, if successful, the update phase
+            if (validateTransaction(transaction)) {
+                // add this transaction to committedTransactions
+                // important step! information used in other transactions' validations, if they overlap with this one
+                // ...
+                committedTransactions.put(transaction.getTransactionNumber(), transaction);
+                transaction.setRetained();
+
+                // this is the update phase ... write data to operational data in one go
+                // ...
+                writeTransaction(transaction);
+
+                return true;
+            }
+            
+            // validation failed, abort this transaction
+            // there is not anything that is done explicitly, aborting is essentially doing nothing
+            recordConflict(transaction);
+
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Runs a transaction holding the commit lock from open to close, so no other transaction commits in between
+     * and it cannot fail validation against committed transactions. Transactions opening or closing meanwhile wait,
+     * so this is the last resort for a transaction too large to ever validate optimistically under load.
+     * Only validating transactions centrally, one by one, is there a commit lock to hold
+     * 
+     * @param operations the transaction's reads and writes
+     * @return a flag indicating whether the transaction committed, false right away if there is no commit lock
+     */
+    public boolean runExclusively(Consumer<Transaction> operations)
+    {
+        if (partitions != null || epochCommit != null || commitSequencer != null)
+        {
+            return false;
+        }
+        
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(null, "exclusive");
+        synchronized (runningTransactions)
+        {
+            endLockWait(lockWaitEvent);
+            
+            Transaction transaction = startTransaction(null);
+            operations.accept(transaction);
+            
+            return closeTransaction(transaction);
+        }
+    }
+    
+    
+    /**
+     * Starts a snapshot of the balances, see AccountSnapshot, consistent with the commits so far: with central
+     * validation it starts in between two write phases, holding the commit lock for no longer than that.
+     * With epoch-based commit there is no such moment, each committing transaction decides on its own whether
+     * it writes before or after the snapshot started, see EpochCommit.commit(). Partitions commit independently,
+     * there is no snapshot consistent across all of them
+     * 
+     * @return the snapshot, to be ended by endSnapshot(), or null in partitioned execution
+     */
+    public AccountSnapshot startSnapshot()
+    {
+        if (partitions != null)
+        {
+            return null;
+        }
+        
+        AccountSnapshot snapshot = new AccountSnapshot();
+        if (epochCommit != null)
+        {
+            accountManager.startSnapshot(snapshot);
+            return snapshot;
+        }
+        
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(null, "snapshot");
+        synchronized (runningTransactions)
+        {
+            endLockWait(lockWaitEvent);
+            accountManager.startSnapshot(snapshot);
+        }
+        return snapshot;
+    }
+    
+    
+    /**
+     * Ends a snapshot started by startSnapshot()
+     * 
+     * @param snapshot the snapshot
+     */
+    public void endSnapshot(AccountSnapshot snapshot)
+    {
+        accountManager.endSnapshot(snapshot);
+    }
+    
+    
+    /**
+     * First phase of a two-phase commit: validates a transaction and, if successful, keeps it prepared
+     * without writing it, until the coordinator decides. A prepared transaction already holds its
+     * transaction number, and until it is finished every transaction reading or writing data it writes fails validation.
+     * 
+     * @param transaction Transaction to be prepared
+     * @return a flag indicating whether the transaction is prepared to commit
+     */
+    public boolean prepareTransaction(Transaction transaction)
+    {
+        // partitioned execution validates and writes in one step, it cannot be split into two phases
+        if (partitions != null)
+        {
+            transaction.log("[TransactionManager.prepareTransaction] Two-phase commit not supported in partitioned execution");
+            return false;
+        }
+        
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(transaction, "prepare");
+        synchronized (runningTransactions) 
+        {
+            endLockWait(lockWaitEvent);
+            
+            // aborted while idle
+            if (!runningTransactions.remove(transaction)) 
+            {
+                return false;
+            }
+            
+            if (validateTransaction(transaction)) 
+            {
+                preparedTransactions.put(transaction.getTransactionNumber(), transaction);
+                transaction.setRetained();
+                return true;
+            }
+            
+            recordConflict(transaction);
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Second phase of a two-phase commit: commits a prepared transaction
+     * 
+     * @param transaction Transaction to be committed
+     * @return a flag indicating whether the transaction is committed, now or by an earlier COMMIT_TRANSACTION
+     */
+    public boolean commitPreparedTransaction(Transaction transaction)
+    {
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(transaction, "commit prepared");
+        synchronized (runningTransactions) 
+        {
+            endLockWait(lockWaitEvent);
+            
+            if (!preparedTransactions.remove(transaction.getTransactionNumber(), transaction)) 
+            {
+                return committedPrepared.containsKey(transaction.getTransactionID());
+            }
+            
+            committedPrepared.put(transaction.getTransactionID(), true);
+            committedTransactions.put(transaction.getTransactionNumber(), transaction);
+            transaction.setRetained();
+            writeTransaction(transaction);
+            return true;
+        }
+    }
+    
+    
+    /**
+     * Second phase of a two-phase commit: aborts a prepared transaction, nothing happens
+     * if the transaction is not prepared
+     * 
+     * @param transaction Transaction to be aborted
+     */
+    public void abortPreparedTransaction(Transaction transaction)
+    {
+        synchronized (runningTransactions) 
+        {
+            if (preparedTransactions.remove(transaction.getTransactionNumber(), transaction)) 
+            {
+                abortHistory.record(transaction, AbortHistory.COORDINATOR);
+            }
+        }
+    }
+    
+    
+    /**
+     * Looks up a prepared transaction by its ID, for a coordinator deciding on it over a new connection
+     * after losing the one it was prepared on
+     * 
+     * @param transactionID the transaction's ID
+     * @return the transaction, null if it is not prepared (anymore)
+     */
+    public Transaction getPreparedTransaction(int transactionID)
+    {
+        synchronized (runningTransactions) 
+        {
+            for (Transaction preparedTransaction : preparedTransactions.values()) 
+            {
+                if (preparedTransaction.getTransactionID() == transactionID) 
+                {
+                    return preparedTransaction;
+                }
+            }
+            return null;
+        }
+    }
+    
+    
+    /**
+     * @param transactionID the ID of a transaction prepared in a two-phase commit
+     * @return a flag indicating whether it was committed recently
+     */
+    public boolean isCommittedPrepared(int transactionID)
+    {
+        synchronized (runningTransactions) 
+        {
+            return committedPrepared.containsKey(transactionID);
+        }
+    }
+    
+    
+    /**
+     * Aborts a running transaction whose client is gone. Nothing happens if the transaction is finished already
+     * or prepared: the coordinator may have told other shards to commit it already, so it stays prepared
+     * until the coordinator decides, if need be over a new connection
+     * 
+     * @param transaction Transaction to be aborted
+     * @return a flag indicating whether the transaction was aborted by this call
+     */
+    public boolean abortAbandonedTransaction(Transaction transaction)
+    {
+        synchronized (runningTransactions) 
+        {
+            if (runningTransactions.remove(transaction)) 
+            {
+                transaction.log("[TransactionManager.abortAbandonedTransaction] Transaction #" + transaction.getTransactionID() + " abandoned by its client");
+                abortHistory.record(transaction, AbortHistory.ABANDONED);
+                return true;
+            }
+            return false;
+        }
+    }
+    
+    
+    /**
+     * Aborts all transactions that have been waiting for their clients' next request for longer than the timeout
+     * and closes their connections, which ends their workers
+     * 
+     * @param transactionTimeout time in milliseconds a transaction may be idle
+     * @return the number of transactions aborted
+     */
+    public int reapIdleTransactions(int transactionTimeout)
+    {
+        long idleSince = System.currentTimeMillis() - transactionTimeout;
+        int reaped = 0;
+        
+        for (TransactionManagerWorker worker : activeWorkers)
+        {
+            if (worker.isIdleSince(idleSince))
+            {
+                worker.abandon();
+                reaped++;
+            }
+        }
+        
+        return reaped;
+    }
+    
+    
+    /**
+     * Drops committed transactions that no running transaction needs to validate against anymore,
+     * i.e. all transactions up to the oldest transaction number a running transaction has seen
+     */
+    public void pruneCommittedTransactions()
+    {
+        synchronized (runningTransactions) 
+        {
+            int lowWaterMark = getLastCommittedTransactionNumber();
+            for (Transaction runningTransaction : runningTransactions) 
+            {
+                lowWaterMark = Math.min(lowWaterMark, runningTransaction.getLastAssignedTransactionNumber());
+            }
+            
+            final int pruneUpTo = lowWaterMark;
+            committedTransactions.keySet().removeIf(transactionNumber -> transactionNumber <= pruneUpTo);
+            prunedUpTo = Math.max(prunedUpTo, pruneUpTo);
+        }
+    }
+    
+    
+    /**
+     * Helper starting to time the wait for the commit lock, to be followed by endLockWait() once it is acquired
+     * 
+     * @param transaction the transaction waiting
+     * @param operation what the lock is needed for
+     * @return the JFR event timing the wait
+     */
+    private static CommitLockWaitEvent beginLockWait(Transaction transaction, String operation)
+    {
+        CommitLockWaitEvent lockWaitEvent = new CommitLockWaitEvent();
+        lockWaitEvent.transactionID = transaction != null ? transaction.getTransactionID() : 0;
+        lockWaitEvent.operation = operation;
+        lockWaitEvent.begin();
+        
+        return lockWaitEvent;
+    }
+    
+    
+    /**
+     * Helper ending the timing of the wait for the commit lock
+     * 
+     * @param lockWaitEvent the event returned by beginLockWait()
+     */
+    private static void endLockWait(CommitLockWaitEvent lockWaitEvent)
+    {
+        lockWaitEvent.end();
+        lockWaitEvent.commit();
+    }
+    
+    
+    /**
+     * Determines the transaction number a newly opened transaction needs to validate from.
+     * Prepared transactions hold numbers but have not written their data yet,
+     * so new transactions need to validate against them once they are committed.
+     * Needs to be called while holding the lock on runningTransactions
+     * 
+     * @return the last transaction number whose data is fully written
+     */
+    private int getLastCommittedTransactionNumber()
+    {
+        if (preparedTransactions.isEmpty()) 
+        {
+            return transactionNumberCounter;
+        }
+        return preparedTransactions.firstKey() - 1;
+    }
+    
+    
+    /**
+     * Validates a transaction according to OCC, implementing backwards validation
+     * 
+     * @param transaction Transaction to be validated
+     * @return a flag indicating whether validation was successful
+     */
+    public boolean validateTransaction(Transaction transaction) {
+        int transactionNumber;
+        int lastCommittedTransactionNumber = transaction.getLastAssignedTransactionNumber();
+
+        ValidationEvent validationEvent = new ValidationEvent();
+        validationEvent.begin();
+
+        // assign a transaction number to this transaction
+        // ...            
+        synchronized (this) {
+            transactionNumber = ++transactionNumberCounter;
+        }
+        transaction.setTransactionNumber(transactionNumber);
+
+        // run through all overlapping transactions
+        // use transactionNumberIndex as the transaction number of overlapping transaction currently looked at
+        for (int transactionNumberIndex = lastCommittedTransactionNumber + 1; transactionNumberIndex <= transactionNumberCounter; transactionNumberIndex++) {
+
+            // get transaction with transaction number transactionNumberIndex
+            // from committedTransactions -> checkedTransaction
+            // ...
+            Transaction checkedTransaction = committedTransactions.get(transactionNumberIndex);
+
+            // make sure transaction with transactionNumberIndex was not aborted before
+            if (checkedTransaction != null) {
+                validationEvent.committedScanned++;
+
+                // check our own read set against the write set of the checkedTransaction
+                // Conflict detected: remember the accounts involved
+                // ...
+                addConflicts(transaction, checkedTransaction);
+
+                // return false, attributing the abort to all accounts this transaction overlaps on
+                if (!transaction.getConflictAccounts().isEmpty()) {
+                    transaction.log("[TransactionManager.validateTransaction] Conflict detected with Transaction #" + checkedTransaction.getTransactionID() + " on account(s) " + transaction.getConflictAccounts());
+                    return endValidation(validationEvent, transaction, false);
+                }
+            }
+        }
+
+        if (conflictsWithPrepared(transaction) || conflictsInCachedReads(transaction, null, 0) || writesMissingAccounts(transaction)) {
+            return endValidation(validationEvent, transaction, false);
+        }
+
+        transaction.log("[TransactionManager.validateTransaction] Transaction #" + transaction.getTransactionID() + " successfully validated");
+        return endValidation(validationEvent, transaction, true);
+    }
+    
+    
+    /**
+     * Checks a transaction's read and write sets against the write sets of all prepared transactions.
+     * Prepared transactions have not written yet, so reading what they write is reading stale data,
+     * and their write sets lock the accounts, so writing them, even blindly, would be overwritten by their commit
+     * 
+     * @param transaction Transaction being validated
+     * @return a flag indicating whether there is a conflict
+     */
+    private boolean conflictsWithPrepared(Transaction transaction) {
+        for (Transaction preparedTransaction : preparedTransactions.values()) {
+            addConflicts(transaction, preparedTransaction);
+            addWriteConflicts(transaction, preparedTransaction);
+            if (!transaction.getConflictAccounts().isEmpty()) {
+                transaction.log("[TransactionManager.validateTransaction] Conflict detected with prepared Transaction #" + preparedTransaction.getTransactionID() + " on account(s) " + transaction.getConflictAccounts());
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Checks that all accounts a transaction writes exist, writing an account never created, or closed, before the
+     * transaction read it would make the amount written disappear
+     * 
+     * @param transaction Transaction being validated
+     * @return a flag indicating whether the transaction writes an account that does not exist
+     */
+    private boolean writesMissingAccounts(Transaction transaction) {
+        AccountMap writeSet = transaction.getWriteSet();
+
+        for (int index = 0; index < writeSet.size(); index++) {
+            if (accountManager.getAccount(writeSet.keyAt(index)) == null) {
+                transaction.addConflict(writeSet.keyAt(index), -1);
+            }
+        }
+
+        if (!transaction.getConflictAccounts().isEmpty()) {
+            transaction.log("[TransactionManager.validateTransaction] Transaction #" + transaction.getTransactionID() + " writes account(s) " + transaction.getConflictAccounts() + " that do not exist");
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Helper recording the accounts a transaction read that another transaction writes as conflicts.
+     * The smaller of the two sets is walked, looking up the other one, so a transaction reading a great
+     * many accounts is checked against a small write set in time of the write set's size, and vice versa
+     * 
+     * @param transaction Transaction being validated
+     * @param writer a committed or prepared transaction
+     */
+    private static void addConflicts(Transaction transaction, Transaction writer) {
+        AccountSet readSet = transaction.getReadSet();
+        AccountMap writeSet = writer.getWriteSet();
+
+        if (readSet.size() <= writeSet.size()) {
+            for (int index = 0; index < readSet.size(); index++) {
+                if (writeSet.containsKey(readSet.keyAt(index))) {
+                    transaction.addConflict(readSet.keyAt(index), writer.getTransactionID());
+                }
+            }
+        } else {
+            for (int index = 0; index < writeSet.size(); index++) {
+                if (readSet.contains(writeSet.keyAt(index))) {
+                    transaction.addConflict(writeSet.keyAt(index), writer.getTransactionID());
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Helper recording the accounts both a transaction and a prepared transaction write as conflicts,
+     * walking the smaller of the two write sets like addConflicts(). Accounts the transaction also read
+     * were recorded by addConflicts() already
+     * 
+     * @param transaction Transaction being validated
+     * @param preparedTransaction a prepared transaction
+     */
+    private static void addWriteConflicts(Transaction transaction, Transaction preparedTransaction) {
+        AccountMap writeSet = transaction.getWriteSet();
+        AccountMap preparedWriteSet = preparedTransaction.getWriteSet();
+        
+        AccountMap walked = writeSet.size() <= preparedWriteSet.size() ? writeSet : preparedWriteSet;
+        AccountMap looked = walked == writeSet ? preparedWriteSet : writeSet;
+        for (int index = 0; index < walked.size(); index++) {
+            if (looked.containsKey(walked.keyAt(index)) && !transaction.getReadSet().contains(walked.keyAt(index))) {
+                transaction.addConflict(walked.keyAt(index), preparedTransaction.getTransactionID());
+            }
+        }
+    }
+    
+    
+    /**
+     * Checks the reads a client served from its read cache: an account read that way must still be at the version cached,
+     * i.e. nobody wrote it since, nor may anybody be about to write it, be it a prepared transaction or a transaction
+     * validated before in the same batch, whose writes are not applied yet
+     * 
+     * @param transaction Transaction being validated
+     * @param lastWriters the last writers collected for a batch, null when not validating a batch
+     * @param batchStart the last transaction number assigned before the batch, transactions numbered higher are part of it
+     * @return a flag indicating whether there is a conflict
+     */
+    private boolean conflictsInCachedReads(Transaction transaction, HashMap<Integer, Transaction> lastWriters, int batchStart) {
+        int[] cachedReads = transaction.getCachedReads();
+        if (cachedReads == null) {
+            return false;
+        }
+        
+        for (int index = 0; index + 1 < cachedReads.length; index += 2) {
+            int accountNumber = cachedReads[index];
+            boolean stale = cachedReads[index + 1] < 0 || getCommittedVersion(accountNumber) != cachedReads[index + 1];
+            
+            Transaction lastWriter = lastWriters == null ? null : lastWriters.get(accountNumber);
+            stale |= lastWriter != null && lastWriter.getTransactionNumber() > batchStart;
+            
+            for (Transaction preparedTransaction : preparedTransactions.values()) {
+                stale |= preparedTransaction.getWriteSet().containsKey(accountNumber);
+            }
+            
+            if (stale) {
+                transaction.addConflict(accountNumber, -1);
+            }
+        }
+        
+        if (!transaction.getConflictAccounts().isEmpty()) {
+            transaction.log("[TransactionManager.validateTransaction] Cached read(s) out of date on account(s) " + transaction.getConflictAccounts());
+            return true;
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Returns the version of an account's committed balance for a client to cache along with the balance.
+     * Caching is only supported with central validation, and only for regular accounts held here
+     * that the transaction has not written itself
+     * 
+     * @param transaction the transaction reading the account
+     * @param accountNumber the logical account number
+     * @return the version, -1 if the balance must not be cached
+     */
+    public int getCacheableVersion(Transaction transaction, int accountNumber)
+    {
+        return transaction.getWriteSet().containsKey(accountNumber) ? -1 : getCommittedVersion(accountNumber);
+    }
+    
+    
+    /**
+     * @param accountNumber the logical account number
+     * @return the version of the account's committed balance, -1 if it is not versioned for caching
+     */
+    private int getCommittedVersion(int accountNumber)
+    {
+        if (partitions != null || epochCommit != null 
+                || !accountManager.isLocal(accountNumber)
+                || accountManager.getSlots(accountNumber) != null)
+        {
+            return -1;
+        }
+        
+        return accountManager.getVersion(accountNumber);
+    }
+    
+    
+    /**
+     * Collects the accounts a caching client has to evict from its read cache after closing a transaction:
+     * those written by the transactions committed since it was opened, those it wrote, if it committed,
+     * or those that made it fail validation
+     * 
+     * @param transaction the closed transaction
+     * @param committed whether it committed
+     * @return the last transaction number covered followed by the logical account numbers, or ALL_ACCOUNTS,
+     *         null if the client does not cache
+     */
+    private int[] getCacheEvictions(Transaction transaction, boolean committed)
+    {
+        if (transaction.getCachedReads() == null)
+        {
+            return null;
+        }
+        
+        LinkedHashSet<Integer> accountNumbers = new LinkedHashSet<>();
+        int upTo = collectInvalidations(transaction.getLastAssignedTransactionNumber(), accountNumbers);
+        if (committed)
+        {
+            AccountMap writeSet = transaction.getWriteSet();
+            for (int index = 0; index < writeSet.size(); index++)
+            {
+                addInvalidation(accountNumbers, writeSet.keyAt(index));
+            }
+        }
+        else
+        {
+            for (Integer key : transaction.getConflictAccounts())
+            {
+                addInvalidation(accountNumbers, key);
+            }
+        }
+        
+        return toInvalidations(upTo, accountNumbers);
+    }
+    
+    
+    /**
+     * Collects the accounts a caching client has to evict from its read cache when opening a transaction:
+     * those written by the transactions committed since the client's last reply
+     * 
+     * @param seenUpTo the last transaction number covered by the replies the client has seen
+     * @return the last transaction number covered followed by the logical account numbers, or ALL_ACCOUNTS
+     */
+    private int[] getCacheInvalidations(int seenUpTo)
+    {
+        LinkedHashSet<Integer> accountNumbers = new LinkedHashSet<>();
+        int upTo = collectInvalidations(seenUpTo, accountNumbers);
+        
+        return toInvalidations(upTo, accountNumbers);
+    }
+    
+    
+    /**
+     * Helper collecting the accounts written by the transactions committed after a given transaction number,
+     * or ALL_ACCOUNTS if those transactions are not all retained anymore
+     * 
+     * @param seenUpTo the transaction number
+     * @param accountNumbers receives the logical account numbers
+     * @return the last committed transaction number, up to which the accounts are collected
+     */
+    private int collectInvalidations(int seenUpTo, LinkedHashSet<Integer> accountNumbers)
+    {
+        synchronized (runningTransactions)
+        {
+            int upTo = getLastCommittedTransactionNumber();
+            if (seenUpTo < prunedUpTo || seenUpTo > upTo || upTo - seenUpTo > MAX_INVALIDATION_RANGE)
+            {
+                accountNumbers.add(ALL_ACCOUNTS);
+                return upTo;
+            }
+            
+            for (int transactionNumber = seenUpTo + 1; transactionNumber <= upTo; transactionNumber++)
+            {
+                Transaction committedTransaction = committedTransactions.get(transactionNumber);
+                if (committedTransaction != null)
+                {
+                    AccountMap writeSet = committedTransaction.getWriteSet();
+                    for (int index = 0; index < writeSet.size(); index++)
+                    {
+                        addInvalidation(accountNumbers, writeSet.keyAt(index));
+                    }
+                }
+            }
+            return upTo;
+        }
+    }
+    
+    
+    /**
+     * Helper adding the logical account of an account or sub-account key to the invalidations collected,
+     * unless it is a sub-account merged away meanwhile
+     */
+    private void addInvalidation(LinkedHashSet<Integer> accountNumbers, int key)
+    {
+        int accountNumber = accountManager.getLogicalNumber(key);
+        if (accountNumber >= 0)
+        {
+            accountNumbers.add(accountNumber);
+        }
+    }
+    
+    
+    /**
+     * Helper turning collected accounts into the invalidations sent to a caching client
+     */
+    private static int[] toInvalidations(int upTo, LinkedHashSet<Integer> accountNumbers)
+    {
+        if (accountNumbers.contains(ALL_ACCOUNTS))
+        {
+            return new int[] { upTo, ALL_ACCOUNTS };
+        }
+        
+        int[] invalidations = new int[accountNumbers.size() + 1];
+        invalidations[0] = upTo;
+        int index = 1;
+        for (int accountNumber : accountNumbers)
+        {
+            invalidations[index++] = accountNumber;
+        }
+        return invalidations;
+    }
+    
+    
+    /**
+     * Closes a batch of transactions in one go: the committed transactions they overlap with are scanned once
+     * for all of them, each transaction is validated against these and against the transactions validated
+     * before it in the same batch, and the write sets of all valid transactions are written together
+     * 
+     * @param batch the transactions to be closed, validated in this order
+     * @return flags indicating which transactions committed, index by index
+     */
+    public boolean[] closeBatch(ArrayList<Transaction> batch)
+    {
+        boolean[] committed = new boolean[batch.size()];
+        
+        CommitLockWaitEvent lockWaitEvent = beginLockWait(batch.get(0), "close batch");
+        synchronized (runningTransactions) 
+        {
+            endLockWait(lockWaitEvent);
+            
+            // the oldest transaction number any transaction of the batch has seen
+            int lastCommittedTransactionNumber = Integer.MAX_VALUE;
+            for (Transaction transaction : batch) 
+            {
+                lastCommittedTransactionNumber = Math.min(lastCommittedTransactionNumber, transaction.getLastAssignedTransactionNumber());
+            }
+            
+            // single pass over the overlapping committed transactions, remembering the last writer of each account
+            HashMap<Integer, Transaction> lastWriters = new HashMap<>();
+            int committedScanned = 0;
+            int batchStart = transactionNumberCounter;
+            for (int transactionNumberIndex = lastCommittedTransactionNumber + 1; transactionNumberIndex <= transactionNumberCounter; transactionNumberIndex++) 
+            {
+                Transaction checkedTransaction = committedTransactions.get(transactionNumberIndex);
+                if (checkedTransaction != null) 
+                {
+                    committedScanned++;
+                    AccountMap writeSet = checkedTransaction.getWriteSet();
+                    for (int writeIndex = 0; writeIndex < writeSet.size(); writeIndex++) 
+                    {
+                        lastWriters.put(writeSet.keyAt(writeIndex), checkedTransaction);
+                    }
+                }
+            }
+            
+            for (int index = 0; index < batch.size(); index++) 
+            {
+                Transaction transaction = batch.get(index);
+                
+                // aborted while idle
+                if (!runningTransactions.remove(transaction)) 
+                {
+                    transaction.log("[TransactionManager.closeBatch] Transaction #" + transaction.getTransactionID() + " was aborted while idle");
+                    continue;
+                }
+                
+                if (validateAgainstLastWriters(transaction, lastWriters, committedScanned, batchStart)) 
+                {
+                    committed[index] = true;
+                    committedTransactions.put(transaction.getTransactionNumber(), transaction);
+                    transaction.setRetained();
+                    
+                    // later transactions of the batch validate against this one
+                    AccountMap writeSet = transaction.getWriteSet();
+                    for (int writeIndex = 0; writeIndex < writeSet.size(); writeIndex++) 
+                    {
+                        lastWriters.put(writeSet.keyAt(writeIndex), transaction);
+                    }
+                }
+                else 
+                {
+                    recordConflict(transaction);
+                }
+            }
+            
+            // the update phase for the whole batch, in commit order
+            for (int index = 0; index < batch.size(); index++) 
+            {
+                if (committed[index]) 
+                {
+                    writeTransaction(batch.get(index));
+                }
+            }
+        }
+        
+        return committed;
+    }
+    
+    
+    /**
+     * Validates one transaction of a batch, see closeBatch()
+     * 
+     * @param transaction Transaction to be validated
+     * @param lastWriters the last committed writer of each account written since the oldest transaction of the batch opened
+     * @param committedScanned number of committed transactions the last writers were collected from
+     * @param batchStart the last transaction number assigned before the batch
+     * @return a flag indicating whether validation was successful
+     */
+    private boolean validateAgainstLastWriters(Transaction transaction, HashMap<Integer, Transaction> lastWriters, int committedScanned, int batchStart)
+    {
+        ValidationEvent validationEvent = new ValidationEvent();
+        validationEvent.begin();
+        validationEvent.committedScanned = committedScanned;
+        
+        synchronized (this) 
+        {
+            transaction.setTransactionNumber(++transactionNumberCounter);
+        }
+        
+        // a conflict is an account read by this transaction and written by a transaction committed after this one opened
+        Transaction conflictingTransaction = null;
+        AccountSet readSet = transaction.getReadSet();
+        for (int index = 0; index < readSet.size(); index++) 
+        {
+            int accountNumber = readSet.keyAt(index);
+            Transaction lastWriter = lastWriters.get(accountNumber);
+            if (lastWriter != null && lastWriter.getTransactionNumber() > transaction.getLastAssignedTransactionNumber()) 
+            {
+                transaction.addConflict(accountNumber, lastWriter.getTransactionID());
+                conflictingTransaction = lastWriter;
+            }
+        }
+        
+        if (conflictingTransaction != null) 
+        {
+            transaction.log("[TransactionManager.closeBatch] Conflict detected with Transaction #" + conflictingTransaction.getTransactionID() + " on account(s) " + transaction.getConflictAccounts());
+            return endValidation(validationEvent, transaction, false);
+        }
+        
+        if (conflictsWithPrepared(transaction) || conflictsInCachedReads(transaction, lastWriters, batchStart) || writesMissingAccounts(transaction)) 
+        {
+            return endValidation(validationEvent, transaction, false);
+        }
+        
+        transaction.log("[TransactionManager.closeBatch] Transaction #" + transaction.getTransactionID() + " successfully validated");
+        return endValidation(validationEvent, transaction, true);
+    }
+    
+    
+    /**
+     * Helper finishing the JFR event timing a validation
+     * 
+     * @param validationEvent the event begun when validation started, committedScanned already counted
+     * @param transaction the transaction validated
+     * @param valid the outcome
+     * @return the outcome
+     */
+    private static boolean endValidation(ValidationEvent validationEvent, Transaction transaction, boolean valid)
+    {
+        validationEvent.end();
+        if (validationEvent.shouldCommit())
+        {
+            validationEvent.transactionID = transaction.getTransactionID();
+            validationEvent.transactionNumber = transaction.getTransactionNumber();
+            validationEvent.readSetSize = transaction.getReadSet().size();
+            validationEvent.valid = valid;
+            validationEvent.commit();
+        }
+        
+        return valid;
+    }
+     
+    
+    /**
+     * Writes the write set of a transaction into the operational data
+     * 
+     * @param transaction Transaction to be written
+     */
+    public void writeTransaction(Transaction transaction) {
+        AccountMap transactionWriteSet = transaction.getWriteSet();
+        int account;
+        int balance;
+
+        WritePhaseEvent writePhaseEvent = new WritePhaseEvent();
+        writePhaseEvent.begin();
+
+        // get all the entries of this write set
+        for (int index = 0; index < transactionWriteSet.size(); index++) {
+            account = transactionWriteSet.keyAt(index);
+            balance = transactionWriteSet.valueAt(index);
+
+            // Write the new balance to the account in AccountManager
+            accountManager.write(account, balance);
+
+            // Log the write operation
+            transaction.log("[TransactionManager.writeTransaction] Transaction #" + transaction.getTransactionID() + " written");      
+        }
+
+        writePhaseEvent.end();
+        if (writePhaseEvent.shouldCommit()) {
+            writePhaseEvent.transactionID = transaction.getTransactionID();
+            writePhaseEvent.transactionNumber = transaction.getTransactionNumber();
+            writePhaseEvent.writeSetSize = transactionWriteSet.size();
+            writePhaseEvent.commit();
+        }
+
+        recordCommit(transaction);
+
+        // ship the new balances to followers and subscribers, we are still holding the commit lock, so this happens in commit order
+        if (replicationManager.isPublishing()) {
+            replicationManager.publish(getCommittedWriteSet(transaction));
+        }
+    }
+
+    
+    /**
+     * Collects the new logical balances of all accounts written by a committed transaction.
+     * Sub-accounts are folded into their accounts, so followers need not know about splitting
+     * 
+     * @param transaction the committed transaction
+     * @return the committed write set
+     */
+    private CommittedWriteSet getCommittedWriteSet(Transaction transaction)
+    {
+        LinkedHashSet<Integer> accountNumbers = new LinkedHashSet<>();
+        AccountMap writeSet = transaction.getWriteSet();
+        for (int index = 0; index < writeSet.size(); index++)
+        {
+            // sub-accounts merged away by a restructuring belong to no account any more, slot 0 carries the balance
+            int accountNumber = accountManager.getLogicalNumber(writeSet.keyAt(index));
+            if (accountNumber >= 0)
+            {
+                accountNumbers.add(accountNumber);
+            }
+        }
+        
+        int[] accounts = new int[accountNumbers.size()];
+        int[] balances = new int[accounts.length];
+        int accountIndex = 0;
+        for (Integer accountNumber : accountNumbers)
+        {
+            accounts[accountIndex] = accountNumber;
+            balances[accountIndex++] = accountManager.read(accountNumber);
+        }
+        
+        return new CommittedWriteSet(transaction.getTransactionNumber(), accounts, balances);
+    }
+    
+    
+    /**
+     * @return whether committed write sets are published to followers and change subscribers, which they are not
+     *         in partitioned execution and epoch-based commit, committing without the commit lock and transaction numbers
+     */
+    public boolean isPublishingCommits()
+    {
+        return partitions == null && epochCommit == null;
+    }
+    
+    
+    /**
+     * Takes a snapshot of all accounts and starts shipping committed write sets to a new follower
+     * 
+     * @param client the follower's connection
+     * @param readFromNet stream from the follower
+     * @param writeToNet stream to the follower
+     */
+    public void addFollower(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet)
+    {
+        synchronized (runningTransactions)
+        {
+            replicationManager.addFollower(client, readFromNet, writeToNet, takeSnapshot());
+        }
+    }
+    
+    
+    /**
+     * Starts streaming committed write sets to a change subscriber, resuming after the given
+     * transaction number if the retained write sets reach back that far and the missed ones fit into the
+     * subscriber's buffer, starting with a snapshot otherwise
+     * 
+     * @param client the subscriber's connection
+     * @param readFromNet stream from the subscriber
+     * @param writeToNet stream to the subscriber
+     * @param resumeAfter the last transaction number the subscriber has seen, null to start with a snapshot
+     */
+    public void addSubscriber(Socket client, ObjectInputStream readFromNet, ObjectOutputStream writeToNet, Integer resumeAfter)
+    {
+        synchronized (runningTransactions)
+        {
+            if (resumeAfter != null && replicationManager.canResumeAfter(resumeAfter))
+            {
+                replicationManager.addSubscriber(client, readFromNet, writeToNet, resumeAfter, null);
+            }
+            else
+            {
+                replicationManager.addSubscriber(client, readFromNet, writeToNet, 0, takeSnapshot());
+            }
+        }
+    }
+    
+    
+    /**
+     * Takes a snapshot of the balances of all accounts.
+     * Needs to be called while holding the commit lock on runningTransactions
+     * 
+     * @return the snapshot, as of the last transaction number assigned
+     */
+    private CommittedWriteSet takeSnapshot()
+    {
+        int[] accounts = accountManager.getAccountNumbers();
+        int[] balances = new int[accounts.length];
+
+        for (int accountIndex = 0; accountIndex < accounts.length; accountIndex++)
+        {
+            balances[accountIndex] = accountManager.read(accounts[accountIndex]);
+        }
+
+        return new CommittedWriteSet(transactionNumberCounter, accounts, balances);
+    }
+    
+    
+    /**
+     * Installs a primary's snapshot on this follower
+     * 
+     * @param snapshot the balances of all accounts
+     */
+    public void installReplicaSnapshot(CommittedWriteSet snapshot)
+    {
+        synchronized (runningTransactions)
+        {
+            applyReplicated(snapshot);
+        }
+    }
+    
+    
+    /**
+     * Applies a batch of a primary's committed write sets on this follower, in one go
+     * 
+     * @param batch the write sets, in the primary's commit order
+     */
+    public void applyReplicatedBatch(CommittedWriteSet[] batch)
+    {
+        synchronized (runningTransactions)
+        {
+            for (CommittedWriteSet writeSet : batch)
+            {
+                applyReplicated(writeSet);
+            }
+        }
+    }
+    
+    
+    /**
+     * Applies one replicated write set like a local commit, with a local transaction number,
+     * so that overlapping read-only transactions on this follower validate against it.
+     * Needs to be called while holding the commit lock on runningTransactions
+     * 
+     * @param writeSet the write set to apply
+     */
+    private void applyReplicated(CommittedWriteSet writeSet)
+    {
+        Transaction replicated = new Transaction(this, 0, transactionNumberCounter);
+        int[] accounts = writeSet.getAccounts();
+        int[] balances = writeSet.getBalances();
+        
+        for (int accountIndex = 0; accountIndex < accounts.length; accountIndex++)
+        {
+            replicated.getWriteSet().put(accounts[accountIndex], balances[accountIndex]);
+            
+            // accounts the primary created after this follower started come into existence with their first write
+            if (accountManager.create(accounts[accountIndex], balances[accountIndex]) < 0)
+            {
+                accountManager.write(accounts[accountIndex], balances[accountIndex]);
+            }
+        }
+        
+        synchronized (this) 
+        {
+            replicated.setTransactionNumber(++transactionNumberCounter);
+        }
+        committedTransactions.put(replicated.getTransactionNumber(), replicated);
+        
+        // followers of this follower get the primary's write sets as they are
+        replicationManager.publish(writeSet);
+    }
+    
+    
+    /**
+     * Splits a hot account into sub-accounts at runtime, see AccountManager.split()
+     * 
+     * @param accountNumber the account to split
+     * @param numberSlots the number of sub-accounts
+     * @return a flag indicating whether the account was split
+     */
+    public boolean splitAccount(int accountNumber, int numberSlots)
+    {
+        // followers replicate logical balances only, they do not split
+        if (readOnly)
+        {
+            return false;
+        }
+        
+        // the executor owning the account restructures it, versions take care of overlapping transactions
+        if (partitions != null)
+        {
+            return partitions.call(accountNumber, () -> accountManager.split(accountNumber, numberSlots) != null);
+        }
+        
+        // the account is locked while it is split, commit IDs take care of overlapping transactions
+        if (epochCommit != null)
+        {
+            return epochCommit.restructure(new int[] { accountNumber }, () -> accountManager.split(accountNumber, numberSlots) != null);
+        }
+        
+        synchronized (runningTransactions)
+        {
+            return commitRestructuring(accountManager.split(accountNumber, numberSlots));
+        }
+    }
+    
+    
+    /**
+     * Merges a split account back into one account at runtime, see AccountManager.merge()
+     * 
+     * @param accountNumber the account to merge
+     * @return a flag indicating whether the account was merged
+     */
+    public boolean mergeAccount(int accountNumber)
+    {
+        if (partitions != null)
+        {
+            return partitions.call(accountNumber, () -> accountManager.merge(accountNumber) != null);
+        }
+        
+        // all sub-accounts are locked while they are merged
+        if (epochCommit != null)
+        {
+            int[] slots = accountManager.getSlots(accountNumber);
+            return epochCommit.restructure(slots != null ? slots : new int[] { accountNumber }, () -> accountManager.merge(accountNumber) != null);
+        }
+        
+        synchronized (runningTransactions)
+        {
+            return commitRestructuring(accountManager.merge(accountNumber));
+        }
+    }
+    
+    
+    /**
+     * Creates an account at runtime, see AccountManager.create()
+     * 
+     * @param accountNumber the account number, -1 for the next free one
+     * @param balance the initial balance
+     * @return the number of the account created, -1 if none was created
+     */
+    public int createAccount(int accountNumber, int balance)
+    {
+        // followers only hold the accounts the primary's write sets name
+        if (readOnly)
+        {
+            return -1;
+        }
+        
+        // the executor owning the account creates it, so the account number has to be known up front
+        if (partitions != null)
+        {
+            if (accountNumber >= 0)
+            {
+                return partitions.call(accountNumber, () -> accountManager.create(accountNumber, balance));
+            }
+            
+            while (true)
+            {
+                int next = accountManager.getHighestAccountNumber();
+                int created = accountManager.isLocal(next) ? partitions.call(next, () -> accountManager.create(next, balance)) : -1;
+                
+                // taken by another account created in the meantime, if not out of range
+                if (created >= 0 || !accountManager.isLocal(next))
+                {
+                    return created;
+                }
+            }
+        }
+        
+        // transactions having read the account before it existed saw commit ID -1, which never validates
+        if (epochCommit != null)
+        {
+            return accountManager.create(accountNumber, balance);
+        }
+        
+        synchronized (runningTransactions)
+        {
+            int created = accountManager.create(accountNumber, balance);
+            commitRestructuring(created < 0 ? null : new int[] { created });
+            return created;
+        }
+    }
+    
+    
+    /**
+     * Closes an empty account at runtime, see AccountManager.close()
+     * 
+     * @param accountNumber the account to close
+     * @return a flag indicating whether the account was closed
+     */
+    public boolean closeAccount(int accountNumber)
+    {
+        if (readOnly)
+        {
+            return false;
+        }
+        
+        if (partitions != null)
+        {
+            return partitions.call(accountNumber, () -> accountManager.close(accountNumber));
+        }
+        
+        // the account is locked while it is closed, transactions locking it afterwards find it gone
+        if (epochCommit != null)
+        {
+            return epochCommit.restructure(new int[] { accountNumber }, () -> accountManager.close(accountNumber));
+        }
+        
+        synchronized (runningTransactions)
+        {
+            return commitRestructuring(accountManager.close(accountNumber) ? new int[] { accountNumber } : null);
+        }
+    }
+    
+    
+    /**
+     * Records splitting, merging, creating or closing an account like a committed transaction that wrote all sub-accounts involved,
+     * so that overlapping transactions having read any of them fail validation, and publishes it like one.
+     * Needs to be called while holding the commit lock on runningTransactions
+     * 
+     * @param slots the physical keys of the account that was restructured, null if nothing happened
+     * @return a flag indicating whether anything was restructured
+     */
+    private boolean commitRestructuring(int[] slots)
+    {
+        if (slots == null)
+        {
+            return false;
+        }
+        
+        Transaction restructuring = new Transaction(this, 0, transactionNumberCounter);
+        for (int slot : slots)
+        {
+            restructuring.getWriteSet().put(slot, accountManager.readPhysical(slot));
+        }
+        
+        synchronized (this) 
+        {
+            restructuring.setTransactionNumber(++transactionNumberCounter);
+        }
+        committedTransactions.put(restructuring.getTransactionNumber(), restructuring);
+        
+        // followers and subscribers see the new balances, e.g. of an account created, under the restructuring's transaction number
+        if (replicationManager.isPublishing())
+        {
+            replicationManager.publish(getCommittedWriteSet(restructuring));
+        }
+        
+        return true;
+    }
+
+    
+    /**
+     * Objects of this inner class run transactions, one thread runs one transaction
+     * on behalf of a client
+     */
+    public class TransactionManagerWorker extends Thread 
+    {
+        // networking communication related fields
+        Socket client = null;
+        ObjectInputStream readFromNet = null;
+        ObjectOutputStream writeToNet = null;
+        Message message = null;
+        
+        // set when the worker of another branch handed the connection over, see BRANCHES: the message
+        // it read from an object stream, or the frame streams of a binary connection, past an OPEN_TRANSACTION
+        Message handedOver = null;
+        DataInputStream readFrame = null;
+        DataOutputStream writeFrame = null;
+
+        // transaction related fields
+        volatile Transaction transaction = null;
+        int accountNumber       = 0;
+        int balance             = 0;
+        int[] content           = null;
+
+        // flag for jumping out of while loop after this transaction closed
+        boolean keepgoing = true;
+        
+        // flag telling whether this worker holds a permit of the admission control
+        boolean admitted = false;
+        
+        // time this worker started waiting for the client's next message, 0 while processing one
+        volatile long waitingSince = 0;
+        
+        // flag telling whether the transaction is still running, the transaction object outlives it
+        // on connections carrying one transaction after the other
+        volatile boolean transactionOpen = false;
+        
+        // JFR event timing the transaction from open to commit or abort, null when there is none running
+        CompletionEvent completionEvent = null;
+        
+        // the running transaction's operations so far, null unless recording a trace
+        TransactionTrace trace = null;
+
+        
+        // the constructor just keeps the connection, the network channels are opened by the worker thread,
+        // so that a client not sending anything cannot block the server loop
+        private TransactionManagerWorker(Socket client) 
+        {
+            super("TransactionManagerWorker");
+            this.client = client;
+        }
+
+        
+        @Override
+        public void run() 
+        {
+            activeWorkers.add(this);
+            
+            // a binary connection handed over continues with its OPEN_TRANSACTION
+            if (readFrame != null) 
+            {
+                serveBinary(readFrame, writeFrame, true);
+                keepgoing = false;
+            }
+            
+            // setting up object streams, unless the client announces the binary protocol by its first byte
+            BufferedInputStream fromClient = null;
+            boolean binary = false;
+            if (keepgoing && readFromNet == null) 
+            {
+                try 
+                {
+                    client.setSoTimeout(socketReadTimeout);
+                    fromClient = new BufferedInputStream(client.getInputStream());
+                    fromClient.mark(1);
+                    binary = fromClient.read() == BinaryProtocol.MAGIC;
+                
+                    if (!binary) 
+                    {
+                        // replies are written in several small pieces as well, see TransactionServerProxy.openTransaction()
+                        client.setTcpNoDelay(true);
+                        fromClient.reset();
+                        readFromNet = new ObjectInputStream(fromClient);
+                        writeToNet  = new ObjectOutputStream(client.getOutputStream());
+                    }
+                }
+                catch (IOException e)
+                {
+                    System.err.println("[TransactionManagerWorker.run] Failed to open object streams: " + e.getMessage());
+                    abandon();
+                    keepgoing = false;
+                }
+            }
+            
+            if (keepgoing && binary) 
+            {
+                runBinary(fromClient);
+                keepgoing = false;
+            }
+            
+            // loop is left when transaction closes
+            boolean firstMessage = true;
+            while (keepgoing) 
+            {
+                // reading message, unless handed over along with the connection
+                try 
+                {
+                    waitingSince = System.currentTimeMillis();
+                    message = handedOver != null ? handedOver : (Message) readFromNet.readObject();
+                    handedOver = null;
+                    waitingSince = 0;
+                } 
+                catch (IOException | ClassNotFoundException e) 
+                {
+                    // the client is gone, went silent or was reaped, give up on it without affecting anybody else
+                    System.out.println("[TransactionManagerWorker.run] Message could not be read from object stream" 
+                            + (transaction != null ? ", abandoning transaction #" + transaction.getTransactionID() : "") + ": " + e.getMessage());
+                    abandon();
+                    
+                    break;
+                }
+                
+                // the first message names the branch serving the connection
+                if (firstMessage && message.getBranch() != branchID) 
+                {
+                    TransactionManager branch = handOver(message.getBranch());
+                    if (branch != null) 
+                    {
+                        branch.runTransaction(client, readFromNet, writeToNet, message);
+                    }
+                    break;
+                }
+                firstMessage = false;
+
+                // processing message
+                switch (message.getType()) 
+                {
+
+                    // -------------------------------------------------------------------------------------------
+                    case OPEN_TRANSACTION:
+                    // -------------------------------------------------------------------------------------------
+
+                        // over the cap on running transactions and no room in the queue, tell the client when to retry
+                        if (admissionController != null) {
+                            admitted = admissionController.admit();
+
+                            if (!admitted) {
+                                try {
+                                    writeToNet.writeObject(new Message(TRANSACTION_REJECTED, admissionController.getRetryAfterMilliseconds()));
+                                    readFromNet.close();
+                                    writeToNet.close();
+                                    client.close();
+                                } catch (IOException e) {
+                                    System.err.println("[TransactionManagerWorker.run] Failed to notify client of rejection: " + e.getMessage());
+                                }
+                                keepgoing = false;
+
+                                break;
+                            }
+                        }
+
+                        openTransaction();
+
+                        // write back transactionID to client, a caching client sends the last transaction number it has seen
+                        // and receives the accounts written since along with the ID
+                        // ...
+                        try {
+                            if (message.getContent() instanceof Integer && partitions == null && epochCommit == null) {
+                                int[] invalidations = getCacheInvalidations((Integer) message.getContent());
+                                int[] reply = new int[invalidations.length + 1];
+                                reply[0] = transaction.getTransactionID();
+                                System.arraycopy(invalidations, 0, reply, 1, invalidations.length);
+                                writeToNet.writeObject(new Message(OPEN_TRANSACTION, reply));
+                            } else {
+                                writeToNet.writeObject(new Message(OPEN_TRANSACTION, transaction.getTransactionID()));
+                            }
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send transaction ID to client: " + e.getMessage());
+                        }
+
+                        // add log
+                        transaction.log("[TransactionManagerWorker.run] " + OPEN_COLOR + "OPEN_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID());
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case CLOSE_TRANSACTION:
+                    // -------------------------------------------------------------------------------------------
+                        // a caching client sends the reads it served from its cache, to be validated along with the others
+                        if (message.getContent() instanceof int[]) {
+                            transaction.setCachedReads((int[]) message.getContent());
+                        }
+                        
+                        // the BIG thing, we enter validation phase and, if successful, the update phase
+                        if (closeTransaction(transaction)) {
+                            // tell client that transaction committed
+                            // ...      
+                            try {
+                                writeToNet.writeObject(new Message(TRANSACTION_COMMITTED, getCacheEvictions(transaction, true)));
+                            } catch (IOException e) {
+                                System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction commit: " + e.getMessage());
+                            }
+
+                            // add log committed
+                            transaction.log("[TransactionManagerWorker.run] " + COMMIT_COLOR + "CLOSE_TRANSACTION"+ RESET_COLOR + " #" + transaction.getTransactionID() + " - COMMITTED");
+                            completed(true, "committed");
+                        } else {
+                            // tell client that transaction was aborted
+                            // ...
+                            try {
+                                writeToNet.writeObject(new Message(TRANSACTION_ABORTED, getCacheEvictions(transaction, false)));
+                            } catch (IOException e) {
+                                System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction abort: " + e.getMessage());
+                            }
+
+                            // add log aborted
+                            transaction.log("[TransactionManagerWorker.run] " + ABORT_COLOR + "CLOSE_TRANSACTION"+ RESET_COLOR + " #" + transaction.getTransactionID() + " - ABORTED");
+                            completed(false, "aborted");
+                        }
+
+                        // regardless whether the transaction committed or aborted, shut down network connections
+                        // ...
+                        try {
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error closing connection after CLOSE_TRANSACTION: " + e.getMessage());
+                        }
+
+                        // Stop further processing for this transaction
+                        keepgoing = false;
+
+                        // finally print out the transaction's log
+                        if (TransactionServer.transactionView) 
+                        {
+                            System.out.println(transaction.getLog());
+                        }
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case PREPARE_TRANSACTION:
+                    // -------------------------------------------------------------------------------------------
+
+                        // first phase of a two-phase commit, the connection stays open for the decision
+                        if (prepareTransaction(transaction)) {
+                            try {
+                                writeToNet.writeObject(new Message(TRANSACTION_PREPARED, null));
+                            } catch (IOException e) {
+                                System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction prepare: " + e.getMessage());
+                            }
+
+                            transaction.log("[TransactionManagerWorker.run] " + OPEN_COLOR + "PREPARE_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID() + " - PREPARED");
+                            break;
+                        }
+
+                        // validation failed, we are done with this transaction
+                        try {
+                            writeToNet.writeObject(new Message(TRANSACTION_ABORTED, null));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction abort: " + e.getMessage());
+                        }
+                        keepgoing = false;
+
+                        transaction.log("[TransactionManagerWorker.run] " + ABORT_COLOR + "PREPARE_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID() + " - ABORTED");
+                        completed(false, "aborted in prepare");
+                        if (TransactionServer.transactionView) 
+                        {
+                            System.out.println(transaction.getLog());
+                        }
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case COMMIT_TRANSACTION:
+                    // -------------------------------------------------------------------------------------------
+
+                        // second phase of a two-phase commit, a coordinator that lost the connection the transaction
+                        // was prepared on names it by its ID on a new one
+                        if (transaction == null && message.getContent() instanceof Integer) {
+                            transaction = getPreparedTransaction((Integer) message.getContent());
+                            if (transaction == null) {
+                                boolean committedBefore = isCommittedPrepared((Integer) message.getContent());
+                                System.out.println("[TransactionManagerWorker.run] COMMIT_TRANSACTION #" + message.getContent() + (committedBefore ? " - COMMITTED before" : " - NOT PREPARED"));
+                                try {
+                                    writeToNet.writeObject(new Message(committedBefore ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED, null));
+                                    readFromNet.close();
+                                    writeToNet.close();
+                                    client.close();
+                                } catch (IOException e) {
+                                    System.err.println("[TransactionManagerWorker.run] Error after COMMIT_TRANSACTION: " + e.getMessage());
+                                }
+                                keepgoing = false;
+
+                                break;
+                            }
+                        }
+
+                        boolean committed = commitPreparedTransaction(transaction);
+                        try {
+                            writeToNet.writeObject(new Message(committed ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED, null));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error after COMMIT_TRANSACTION: " + e.getMessage());
+                        }
+                        keepgoing = false;
+
+                        transaction.log("[TransactionManagerWorker.run] " + COMMIT_COLOR + "COMMIT_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID() + (committed ? " - COMMITTED" : " - NOT PREPARED"));
+                        completed(committed, committed ? "committed prepared" : "not prepared");
+                        if (TransactionServer.transactionView) 
+                        {
+                            System.out.println(transaction.getLog());
+                        }
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case FOLLOW:
+                    // -------------------------------------------------------------------------------------------
+
+                        // a follower connects, from now on this connection ships committed write sets
+                        // and stays quiet for as long as there is nothing to acknowledge
+                        if (!isPublishingCommits())
+                        {
+                            refuseReplication("FOLLOW");
+                        }
+                        else
+                        {
+                            clearSocketReadTimeout();
+                            addFollower(client, readFromNet, writeToNet);
+                        }
+                        keepgoing = false;
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case SUBSCRIBE:
+                    // -------------------------------------------------------------------------------------------
+
+                        // a change subscriber connects, from now on this connection streams committed write sets
+                        if (!isPublishingCommits())
+                        {
+                            refuseReplication("SUBSCRIBE");
+                        }
+                        else
+                        {
+                            clearSocketReadTimeout();
+                            addSubscriber(client, readFromNet, writeToNet, (Integer) message.getContent());
+                        }
+                        keepgoing = false;
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case PROMOTE:
+                    // -------------------------------------------------------------------------------------------
+
+                        // stop following the primary and accept writes from now on
+                        TransactionServer.promote();
+
+                        try {
+                            writeToNet.writeObject(new Message(PROMOTE, true));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error answering PROMOTE: " + e.getMessage());
+                        }
+                        keepgoing = false;
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case READ_REQUEST:
+                    // -------------------------------------------------------------------------------------------
+                        // get account number
+                        // ...
+                        accountNumber = (Integer) message.getContent();
+                        
+                        // add log pre read
+                        transaction.log("[TransactionManagerWorker.run] " + READ_COLOR + "READ_REQUEST" + RESET_COLOR + " >>>>>>>>>>>>>>>>>>>> account #" + accountNumber);
+
+                        // read balance from account
+                        // ======>
+                        AccessEvent readEvent = beginAccess("read", accountNumber);
+                        balance = transaction.read(accountNumber);
+                        endAccess(readEvent, balance);
+                        trace(READ_REQUEST, accountNumber, balance, 0);
+                        // <======
+
+                        // confirm read to client
+                        // ...
+                        try {
+                            writeToNet.writeObject(new Message(READ_REQUEST, balance));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send balance to client: " + e.getMessage());
+                        }
+
+                        // add log post read
+                        transaction.log("[TransactionManagerWorker.run] "+ READ_COLOR + "READ_REQUEST" + RESET_COLOR + " <<<<<<<<<<<<<<<<<<<< account #" + accountNumber + ", balance $" + balance);
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case VERSIONED_READ_REQUEST:
+                    // -------------------------------------------------------------------------------------------
+                        accountNumber = (Integer) message.getContent();
+
+                        // the version is read before and after the balance, a write in between makes the balance uncacheable,
+                        // the balance being written before the version
+                        int version = getCacheableVersion(transaction, accountNumber);
+                        AccessEvent versionedReadEvent = beginAccess("read", accountNumber);
+                        balance = transaction.read(accountNumber);
+                        endAccess(versionedReadEvent, balance);
+                        trace(READ_REQUEST, accountNumber, balance, 0);
+                        if (version != getCacheableVersion(transaction, accountNumber)) {
+                            version = -1;
+                        }
+
+                        try {
+                            writeToNet.writeObject(new Message(VERSIONED_READ_REQUEST, new int[] { balance, version }));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send balance to client: " + e.getMessage());
+                        }
+
+                        transaction.log("[TransactionManagerWorker.run] " + READ_COLOR + "VERSIONED_READ_REQUEST" + RESET_COLOR + " account #" + accountNumber + ", balance $" + balance + ", version " + version);
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case WRITE_REQUEST:
+                    // -------------------------------------------------------------------------------------------
+
+                        // get the message content: account number and balance to write
+                        // ....
+                        content = (int[]) message.getContent();
+                        accountNumber = content[0];
+                        balance = content[1];
+
+                        // add log pre write
+                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "WRITE_REQUEST" + RESET_COLOR + " >>>>>>>>>>>>>>>>>>> account #" + accountNumber + ", balance to write $" + balance);
+
+                        /// do the write 
+                        // ======>
+                        AccessEvent writeEvent = beginAccess("write", accountNumber);
+                        int oldBalance = transaction.write(accountNumber, balance);
+                        endAccess(writeEvent, balance);
+                        trace(WRITE_REQUEST, accountNumber, balance, oldBalance);
+                        // <======
+
+                        // write back old balance to client
+                        // ....
+                        try {
+                            writeToNet.writeObject(new Message(WRITE_REQUEST, oldBalance));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send old balance to client: " + e.getMessage());
+                        }
+
+                        // add log post write
+                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "WRITE_REQUEST" + RESET_COLOR + " <<<<<<<<<<<<<<<<<<<< account #" + accountNumber + ", wrote $" + balance);
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case READ_MANY:
+                    // -------------------------------------------------------------------------------------------
+
+                        // a whole working set in one round trip
+                        int[] accountNumbers = (int[]) message.getContent();
+                        int[] balances = transaction.readMany(accountNumbers);
+                        for (int index = 0; index < accountNumbers.length; index++) {
+                            trace(READ_REQUEST, accountNumbers[index], balances[index], 0);
+                        }
+
+                        try {
+                            writeToNet.writeObject(new Message(READ_MANY, balances));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send balances to client: " + e.getMessage());
+                        }
+
+                        transaction.log("[TransactionManagerWorker.run] " + READ_COLOR + "READ_MANY" + RESET_COLOR + " accounts " + Arrays.toString(accountNumbers) + ", balances " + Arrays.toString(balances));
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case WRITE_MANY:
+                    // -------------------------------------------------------------------------------------------
+
+                        // get the message content: account numbers and balances to write
+                        int[][] writes = (int[][]) message.getContent();
+                        int[] oldBalances = transaction.writeMany(writes[0], writes[1]);
+                        for (int index = 0; index < writes[0].length; index++) {
+                            trace(WRITE_REQUEST, writes[0][index], writes[1][index], oldBalances[index]);
+                        }
+
+                        try {
+                            writeToNet.writeObject(new Message(WRITE_MANY, oldBalances));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send old balances to client: " + e.getMessage());
+                        }
+
+                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "WRITE_MANY" + RESET_COLOR + " accounts " + Arrays.toString(writes[0]) + ", wrote " + Arrays.toString(writes[1]));
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case DEPOSIT_REQUEST:
+                    // -------------------------------------------------------------------------------------------
+
+                        // get the message content: account number and amount to deposit
+                        content = (int[]) message.getContent();
+                        accountNumber = content[0];
+                        balance = content[1];
+
+                        // do the deposit
+                        // ======>
+                        AccessEvent depositEvent = beginAccess("deposit", accountNumber);
+                        transaction.deposit(accountNumber, balance);
+                        endAccess(depositEvent, balance);
+                        trace(DEPOSIT_REQUEST, accountNumber, balance, 0);
+                        // <======
+
+                        // confirm deposit to client
+                        try {
+                            writeToNet.writeObject(new Message(DEPOSIT_REQUEST));
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to confirm deposit to client: " + e.getMessage());
+                        }
+
+                        // add log deposit
+                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "DEPOSIT_REQUEST" + RESET_COLOR + " account #" + accountNumber + ", deposited $" + balance);
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case BULK_SUBMIT:
+                    // -------------------------------------------------------------------------------------------
+
+                        // a chunk of independent transfers, not part of a transaction, an empty chunk ends the stream
+                        int[] transfers = (int[]) message.getContent();
+                        if (transfers == null || transfers.length == 0)
+                        {
+                            try {
+                                readFromNet.close();
+                                writeToNet.close();
+                                client.close();
+                            } catch (IOException e) {
+                                System.err.println("[TransactionManagerWorker.run] Error closing bulk connection: " + e.getMessage());
+                            }
+                            keepgoing = false;
+
+                            break;
+                        }
+
+                        // a follower takes no writes, and without an executor bulk submission is not served
+                        byte[] outcomes;
+                        if (bulkExecutor == null || readOnly)
+                        {
+                            outcomes = new byte[transfers.length / 3];
+                            Arrays.fill(outcomes, (byte) TRANSACTION_ABORTED);
+                        }
+                        else
+                        {
+                            outcomes = bulkExecutor.execute(transfers);
+                        }
+
+                        // the reply goes out in several small writes, which must not wait for the client's acknowledgements,
+                        // and the stream forgets the objects written, otherwise it holds on to every chunk's outcomes
+                        try {
+                            client.setTcpNoDelay(true);
+                            writeToNet.writeObject(new Message(BULK_SUBMIT, outcomes));
+                            writeToNet.reset();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Failed to send bulk outcomes to client: " + e.getMessage());
+                        }
+
+                        if (TransactionServer.logging)
+                        {
+                            int committedTransfers = 0;
+                            for (byte outcome : outcomes)
+                            {
+                                committedTransfers += outcome == TRANSACTION_COMMITTED ? 1 : 0;
+                            }
+                            System.out.println("[TransactionManagerWorker.run] BULK_SUBMIT of " + outcomes.length + " transfers, " + committedTransfers + " committed");
+                        }
+
+                        break;
+
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case BULK_UPDATE:
+                    // -------------------------------------------------------------------------------------------
+
+                        // administrative request, running its own transactions
+                        content = (int[]) message.getContent();
+                        int[] updated;
+                        if (bulkExecutor == null || readOnly)
+                        {
+                            updated = new int[] { 0, accountManager.getNumberAccounts() };
+                        }
+                        else
+                        {
+                            updated = bulkExecutor.update(content[0], content[1], content[2]);
+                        }
+                        System.out.println("[TransactionManagerWorker.run] BULK_UPDATE function " + content[0] + " (" + content[1] + ") "
+                                + (content[2] > 0 ? "in chunks of " + content[2] : "in one transaction") + ", " + updated[0] + " accounts updated, " + updated[1] + " not");
+
+                        try {
+                            writeToNet.writeObject(new Message(BULK_UPDATE, updated));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error answering BULK_UPDATE: " + e.getMessage());
+                        }
+
+                        keepgoing = false;
+
+                        break;
+
+
+                    // -------------------------------------------------------------------------------------------
+                    case AGGREGATE:
+                    // -------------------------------------------------------------------------------------------
+
+                        // administrative request, reading all accounts of the range at one point in time without stopping writers
+                        content = (int[]) message.getContent();
+                        int aggregateFrom = content == null ? accountManager.getFirstAccountNumber() : content[0];
+                        int aggregateTo = content == null ? accountManager.getHighestAccountNumber() : content[1];
+                        AccountAggregate aggregate = aggregator.aggregate(aggregateFrom, aggregateTo);
+                        System.out.println("[TransactionManagerWorker.run] AGGREGATE of " + aggregate);
+
+                        try {
+                            writeToNet.writeObject(new Message(AGGREGATE, aggregate));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error answering AGGREGATE: " + e.getMessage());
                         }
 
-                        // add log
-                        transaction.log("[TransactionManagerWorker.run] " + OPEN_COLOR + "OPEN_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID());
+                        keepgoing = false;
 
                         break;
 
                         
                     // -------------------------------------------------------------------------------------------
-                    case CLOSE_TRANSACTION:
+                    case SPLIT_ACCOUNT:
+                    case MERGE_ACCOUNT:
                     // -------------------------------------------------------------------------------------------
-                        synchronized (runningTransactions) {
-                            // remove transaction from ArrayList runningTransactions
-                            // ...
-                            runningTransactions.remove(transaction);
 
-                            // the BIG thing, we enter validation phase and, if successful, the update phase
-                            if (validateTransaction(transaction)) {
-                                // add this transaction to committedTransactions
-                                // important step! information used in other transactions' validations, if they overlap with this one
-                                // ...
-                                committedTransactions.put(transaction.getTransactionNumber(), transaction);
+                        // administrative request, not part of a transaction
+                        boolean restructured;
+                        if (message.getType() == SPLIT_ACCOUNT) 
+                        {
+                            content = (int[]) message.getContent();
+                            restructured = splitAccount(content[0], content[1]);
+                            System.out.println("[TransactionManagerWorker.run] SPLIT_ACCOUNT #" + content[0] + " into " + content[1] + " sub-accounts" + (restructured ? "" : " - ignored"));
+                        } 
+                        else 
+                        {
+                            accountNumber = (Integer) message.getContent();
+                            restructured = mergeAccount(accountNumber);
+                            System.out.println("[TransactionManagerWorker.run] MERGE_ACCOUNT #" + accountNumber + (restructured ? "" : " - ignored"));
+                        }
 
-                                // this is the update phase ... write data to operational data in one go
-                                // ...
-                                writeTransaction(transaction);
+                        try {
+                            writeToNet.writeObject(new Message(message.getType(), restructured));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
+                        } catch (IOException e) {
+                            System.err.println("[TransactionManagerWorker.run] Error answering restructuring request: " + e.getMessage());
+                        }
 
-                                // tell client that transaction committed
-                                // ...      
-                                try {
-                                    writeToNet.writeObject(new Message(TRANSACTION_COMMITTED, null));
-                                } catch (IOException e) {
-                                    System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction commit: " + e.getMessage());
-                                }
+                        keepgoing = false;
 
-                                // add log committed
-                                transaction.log("[TransactionManagerWorker.run] " + COMMIT_COLOR + "CLOSE_TRANSACTION"+ RESET_COLOR + " #" + transaction.getTransactionID() + " - COMMITTED");
-                            } else {
-                                // validation failed, abort this transaction
-                                // there is not anything that is done explicitly, aborting is essentially doing nothing
-                                abortedTransactions.add(transaction);
+                        break;
 
-                                // tell client that transaction was aborted
-                                // ...
-                                try {
-                                    writeToNet.writeObject(new Message(TRANSACTION_ABORTED, null));
-                                } catch (IOException e) {
-                                    System.err.println("[TransactionManagerWorker.run] Failed to notify client of transaction abort: " + e.getMessage());
-                                }
+                        
+                    // -------------------------------------------------------------------------------------------
+                    case CREATE_ACCOUNT:
+                    // -------------------------------------------------------------------------------------------
 
-                                // add log aborted
-                                transaction.log("[TransactionManagerWorker.run] " + ABORT_COLOR + "CLOSE_TRANSACTION"+ RESET_COLOR + " #" + transaction.getTransactionID() + " - ABORTED");
-                            }
-                        }
+                        // administrative request, not part of a transaction
+                        content = (int[]) message.getContent();
+                        int created = createAccount(content[0], content[1]);
+                        System.out.println("[TransactionManagerWorker.run] CREATE_ACCOUNT #" + (created < 0 ? content[0] : created) + " with $" + content[1] + (created < 0 ? " - ignored" : ""));
 
-                        // regardless whether the transaction committed or aborted, shut down network connections
-                        // ...
                         try {
+                            writeToNet.writeObject(new Message(CREATE_ACCOUNT, created));
                             readFromNet.close();
                             writeToNet.close();
                             client.close();
                         } catch (IOException e) {
-                            System.err.println("[TransactionManagerWorker.run] Error closing connection after CLOSE_TRANSACTION: " + e.getMessage());
+                            System.err.println("[TransactionManagerWorker.run] Error answering CREATE_ACCOUNT: " + e.getMessage());
                         }
 
-                        // Stop further processing for this transaction
                         keepgoing = false;
 
-                        // finally print out the transaction's log
-                        if (TransactionServer.transactionView) 
-                        {
-                            System.out.println(transaction.getLog());
-                        }
-
                         break;
 
                         
                     // -------------------------------------------------------------------------------------------
-                    case READ_REQUEST:
+                    case CLOSE_ACCOUNT:
                     // -------------------------------------------------------------------------------------------
-                        // get account number
-                        // ...
-                        accountNumber = (Integer) message.getContent();
-                        
-                        // add log pre read
-                        transaction.log("[TransactionManagerWorker.run] " + READ_COLOR + "READ_REQUEST" + RESET_COLOR + " >>>>>>>>>>>>>>>>>>>> account #" + accountNumber);
 
-                        // read balance from account
-                        // ======>
-                        balance = transaction.read(accountNumber);
-                        // <======
+                        // administrative request, not part of a transaction
+                        accountNumber = (Integer) message.getContent();
+                        boolean closed = closeAccount(accountNumber);
+                        System.out.println("[TransactionManagerWorker.run] CLOSE_ACCOUNT #" + accountNumber + (closed ? "" : " - ignored"));
 
-                        // confirm read to client
-                        // ...
                         try {
-                            writeToNet.writeObject(new Message(READ_REQUEST, balance));
+                            writeToNet.writeObject(new Message(CLOSE_ACCOUNT, closed));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
                         } catch (IOException e) {
-                            System.err.println("[TransactionManagerWorker.run] Failed to send balance to client: " + e.getMessage());
+                            System.err.println("[TransactionManagerWorker.run] Error answering CLOSE_ACCOUNT: " + e.getMessage());
                         }
 
-                        // add log post read
-                        transaction.log("[TransactionManagerWorker.run] "+ READ_COLOR + "READ_REQUEST" + RESET_COLOR + " <<<<<<<<<<<<<<<<<<<< account #" + accountNumber + ", balance $" + balance);
+                        keepgoing = false;
 
                         break;
 
                         
                     // -------------------------------------------------------------------------------------------
-                    case WRITE_REQUEST:
+                    case ACCOUNT_STATISTICS:
                     // -------------------------------------------------------------------------------------------
 
-                        // get the message content: account number and balance to write
-                        // ....
-                        int[] content = (int[]) message.getContent();
-                        accountNumber = content[0];
-                        balance = content[1];
-
-                        // add log pre write
-                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "WRITE_REQUEST" + RESET_COLOR + " >>>>>>>>>>>>>>>>>>> account #" + accountNumber + ", balance to write $" + balance);
-
-                        /// do the write 
-                        // ======>
-                        int oldBalance = transaction.write(accountNumber, balance);
-                        // <======
-
-                        // write back old balance to client
-                        // ....
+                        // administrative query, not part of a transaction
                         try {
-                            writeToNet.writeObject(new Message(WRITE_REQUEST, oldBalance));
+                            writeToNet.writeObject(new Message(ACCOUNT_STATISTICS, getAccountStatistics((Integer) message.getContent())));
+                            readFromNet.close();
+                            writeToNet.close();
+                            client.close();
                         } catch (IOException e) {
-                            System.err.println("[TransactionManagerWorker.run] Failed to send old balance to client: " + e.getMessage());
+                            System.err.println("[TransactionManagerWorker.run] Error answering ACCOUNT_STATISTICS: " + e.getMessage());
                         }
 
-                        // add log post write
-                        transaction.log("[TransactionManagerWorker.run] " + WRITE_COLOR + "WRITE_REQUEST" + RESET_COLOR + " <<<<<<<<<<<<<<<<<<<< account #" + accountNumber + ", wrote $" + balance);
+                        keepgoing = false;
 
                         break;
 
@@ -364,6 +2652,23 @@ public class TransactionManager implements MessageTypes
                     case ABORT_TRANSACTION:
                     // -------------------------------------------------------------------------------------------
                         
+                        // the coordinator's decision to abort, over a new connection if it lost the one the transaction was prepared on
+                        if (transaction == null && message.getContent() instanceof Integer) {
+                            transaction = getPreparedTransaction((Integer) message.getContent());
+                            if (transaction == null) {
+                                try {
+                                    readFromNet.close();
+                                    writeToNet.close();
+                                    client.close();
+                                } catch (IOException e) {
+                                    System.out.println("[TransactionManagerWorker.run] ABORT_TRANSACTION - Error when closing connection to client");
+                                }
+                                keepgoing = false;
+
+                                break;
+                            }
+                        }
+
                         // this is a client side abort! ignore ...
                         synchronized (runningTransactions) 
                         {
@@ -371,6 +2676,9 @@ public class TransactionManager implements MessageTypes
                             runningTransactions.remove(transaction);
                         }
                         
+                        // the coordinator's decision to abort a prepared transaction
+                        abortPreparedTransaction(transaction);
+                        
                         // shut down
                         try {
                             readFromNet.close();
@@ -384,6 +2692,7 @@ public class TransactionManager implements MessageTypes
 
                         // add log abort
                         transaction.log("[TransactionManagerWorker.run] " + ABORT_COLOR + "ABORT_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID() + " - ABORTED by client");
+                        completed(false, "aborted by client");
 
                         // final printout of all the transaction's logs
                         if (TransactionServer.transactionView) {
@@ -411,6 +2720,443 @@ public class TransactionManager implements MessageTypes
                         System.out.println("[TransactionManagerWorker.run] Warning: Message type not implemented");
                 }
             }
+            
+            activeWorkers.remove(this);
+            
+            // the transaction is done, let the next one in
+            if (admitted) 
+            {
+                admissionController.release();
+            }
+        }
+        
+        
+        /**
+         * Serves a client speaking the binary protocol, see BinaryProtocol: requests and replies are frames
+         * of primitive fields, and the connection carries one transaction after the other until the client hangs up.
+         * The streams are set up once per connection and the transaction object is reused, see openTransaction(),
+         * so with logging off, epoch-based commit and no conflict analytics steady-state processing allocates nothing
+         * 
+         * @param fromClient the connection's input, past the magic byte
+         */
+        private void runBinary(InputStream fromClient)
+        {
+            try 
+            {
+                // frames are tiny, do not hold them back waiting for more
+                client.setTcpNoDelay(true);
+                readFrame = new DataInputStream(fromClient);
+                writeFrame = new DataOutputStream(new BufferedOutputStream(client.getOutputStream(), BinaryProtocol.REQUEST_SIZE * 8));
+            }
+            catch (IOException e)
+            {
+                System.err.println("[TransactionManagerWorker.runBinary] Failed to open streams: " + e.getMessage());
+                abandon();
+                return;
+            }
+            
+            serveBinary(readFrame, writeFrame, false);
+        }
+        
+        
+        /**
+         * Serves the frames of a binary connection until the client hangs up or opens a transaction
+         * on another branch, handing the connection over to that branch's worker
+         * 
+         * @param readFrame the connection's input
+         * @param writeFrame the connection's output
+         * @param opening whether the connection was handed over past an OPEN_TRANSACTION naming this branch
+         */
+        private void serveBinary(DataInputStream readFrame, DataOutputStream writeFrame, boolean opening)
+        {
+            while (true) 
+            {
+                int type;
+                int first;
+                int second;
+                try 
+                {
+                    waitingSince = System.currentTimeMillis();
+                    type = opening ? OPEN_TRANSACTION : readFrame.readByte();
+                    first = opening ? branchID : readFrame.readInt();
+                    second = opening ? 0 : readFrame.readInt();
+                    opening = false;
+                    waitingSince = 0;
+                }
+                catch (IOException e) 
+                {
+                    // the client hung up, went silent or was reaped, a transaction left open is abandoned
+                    if (TransactionServer.logging) 
+                    {
+                        System.out.println("[TransactionManagerWorker.runBinary] Connection closed" 
+                                + (transactionOpen ? ", abandoning transaction #" + transaction.getTransactionID() : "") + ": " + e.getMessage());
+                    }
+                    abandon();
+                    return;
+                }
+                
+                int replyType = type;
+                int reply = 0;
+                switch (type) 
+                {
+                    case OPEN_TRANSACTION:
+                        // the first argument names the branch, the transactions of a connection need not all run on the same one
+                        if (first != branchID) 
+                        {
+                            TransactionManager branch = handOver(first);
+                            if (branch != null) 
+                            {
+                                branch.runTransaction(client, readFrame, writeFrame);
+                            }
+                            return;
+                        }
+                        
+                        if (admissionController != null) 
+                        {
+                            admitted = admissionController.admit();
+                            if (!admitted) 
+                            {
+                                replyType = TRANSACTION_REJECTED;
+                                reply = admissionController.getRetryAfterMilliseconds();
+                                break;
+                            }
+                        }
+                        
+                        openTransaction();
+                        reply = transaction.getTransactionID();
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + OPEN_COLOR + "OPEN_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID());
+                        }
+                        break;
+                        
+                    case READ_REQUEST:
+                        AccessEvent readEvent = beginAccess("read", first);
+                        reply = transaction.read(first);
+                        endAccess(readEvent, reply);
+                        trace(READ_REQUEST, first, reply, 0);
+                        
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + READ_COLOR + "READ_REQUEST" + RESET_COLOR + " account #" + first + ", balance $" + reply);
+                        }
+                        break;
+                        
+                    case WRITE_REQUEST:
+                        AccessEvent writeEvent = beginAccess("write", first);
+                        reply = transaction.write(first, second);
+                        endAccess(writeEvent, second);
+                        trace(WRITE_REQUEST, first, second, reply);
+                        
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + WRITE_COLOR + "WRITE_REQUEST" + RESET_COLOR + " account #" + first + ", wrote $" + second);
+                        }
+                        break;
+                        
+                    case DEPOSIT_REQUEST:
+                        AccessEvent depositEvent = beginAccess("deposit", first);
+                        transaction.deposit(first, second);
+                        endAccess(depositEvent, second);
+                        trace(DEPOSIT_REQUEST, first, second, 0);
+                        
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + WRITE_COLOR + "DEPOSIT_REQUEST" + RESET_COLOR + " account #" + first + ", deposited $" + second);
+                        }
+                        break;
+                        
+                    case CLOSE_TRANSACTION:
+                        boolean committed = closeTransaction(transaction);
+                        replyType = committed ? TRANSACTION_COMMITTED : TRANSACTION_ABORTED;
+                        
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + (committed ? COMMIT_COLOR : ABORT_COLOR) + "CLOSE_TRANSACTION" + RESET_COLOR 
+                                    + " #" + transaction.getTransactionID() + (committed ? " - COMMITTED" : " - ABORTED"));
+                        }
+                        finishBinaryTransaction(committed, committed ? "committed" : "aborted");
+                        break;
+                        
+                    case ABORT_TRANSACTION:
+                        synchronized (runningTransactions) 
+                        {
+                            runningTransactions.remove(transaction);
+                        }
+                        
+                        if (TransactionServer.logging) 
+                        {
+                            transaction.log("[TransactionManagerWorker.runBinary] " + ABORT_COLOR + "ABORT_TRANSACTION" + RESET_COLOR + " #" + transaction.getTransactionID() + " - ABORTED by client");
+                        }
+                        finishBinaryTransaction(false, "aborted by client");
+                        
+                        // like over object streams, an abort is not answered
+                        continue;
+                        
+                    case SHUTDOWN:
+                        TransactionServer.shutDown();
+                        return;
+                        
+                    default:
+                        // the client would wait for an answer forever, hang up on it
+                        System.out.println("[TransactionManagerWorker.runBinary] Warning: Message type " + type + " not implemented in the binary protocol");
+                        abandon();
+                        return;
+                }
+                
+                try 
+                {
+                    writeFrame.writeByte(replyType);
+                    writeFrame.writeInt(reply);
+                    writeFrame.flush();
+                }
+                catch (IOException e) 
+                {
+                    System.err.println("[TransactionManagerWorker.runBinary] Failed to answer client: " + e.getMessage());
+                    abandon();
+                    return;
+                }
+            }
+        }
+        
+        
+        /**
+         * Helper letting go of the connection for the worker of another branch to take over
+         * 
+         * @param branchID the branch named by the client
+         * @return the branch's transaction manager, null if there is no such branch, then the client is hung up on
+         */
+        private TransactionManager handOver(int branchID)
+        {
+            TransactionManager branch = TransactionServer.getBranch(branchID);
+            if (branch == null) 
+            {
+                System.out.println("[TransactionManagerWorker.handOver] Warning: Branch " + branchID + " does not exist");
+                abandon();
+                return null;
+            }
+            
+            activeWorkers.remove(this);
+            return branch;
+        }
+        
+        
+        /**
+         * Helper wrapping up a transaction on a connection carrying one transaction after the other
+         * 
+         * @param committed whether the transaction committed
+         * @param outcome how the transaction ended
+         */
+        private void finishBinaryTransaction(boolean committed, String outcome)
+        {
+            completed(committed, outcome);
+            
+            // let the next one in, the connection stays open
+            if (admitted) 
+            {
+                admissionController.release();
+                admitted = false;
+            }
+            
+            if (TransactionServer.logging && TransactionServer.transactionView) 
+            {
+                System.out.println(transaction.getLog());
+            }
+        }
+        
+        
+        /**
+         * Helper starting a new transaction for an OPEN_TRANSACTION
+         */
+        private void openTransaction()
+        {
+            if (completionEventType.isEnabled())
+            {
+                completionEvent = new CompletionEvent();
+                completionEvent.begin();
+            }
+            
+            transaction = startTransaction(transaction);
+            transactionOpen = true;
+            if (traceRecorder != null)
+            {
+                trace = traceRecorder.open(branchID);
+            }
+            
+            OpenEvent openEvent = new OpenEvent();
+            if (openEvent.isEnabled())
+            {
+                openEvent.transactionID = transaction.getTransactionID();
+                openEvent.lastAssignedTransactionNumber = transaction.getLastAssignedTransactionNumber();
+                openEvent.commit();
+            }
+        }
+        
+        
+        /**
+         * @param time point in time in milliseconds
+         * @return a flag indicating whether this worker has an open transaction and has been waiting for its client since before the given time
+         */
+        boolean isIdleSince(long time)
+        {
+            long waiting = waitingSince;
+            return transactionOpen && waiting != 0 && waiting < time;
+        }
+        
+        
+        /**
+         * Gives up on the client: aborts its transaction, if any, and closes the connection,
+         * which also ends a worker blocked reading from it
+         */
+        void abandon()
+        {
+            if (transaction != null && abortAbandonedTransaction(transaction)) 
+            {
+                completed(false, "abandoned");
+                
+                if (TransactionServer.transactionView) 
+                {
+                    System.out.println(transaction.getLog());
+                }
+            }
+            
+            try 
+            {
+                client.close();
+            } 
+            catch (IOException e) 
+            {
+                // nothing left to do
+            }
+        }
+        
+        
+        /**
+         * Helper marking the transaction as finished and emitting the JFR event of its completion, once
+         * 
+         * @param committed whether the transaction committed
+         * @param outcome how the transaction ended
+         */
+        synchronized void completed(boolean committed, String outcome)
+        {
+            transactionOpen = false;
+            if (trace != null)
+            {
+                traceRecorder.record(trace, committed ? TransactionTrace.COMMITTED 
+                        : outcome.equals("abandoned") ? TransactionTrace.ABANDONED 
+                        : outcome.equals("aborted by client") ? TransactionTrace.ABORTED_BY_CLIENT : TransactionTrace.ABORTED);
+                trace = null;
+            }
+            
+            if (completionEvent == null)
+            {
+                return;
+            }
+            
+            completionEvent.end();
+            if (completionEvent.shouldCommit())
+            {
+                completionEvent.transactionID = transaction.getTransactionID();
+                completionEvent.committed = committed;
+                completionEvent.outcome = outcome;
+                completionEvent.commit();
+            }
+            completionEvent = null;
+        }
+        
+        
+        /**
+         * Helper starting to time a read or write
+         * 
+         * @param operation read, write or deposit
+         * @param accountNumber the account accessed
+         * @return the JFR event to pass on to endAccess()
+         */
+        private AccessEvent beginAccess(String operation, int accountNumber)
+        {
+            AccessEvent accessEvent = new AccessEvent();
+            accessEvent.operation = operation;
+            accessEvent.accountNumber = accountNumber;
+            accessEvent.begin();
+            
+            return accessEvent;
+        }
+        
+        
+        /**
+         * Helper finishing the timing of a read or write
+         * 
+         * @param accessEvent the event returned by beginAccess()
+         * @param balance the balance read or written, or the amount deposited
+         */
+        private void endAccess(AccessEvent accessEvent, int balance)
+        {
+            accessEvent.end();
+            if (accessEvent.shouldCommit())
+            {
+                accessEvent.transactionID = transaction.getTransactionID();
+                accessEvent.balance = balance;
+                accessEvent.commit();
+            }
+        }
+        
+        
+        /**
+         * Helper adding a read, write or deposit to the trace, if recording one
+         * 
+         * @param type READ_REQUEST, WRITE_REQUEST or DEPOSIT_REQUEST
+         * @param accountNumber the account accessed
+         * @param value the balance read, the balance written or the amount deposited
+         * @param previous the balance before a write, 0 unless a write
+         */
+        private void trace(int type, int accountNumber, int value, int previous)
+        {
+            if (trace != null)
+            {
+                traceRecorder.add(trace, type, accountNumber, value, previous);
+            }
+        }
+        
+        
+        /**
+         * Answers a FOLLOW or SUBSCRIBE this branch cannot serve, as it does not publish its commits,
+         * with REPLICATION_REFUSED and closes the connection
+         * 
+         * @param request the name of the request refused, for the reply and the log
+         */
+        private void refuseReplication(String request)
+        {
+            String reason = request + " not served by branch " + branchName + ": commits are not published with "
+                    + (partitions != null ? "PARTITIONS" : "EPOCH_MILLISECONDS") + " set";
+            System.err.println("[TransactionManagerWorker.run] " + reason);
+
+            try 
+            {
+                writeToNet.writeObject(new Message(REPLICATION_REFUSED, reason));
+                readFromNet.close();
+                writeToNet.close();
+                client.close();
+            } 
+            catch (IOException e) 
+            {
+                System.err.println("[TransactionManagerWorker.run] Error answering " + request + ": " + e.getMessage());
+            }
+        }
+        
+        
+        /**
+         * Helper making connections handed over to replication wait for their peers indefinitely
+         */
+        private void clearSocketReadTimeout()
+        {
+            try 
+            {
+                client.setSoTimeout(0);
+            } 
+            catch (IOException e) 
+            {
+                System.err.println("[TransactionManagerWorker.run] Failed to clear read timeout: " + e.getMessage());
+            }
         }
     }
 }
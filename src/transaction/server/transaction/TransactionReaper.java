@@ -0,0 +1,64 @@
+package transaction.server.transaction;
+
+
+
+/**
+ * Background thread aborting transactions whose clients went silent. A transaction left open
+ * stays among the running transactions, and every transaction opened after it needs to keep
+ * the committed transactions it may overlap with around, so an abandoned transaction is not harmless.
+ * The reaper periodically aborts transactions idle for longer than the timeout, closes their
+ * connections and prunes committed transactions no running transaction can overlap with anymore.
+ *
+ * @author Dr.-Ing. Wolf-Dieter Otte
+ */
+public class TransactionReaper extends Thread
+{
+    // the transaction manager whose transactions are watched
+    private final TransactionManager transactionManager;
+
+    // time in milliseconds a transaction may wait for its client's next request
+    private final int transactionTimeout;
+
+
+    /**
+     * Constructor
+     *
+     * @param transactionManager the transaction manager of the branch
+     * @param transactionTimeout time in milliseconds a transaction may wait for its client's next request
+     */
+    public TransactionReaper(TransactionManager transactionManager, int transactionTimeout)
+    {
+        super("TransactionReaper");
+        this.transactionManager = transactionManager;
+        this.transactionTimeout = transactionTimeout;
+        setDaemon(true);
+    }
+
+
+    @Override
+    public void run()
+    {
+        // sweep often enough that nothing outlives the timeout by more than half of it
+        long sweepInterval = Math.max(transactionTimeout / 2, 100);
+
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(sweepInterval);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            int reaped = transactionManager.reapIdleTransactions(transactionTimeout);
+            if (reaped > 0)
+            {
+                System.out.println("[TransactionReaper.run] Aborted " + reaped + " idle transaction(s)");
+            }
+
+            transactionManager.pruneCommittedTransactions();
+        }
+    }
+}